@@ -114,6 +114,9 @@ public class AppProperties {
 			JpaStorageSettings.StoreMetaSourceInformationEnum.NONE;
 
 	private Map<String, RemoteSystem> remote_terminology_service = null;
+	private Integer remote_terminology_cache_size = 10000;
+	private Integer remote_terminology_cache_ttl_seconds = 600;
+	private Integer remote_terminology_negative_cache_ttl_seconds = 60;
 	private Boolean match_url_cache_enabled = false;
 	private Boolean index_storage_optimized = false;
 
@@ -758,6 +761,31 @@ public class AppProperties {
 		this.remote_terminology_service = remote_terminology_service;
 	}
 
+	public Integer getRemote_terminology_cache_size() {
+		return remote_terminology_cache_size;
+	}
+
+	public void setRemote_terminology_cache_size(Integer remote_terminology_cache_size) {
+		this.remote_terminology_cache_size = remote_terminology_cache_size;
+	}
+
+	public Integer getRemote_terminology_cache_ttl_seconds() {
+		return remote_terminology_cache_ttl_seconds;
+	}
+
+	public void setRemote_terminology_cache_ttl_seconds(Integer remote_terminology_cache_ttl_seconds) {
+		this.remote_terminology_cache_ttl_seconds = remote_terminology_cache_ttl_seconds;
+	}
+
+	public Integer getRemote_terminology_negative_cache_ttl_seconds() {
+		return remote_terminology_negative_cache_ttl_seconds;
+	}
+
+	public void setRemote_terminology_negative_cache_ttl_seconds(
+			Integer remote_terminology_negative_cache_ttl_seconds) {
+		this.remote_terminology_negative_cache_ttl_seconds = remote_terminology_negative_cache_ttl_seconds;
+	}
+
 	public boolean getMatch_url_cache_enabled() {
 		return defaultIfNull(match_url_cache_enabled, false);
 	}
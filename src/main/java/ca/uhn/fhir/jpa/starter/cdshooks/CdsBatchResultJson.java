@@ -0,0 +1,61 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.model.api.IModelJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One line of a batch response: the service's response for one of the batch's hook requests, or the error it failed
+ * with. hookInstance and patientId are copied from the request so lines can be matched up in any order.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CdsBatchResultJson implements IModelJson {
+	@JsonProperty("hookInstance")
+	private String hookInstance;
+
+	@JsonProperty("patientId")
+	private String patientId;
+
+	@JsonProperty("response")
+	private CdsServiceResponseJson response;
+
+	@JsonProperty("error")
+	private String error;
+
+	public String getHookInstance() {
+		return hookInstance;
+	}
+
+	public CdsBatchResultJson setHookInstance(String theHookInstance) {
+		hookInstance = theHookInstance;
+		return this;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public CdsBatchResultJson setPatientId(String thePatientId) {
+		patientId = thePatientId;
+		return this;
+	}
+
+	public CdsServiceResponseJson getResponse() {
+		return response;
+	}
+
+	public CdsBatchResultJson setResponse(CdsServiceResponseJson theResponse) {
+		response = theResponse;
+		return this;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public CdsBatchResultJson setError(String theError) {
+		error = theError;
+		return this;
+	}
+}
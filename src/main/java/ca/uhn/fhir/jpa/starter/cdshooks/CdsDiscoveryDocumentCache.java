@@ -0,0 +1,83 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Holds the encoded discovery response together with its ETag. The registry mutates a single
+ * {@link CdsServicesJson} in place and (re)registering a service always adds a new {@link CdsServiceJson}, so
+ * comparing the registered service instances by identity is enough to notice that the document has to be rebuilt.
+ * The registry changes that list while requests are served without a lock this cache could share, so the document is
+ * built from a copy of it rather than the live list. A copy taken during a change may miss the service being added or
+ * still hold the one being removed; the next request sees different instances and rebuilds the document.
+ */
+public class CdsDiscoveryDocumentCache {
+
+	public record Document(byte[] body, String etag) {
+
+		/**
+		 * Evaluates an If-None-Match header value, which may hold several entity tags or "*".
+		 */
+		public boolean matches(String theIfNoneMatch) {
+			if (theIfNoneMatch == null) {
+				return false;
+			}
+			for (String candidate : theIfNoneMatch.split(",")) {
+				String tag = candidate.trim();
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private List<CdsServiceJson> services;
+	private ObjectWriter writer;
+	private Document document;
+
+	public synchronized Document get(CdsServicesJson theServices, ObjectWriter theWriter)
+			throws JsonProcessingException {
+		List<CdsServiceJson> current = snapshot(theServices);
+		if (document == null || writer != theWriter || !sameInstances(services, current)) {
+			CdsServicesJson snapshot = new CdsServicesJson();
+			current.forEach(snapshot::addService);
+			byte[] body = theWriter.writeValueAsBytes(snapshot);
+			document = new Document(body, "\"" + DigestUtils.sha256Hex(body) + "\"");
+			services = current;
+			writer = theWriter;
+		}
+		return document;
+	}
+
+	private static List<CdsServiceJson> snapshot(CdsServicesJson theServices) {
+		// The registry leaves the list unset until the first service is registered
+		List<CdsServiceJson> services = theServices.getServices();
+		if (services == null) {
+			return List.of();
+		}
+		List<CdsServiceJson> copy = new ArrayList<>(services);
+		// A slot the registry has claimed but not yet filled
+		copy.removeIf(Objects::isNull);
+		return copy;
+	}
+
+	private static boolean sameInstances(List<CdsServiceJson> theCached, List<CdsServiceJson> theCurrent) {
+		if (theCached.size() != theCurrent.size()) {
+			return false;
+		}
+		for (int i = 0; i < theCached.size(); i++) {
+			if (theCached.get(i) != theCurrent.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
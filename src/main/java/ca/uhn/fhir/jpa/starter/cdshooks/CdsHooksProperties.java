@@ -2,6 +2,9 @@ package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.HashMap;
+import java.util.Map;
+
 @ConfigurationProperties(prefix = "hapi.fhir.cdshooks")
 public class CdsHooksProperties {
 
@@ -24,4 +27,298 @@ public class CdsHooksProperties {
 	public void setClientIdHeaderName(String clientIdHeaderName) {
 		this.clientIdHeaderName = clientIdHeaderName;
 	}
+
+	/**
+	 * Indent cds-hooks responses, as they always were. Turning it off makes every response noticeably smaller.
+	 */
+	private boolean prettyPrint = true;
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	private Prefetch prefetch = new Prefetch();
+
+	public Prefetch getPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(Prefetch prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	private Evaluation evaluation = new Evaluation();
+
+	public Evaluation getEvaluation() {
+		return evaluation;
+	}
+
+	public void setEvaluation(Evaluation evaluation) {
+		this.evaluation = evaluation;
+	}
+
+	/**
+	 * Service calls run on the CQL cds pool, of maxThreads threads unless hapi.fhir.cr.executor.pools.cds says
+	 * otherwise, and are given timeoutMillis, including prefetch, to produce
+	 * their cards. serviceTimeoutMillis overrides the deadline per service id; 0 waits without a deadline. A call
+	 * that misses its deadline is cancelled and answered with a single warning card. A batch request to
+	 * /cds-services/{id}/batch has at most batchConcurrency of its calls running at a time.
+	 */
+	public static class Evaluation {
+		private int maxThreads = 8;
+		private int batchConcurrency = 4;
+		private long timeoutMillis = 30000;
+		private Map<String, Long> serviceTimeoutMillis = new HashMap<>();
+
+		public int getMaxThreads() {
+			return maxThreads;
+		}
+
+		public void setMaxThreads(int maxThreads) {
+			this.maxThreads = maxThreads;
+		}
+
+		public int getBatchConcurrency() {
+			return batchConcurrency;
+		}
+
+		public void setBatchConcurrency(int batchConcurrency) {
+			this.batchConcurrency = batchConcurrency;
+		}
+
+		public long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+
+		public void setTimeoutMillis(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public Map<String, Long> getServiceTimeoutMillis() {
+			return serviceTimeoutMillis;
+		}
+
+		public void setServiceTimeoutMillis(Map<String, Long> serviceTimeoutMillis) {
+			this.serviceTimeoutMillis = serviceTimeoutMillis;
+		}
+
+		public long getTimeoutMillis(String theServiceId) {
+			return serviceTimeoutMillis.getOrDefault(theServiceId, timeoutMillis);
+		}
+	}
+
+	public static class Prefetch {
+		/**
+		 * Maximum number of prefetch queries a single hook invocation may run concurrently.
+		 */
+		private int maxThreads = 6;
+
+		/**
+		 * Time budget for all prefetch queries of one hook invocation. Queries still running when it expires are
+		 * cancelled and their items are left out of the request.
+		 */
+		private long timeoutMillis = 10000;
+
+		/**
+		 * Size of the pooled HTTP connection manager shared by all prefetch clients, in total and per fhirServer.
+		 */
+		private int maxConnections = 40;
+
+		private int maxConnectionsPerRoute = 20;
+
+		/**
+		 * Maximum number of fhirServer bases that keep a cached client.
+		 */
+		private int maxClients = 50;
+
+		/**
+		 * When the request's fhirServer is this server (server_address or one of local_base_urls), resolve the
+		 * prefetch queries through the DAOs instead of calling back over HTTP.
+		 */
+		private boolean resolveLocalInProcess = true;
+
+		/**
+		 * Searches whose url would exceed this length, or whose largest OR-list parameter has more than
+		 * maxParamValues values, are split into several searches over slices of that list that run concurrently
+		 * and are merged into one searchset.
+		 */
+		private int maxUrlLength = 2000;
+
+		private int maxParamValues = 100;
+
+		private Cache cache = new Cache();
+
+		private Paging paging = new Paging();
+
+		public int getMaxThreads() {
+			return maxThreads;
+		}
+
+		public void setMaxThreads(int maxThreads) {
+			this.maxThreads = maxThreads;
+		}
+
+		public long getTimeoutMillis() {
+			return timeoutMillis;
+		}
+
+		public void setTimeoutMillis(long timeoutMillis) {
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		public int getMaxConnections() {
+			return maxConnections;
+		}
+
+		public void setMaxConnections(int maxConnections) {
+			this.maxConnections = maxConnections;
+		}
+
+		public int getMaxConnectionsPerRoute() {
+			return maxConnectionsPerRoute;
+		}
+
+		public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+			this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		}
+
+		public int getMaxClients() {
+			return maxClients;
+		}
+
+		public void setMaxClients(int maxClients) {
+			this.maxClients = maxClients;
+		}
+
+		public boolean isResolveLocalInProcess() {
+			return resolveLocalInProcess;
+		}
+
+		public void setResolveLocalInProcess(boolean resolveLocalInProcess) {
+			this.resolveLocalInProcess = resolveLocalInProcess;
+		}
+
+		public int getMaxUrlLength() {
+			return maxUrlLength;
+		}
+
+		public void setMaxUrlLength(int maxUrlLength) {
+			this.maxUrlLength = maxUrlLength;
+		}
+
+		public int getMaxParamValues() {
+			return maxParamValues;
+		}
+
+		public void setMaxParamValues(int maxParamValues) {
+			this.maxParamValues = maxParamValues;
+		}
+
+		public Paging getPaging() {
+			return paging;
+		}
+
+		public void setPaging(Paging paging) {
+			this.paging = paging;
+		}
+
+		public Cache getCache() {
+			return cache;
+		}
+
+		public void setCache(Cache cache) {
+			this.cache = cache;
+		}
+
+		/**
+		 * Retrieval of all pages of remote prefetch searches instead of only the first one. pageSize, if set, is sent
+		 * as _count on searches that do not specify one. Fetching stops once a search reaches maxEntries entries or
+		 * maxMegabytes of response data; pages addressed by offset are fetched by up to maxThreads threads.
+		 */
+		public static class Paging {
+			private boolean enabled = true;
+			private int pageSize = 0;
+			private int maxEntries = 10000;
+			private long maxMegabytes = 50;
+			private int maxThreads = 4;
+
+			public boolean isEnabled() {
+				return enabled;
+			}
+
+			public void setEnabled(boolean enabled) {
+				this.enabled = enabled;
+			}
+
+			public int getPageSize() {
+				return pageSize;
+			}
+
+			public void setPageSize(int pageSize) {
+				this.pageSize = pageSize;
+			}
+
+			public int getMaxEntries() {
+				return maxEntries;
+			}
+
+			public void setMaxEntries(int maxEntries) {
+				this.maxEntries = maxEntries;
+			}
+
+			public long getMaxMegabytes() {
+				return maxMegabytes;
+			}
+
+			public void setMaxMegabytes(long maxMegabytes) {
+				this.maxMegabytes = maxMegabytes;
+			}
+
+			public int getMaxThreads() {
+				return maxThreads;
+			}
+
+			public void setMaxThreads(int maxThreads) {
+				this.maxThreads = maxThreads;
+			}
+		}
+
+		/**
+		 * Optional cache of prefetch results per patient, query and requesting subject. Entries expire after
+		 * ttlSeconds and are evicted when this server stores a resource in the patient's compartment.
+		 */
+		public static class Cache {
+			private boolean enabled = false;
+			private long ttlSeconds = 60;
+			private long maxSizeMb = 64;
+
+			public boolean isEnabled() {
+				return enabled;
+			}
+
+			public void setEnabled(boolean enabled) {
+				this.enabled = enabled;
+			}
+
+			public long getTtlSeconds() {
+				return ttlSeconds;
+			}
+
+			public void setTtlSeconds(long ttlSeconds) {
+				this.ttlSeconds = ttlSeconds;
+			}
+
+			public long getMaxSizeMb() {
+				return maxSizeMb;
+			}
+
+			public void setMaxSizeMb(long maxSizeMb) {
+				this.maxSizeMb = maxSizeMb;
+			}
+		}
+	}
 }
@@ -7,9 +7,14 @@ import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -22,7 +27,9 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.io.IOException;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig.CDS_HOOKS_OBJECT_MAPPER_FACTORY;
 
@@ -30,6 +37,13 @@ import static org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig.CDS_HO
 public class CdsHooksServlet extends HttpServlet {
 	private static final Logger logger = LoggerFactory.getLogger(CdsHooksServlet.class);
 	private static final long serialVersionUID = 1L;
+	private static final String BATCH_SUFFIX = "/batch";
+	private static final String ASYNC_FAILURE_ATTRIBUTE = CdsHooksServlet.class.getName() + ".asyncFailure";
+	/**
+	 * Time the container waits past a service's deadline before it gives up on the response itself, which only
+	 * happens when the evaluation thread could not complete it.
+	 */
+	private static final long ASYNC_TIMEOUT_GRACE_MILLIS = 5000;
 
 	@Autowired
 	private AppProperties appProperties;
@@ -43,10 +57,20 @@ public class CdsHooksServlet extends HttpServlet {
 	@Autowired
 	RestfulServer restfulServer;
 
+	@Autowired
+	CdsHooksProperties cdsHooksProperties;
+
+	@Autowired
+	CdsServiceEvaluator cdsServiceEvaluator;
+
 	@Autowired
 	@Qualifier(CDS_HOOKS_OBJECT_MAPPER_FACTORY)
 	ObjectMapper objectMapper;
 
+	private final CdsDiscoveryDocumentCache discoveryDocumentCache = new CdsDiscoveryDocumentCache();
+	private ObjectWriter prettyJsonWriter;
+	private ObjectWriter compactJsonWriter;
+
 	protected ProviderConfiguration getProviderConfiguration() {
 		return this.providerConfiguration;
 	}
@@ -70,51 +94,204 @@ public class CdsHooksServlet extends HttpServlet {
 			throw new ServletException("This servlet is not configured to handle GET requests.");
 		}
 		ErrorHandling.setAccessControlHeaders(response, appProperties);
+		CdsDiscoveryDocumentCache.Document discovery = discoveryDocumentCache.get(getServices(), getJsonWriter());
+		response.setHeader("ETag", discovery.etag());
+		if (discovery.matches(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter()
-				.println(new GsonBuilder()
-						.setPrettyPrinting()
-						.create()
-						.toJson(JsonParser.parseString(objectMapper.writeValueAsString(getServices()))));
+		response.setContentLength(discovery.body().length);
+		response.getOutputStream().write(discovery.body());
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		String service = getServiceId(request);
+		if (request.getDispatcherType() == DispatcherType.ASYNC) {
+			// Dispatched back by completeAsync so the failure surfaces like one thrown on the container thread
+			Throwable failure = (Throwable) request.getAttribute(ASYNC_FAILURE_ATTRIBUTE);
+			throw new ServletException("ERROR: Exception in cds-hooks processing.", failure);
+		}
 		try {
 			if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
 				throw new ServletException(String.format(
 						"Invalid content type %s. Please use application/json.", request.getContentType()));
 			}
 			logger.info(request.getRequestURI());
-			String service = request.getPathInfo().replace("/", "");
-
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
-
-			CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
-
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder()
-					.disableHtmlEscaping()
-					.setPrettyPrinting()
-					.create()
-					.toJson(JsonParser.parseString(objectMapper.writeValueAsString(serviceResponseJson)));
-			logger.info(jsonResponse);
-			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
+			if (request.getPathInfo().endsWith(BATCH_SUFFIX)) {
+				doBatch(service, request, response);
+				return;
+			}
+
+			long parseStart = System.nanoTime();
+			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(request.getInputStream(), CdsHooksRequest.class);
+			cdsServiceEvaluator.recordStage(service, CdsServiceEvaluator.STAGE_PARSE, System.nanoTime() - parseStart);
+			logRequestInfo(cdsHooksRequest);
+
+			CompletableFuture<CdsServiceResponseJson> evaluation =
+					cdsServiceEvaluator.evaluate(service, cdsHooksRequest);
+			if (request.isAsyncSupported()) {
+				// Release the container thread while the service is evaluated; the response is completed by the
+				// evaluation thread, or by the deadline
+				AsyncContext asyncContext = request.startAsync(request, response);
+				AtomicBoolean responded = new AtomicBoolean();
+				long deadlineMillis = cdsHooksProperties.getEvaluation().getTimeoutMillis(service);
+				// Without a service deadline the container's default async timeout bounds the request
+				if (deadlineMillis > 0) {
+					asyncContext.setTimeout(deadlineMillis + ASYNC_TIMEOUT_GRACE_MILLIS);
+				}
+				asyncContext.addListener(new AsyncListener() {
+					@Override
+					public void onTimeout(AsyncEvent theEvent) throws IOException {
+						if (responded.compareAndSet(false, true)) {
+							timeOutAsync(asyncContext, service);
+						}
+					}
+
+					@Override
+					public void onComplete(AsyncEvent theEvent) {}
+
+					@Override
+					public void onError(AsyncEvent theEvent) {}
+
+					@Override
+					public void onStartAsync(AsyncEvent theEvent) {}
+				});
+				evaluation.whenComplete((serviceResponseJson, error) -> {
+					if (responded.compareAndSet(false, true)) {
+						completeAsync(asyncContext, service, serviceResponseJson, error);
+					}
+				});
+				return;
+			}
+
+			CdsServiceResponseJson serviceResponseJson;
+			try {
+				serviceResponseJson = evaluation.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+			writeServiceResponse(response, service, serviceResponseJson);
 		} catch (BaseServerResponseException e) {
+			cdsServiceEvaluator.recordError(service, e);
 			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
 			logger.error(e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServletException("ERROR: Interrupted during cds-hooks processing.", e);
 		} catch (Exception e) {
+			cdsServiceEvaluator.recordError(service, e);
 			logger.error(e.toString());
 			throw new ServletException("ERROR: Exception in cds-hooks processing.", e);
 		}
 	}
 
-	private void logRequestInfo(CdsServiceRequestJson request, String jsonRequest) {
-		logger.info(jsonRequest);
+	/**
+	 * Calls the service for each hook request in the body, a JSON array or a sequence of JSON objects, and streams
+	 * one {@link CdsBatchResultJson} per request back as NDJSON in the order the calls complete.
+	 */
+	private void doBatch(String service, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, InterruptedException {
+		response.setContentType("application/x-ndjson;charset=UTF-8");
+		CdsServiceBatch batch = new CdsServiceBatch(
+				cdsServiceEvaluator,
+				getCompactJsonWriter(),
+				cdsHooksProperties.getEvaluation().getBatchConcurrency());
+		try (MappingIterator<CdsHooksRequest> requests =
+				objectMapper.readerFor(CdsHooksRequest.class).readValues(request.getInputStream())) {
+			int count = batch.run(service, requests, response.getOutputStream());
+			logger.info("cds-hooks batch for {} evaluated {} hook requests", service, count);
+		}
+	}
+
+	private void completeAsync(
+			AsyncContext theAsyncContext,
+			String theServiceId,
+			CdsServiceResponseJson theResponseJson,
+			Throwable theError) {
+		HttpServletResponse response = (HttpServletResponse) theAsyncContext.getResponse();
+		Throwable error = theError instanceof CompletionException ? theError.getCause() : theError;
+		if (error != null && !(error instanceof BaseServerResponseException)) {
+			cdsServiceEvaluator.recordError(theServiceId, error);
+			logger.error(error.toString());
+			theAsyncContext.getRequest().setAttribute(ASYNC_FAILURE_ATTRIBUTE, error);
+			theAsyncContext.dispatch();
+			return;
+		}
+		try {
+			if (error == null) {
+				writeServiceResponse(response, theServiceId, theResponseJson);
+				return;
+			}
+			cdsServiceEvaluator.recordError(theServiceId, error);
+			ErrorHandling.handleError(
+					response, "ERROR: Exception connecting to remote server.", (Exception) error, appProperties);
+			logger.error(error.toString());
+		} catch (IOException e) {
+			logger.error("Failed to write cds-hooks response", e);
+		} finally {
+			theAsyncContext.complete();
+		}
+	}
+
+	private void timeOutAsync(AsyncContext theAsyncContext, String theServiceId) throws IOException {
+		logger.error("cds-hooks service {} left its response incomplete past the deadline", theServiceId);
+		HttpServletResponse response = (HttpServletResponse) theAsyncContext.getResponse();
+		try {
+			ErrorHandling.setAccessControlHeaders(response, appProperties);
+			response.sendError(
+					HttpServletResponse.SC_SERVICE_UNAVAILABLE, "ERROR: cds-hooks service did not respond in time.");
+		} finally {
+			theAsyncContext.complete();
+		}
+	}
+
+	private void writeServiceResponse(
+			HttpServletResponse response, String service, CdsServiceResponseJson serviceResponseJson)
+			throws IOException {
+		long start = System.nanoTime();
+		response.setContentType("text/json;charset=UTF-8");
+		writeJson(response, serviceResponseJson);
+		cdsServiceEvaluator.recordStage(service, CdsServiceEvaluator.STAGE_ENCODE, System.nanoTime() - start);
+	}
+
+	/**
+	 * Serializes straight to the response stream, indented unless hapi.fhir.cdshooks.prettyPrint is turned off.
+	 */
+	private void writeJson(HttpServletResponse response, Object json) throws IOException {
+		ObjectWriter writer = getJsonWriter();
+		writer.writeValue(response.getOutputStream(), json);
+		if (logger.isDebugEnabled()) {
+			logger.debug(writer.writeValueAsString(json));
+		}
+	}
+
+	private ObjectWriter getJsonWriter() {
+		if (cdsHooksProperties.isPrettyPrint()) {
+			if (prettyJsonWriter == null) {
+				prettyJsonWriter = objectMapper.writer(SerializationFeature.INDENT_OUTPUT);
+			}
+			return prettyJsonWriter;
+		}
+		return getCompactJsonWriter();
+	}
+
+	private ObjectWriter getCompactJsonWriter() {
+		if (compactJsonWriter == null) {
+			compactJsonWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+		}
+		return compactJsonWriter;
+	}
+
+	private void logRequestInfo(CdsServiceRequestJson request) throws IOException {
+		if (logger.isDebugEnabled()) {
+			logger.debug(objectMapper.writeValueAsString(request));
+		}
 		logger.info("cds-hooks hook instance: {}", request.getHookInstance());
 		logger.info("cds-hooks local server address: {}", appProperties.getServer_address());
 		logger.info("cds-hooks fhir server address: {}", request.getFhirServer());
@@ -123,6 +300,20 @@ public class CdsHooksServlet extends HttpServlet {
 				this.getProviderConfiguration().getCqlLoggingEnabled());
 	}
 
+	/**
+	 * The service id from /cds-services/{id} or /cds-services/{id}/batch.
+	 */
+	private static String getServiceId(HttpServletRequest request) {
+		String path = request.getPathInfo();
+		if (path == null) {
+			return "";
+		}
+		if (path.endsWith(BATCH_SUFFIX)) {
+			path = path.substring(0, path.length() - BATCH_SUFFIX.length());
+		}
+		return path.replace("/", "");
+	}
+
 	private CdsServicesJson getServices() {
 		return cdsServiceRegistry.getCdsServicesJson();
 	}
@@ -0,0 +1,184 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Keeps one FHIR client per remote fhirServer base, all sharing a single pooled keep-alive HTTP connection
+ * manager. Clients carry no authorization state, so callers must send the bearer token with each request.
+ */
+public class CdsPrefetchClientPool implements MeterBinder, AutoCloseable {
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final ApacheRestfulClientFactory clientFactory;
+	private final Map<String, IGenericClient> clients;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public CdsPrefetchClientPool(FhirContext theFhirContext, CdsHooksProperties.Prefetch theProperties) {
+		IRestfulClientFactory contextFactory = theFhirContext.getRestfulClientFactory();
+
+		connectionManager =
+				new PoolingHttpClientConnectionManager(contextFactory.getConnectionTimeToLive(), TimeUnit.MILLISECONDS);
+		connectionManager.setMaxTotal(theProperties.getMaxConnections());
+		connectionManager.setDefaultMaxPerRoute(theProperties.getMaxConnectionsPerRoute());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setSocketTimeout(contextFactory.getSocketTimeout())
+				.setConnectTimeout(contextFactory.getConnectTimeout())
+				.setConnectionRequestTimeout(contextFactory.getConnectionRequestTimeout())
+				.build();
+		httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.disableCookieManagement()
+				.addInterceptorLast(CdsPrefetchClientPool::countResponseBytes)
+				.build();
+
+		// Clients create their requests through the restful client factory of their FhirContext rather than the
+		// factory that built them, so the pooled clients need a context of their own, parsing as the application's
+		FhirContext clientContext = new FhirContext(theFhirContext.getVersion().getVersion());
+		clientContext.setParserOptions(theFhirContext.getParserOptions());
+		clientContext.setParserErrorHandler(theFhirContext.getParserErrorHandler());
+		clientContext.setPerformanceOptions(theFhirContext.getPerformanceOptions());
+		clientContext.setNarrativeGenerator(theFhirContext.getNarrativeGenerator());
+		clientContext.setAddProfileTagWhenEncoding(theFhirContext.getAddProfileTagWhenEncoding());
+		clientContext.setLocalizer(theFhirContext.getLocalizer());
+		if (theFhirContext.getValidationSupport() != null) {
+			clientContext.setValidationSupport(theFhirContext.getValidationSupport());
+		}
+		clientFactory = new ApacheRestfulClientFactory(clientContext);
+		clientFactory.setServerValidationMode(contextFactory.getServerValidationMode());
+		clientFactory.setHttpClient(httpClient);
+		clientContext.setRestfulClientFactory(clientFactory);
+
+		int maxClients = theProperties.getMaxClients();
+		clients = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, IGenericClient> theEldest) {
+				return size() > maxClients;
+			}
+		};
+	}
+
+	/**
+	 * Wraps the response entity so that the bytes read from it are added to the stats of the prefetch item being
+	 * fetched on this thread.
+	 */
+	private static void countResponseBytes(HttpResponse theResponse, HttpContext theContext) {
+		CdsPrefetchStats stats = CdsPrefetchStats.current();
+		HttpEntity entity = theResponse.getEntity();
+		if (stats == null || entity == null) {
+			return;
+		}
+		theResponse.setEntity(new HttpEntityWrapper(entity) {
+			@Override
+			public InputStream getContent() throws IOException {
+				return new FilterInputStream(super.getContent()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.read();
+						if (b >= 0) {
+							stats.addBytes(1);
+						}
+						return b;
+					}
+
+					@Override
+					public int read(byte[] theBuffer, int theOffset, int theLength) throws IOException {
+						int count = super.read(theBuffer, theOffset, theLength);
+						if (count > 0) {
+							stats.addBytes(count);
+						}
+						return count;
+					}
+				};
+			}
+		});
+	}
+
+	public IGenericClient getClient(String theFhirServerBase) {
+		String key = StringUtils.removeEnd(theFhirServerBase, "/");
+		synchronized (clients) {
+			IGenericClient client = clients.get(key);
+			if (client != null) {
+				hits.incrementAndGet();
+				return client;
+			}
+			misses.incrementAndGet();
+			client = clientFactory.newGenericClient(key);
+			clients.put(key, client);
+			return client;
+		}
+	}
+
+	public int getCachedClientCount() {
+		synchronized (clients) {
+			return clients.size();
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		Gauge.builder("cds.prefetch.clients", this, CdsPrefetchClientPool::getCachedClientCount)
+				.description("FHIR clients cached by fhirServer base")
+				.register(theRegistry);
+		FunctionCounter.builder("cds.prefetch.clients.requests", hits, AtomicLong::get)
+				.tag("result", "hit")
+				.register(theRegistry);
+		FunctionCounter.builder("cds.prefetch.clients.requests", misses, AtomicLong::get)
+				.tag("result", "miss")
+				.register(theRegistry);
+
+		registerPoolGauge(theRegistry, "leased", PoolStats::getLeased);
+		registerPoolGauge(theRegistry, "available", PoolStats::getAvailable);
+		registerPoolGauge(theRegistry, "pending", PoolStats::getPending);
+		registerPoolGauge(theRegistry, "max", PoolStats::getMax);
+	}
+
+	private void registerPoolGauge(MeterRegistry theRegistry, String theState, ToDoubleFunction<PoolStats> theValue) {
+		Gauge.builder(
+						"cds.prefetch.connections",
+						connectionManager,
+						manager -> theValue.applyAsDouble(manager.getTotalStats()))
+				.tag("state", theState)
+				.description("Pooled HTTP connections used for cds-hooks prefetch")
+				.register(theRegistry);
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (clients) {
+			clients.clear();
+		}
+		httpClient.close();
+	}
+}
@@ -0,0 +1,202 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IGetPageTyped;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Completes a prefetch search by fetching the pages after the first one and appending their entries to it. When
+ * the server pages by offset (HAPI's _getpagesoffset or _offset) and reports a total, all remaining pages are
+ * requested concurrently; otherwise next links are followed one after the other. Fetching stops at the configured
+ * entry and size caps, in which case the bundle is returned truncated.
+ */
+public class CdsPrefetchPager {
+	private static final Logger logger = LoggerFactory.getLogger(CdsPrefetchPager.class);
+
+	private static final String BEARER_PREFIX = "Bearer ";
+	private static final Pattern OFFSET_PARAM = Pattern.compile("([?&](?:_getpagesoffset|_offset)=)(\\d+)");
+	private static final Pattern COUNT_PARAM = Pattern.compile("[?&]_count=(\\d+)");
+
+	private final FhirContext fhirContext;
+	private final ExecutorService pageExecutor;
+	private final int pageSize;
+	private final int maxEntries;
+	private final long maxBytes;
+
+	public CdsPrefetchPager(
+			FhirContext theFhirContext,
+			CdsHooksProperties.Prefetch.Paging theProperties,
+			ExecutorService thePageExecutor) {
+		fhirContext = theFhirContext;
+		pageExecutor = thePageExecutor;
+		pageSize = theProperties.getPageSize();
+		maxEntries = theProperties.getMaxEntries();
+		maxBytes = theProperties.getMaxMegabytes() * 1024L * 1024L;
+	}
+
+	/**
+	 * Adds the _count hint to a search that does not set its own page size.
+	 */
+	public void addPageSize(Map<String, List<String>> theSearchParams) {
+		if (pageSize > 0 && !theSearchParams.containsKey(Constants.PARAM_COUNT)) {
+			theSearchParams.put(Constants.PARAM_COUNT, List.of(Integer.toString(pageSize)));
+		}
+	}
+
+	public <T extends IBaseBundle> T fetchRemainingPages(
+			IGenericClient theClient, T theFirstPage, String theAccessToken) {
+		String next = BundleUtil.getLinkUrlOfType(fhirContext, theFirstPage, "next");
+		if (next == null) {
+			return theFirstPage;
+		}
+
+		BaseRuntimeChildDefinition entryChild =
+				fhirContext.getResourceDefinition(theFirstPage).getChildByName("entry");
+		List<IBase> entries = new ArrayList<>(entryChild.getAccessor().getValues(theFirstPage));
+		Integer total = BundleUtil.getTotal(fhirContext, theFirstPage);
+		Matcher offset = OFFSET_PARAM.matcher(next);
+
+		if (total != null && offset.find() && pageStep(next, offset) > 0) {
+			fetchOffsetPages(theClient, theFirstPage, theAccessToken, next, offset, total, entryChild, entries);
+		} else {
+			followNextLinks(theClient, theFirstPage, theAccessToken, entryChild, entries);
+		}
+
+		if (entries.size() > maxEntries) {
+			entries.subList(maxEntries, entries.size()).clear();
+		}
+		entryChild.getMutator().setValue(theFirstPage, null);
+		entries.forEach(entry -> entryChild.getMutator().addValue(theFirstPage, entry));
+		removeNextLink(theFirstPage);
+		return theFirstPage;
+	}
+
+	private <T extends IBaseBundle> void followNextLinks(
+			IGenericClient theClient,
+			T theFirstPage,
+			String theAccessToken,
+			BaseRuntimeChildDefinition theEntryChild,
+			List<IBase> theEntries) {
+		T page = theFirstPage;
+		while (BundleUtil.getLinkUrlOfType(fhirContext, page, "next") != null) {
+			if (capReached(theEntries.size())) {
+				return;
+			}
+			page = execute(theClient.loadPage().next(page), theAccessToken);
+			theEntries.addAll(theEntryChild.getAccessor().getValues(page));
+		}
+	}
+
+	private <T extends IBaseBundle> void fetchOffsetPages(
+			IGenericClient theClient,
+			T theFirstPage,
+			String theAccessToken,
+			String theNextUrl,
+			Matcher theOffset,
+			int theTotal,
+			BaseRuntimeChildDefinition theEntryChild,
+			List<IBase> theEntries) {
+		int firstOffset = Integer.parseInt(theOffset.group(2));
+		int step = pageStep(theNextUrl, theOffset);
+		int limit = Math.min(theTotal, maxEntries);
+		CdsPrefetchStats stats = CdsPrefetchStats.current();
+
+		List<Future<T>> pages = new ArrayList<>();
+		try {
+			for (int start = firstOffset; start < limit; start += step) {
+				String url =
+						theNextUrl.substring(0, theOffset.start(2)) + start + theNextUrl.substring(theOffset.end(2));
+				pages.add(pageExecutor.submit(() -> {
+					IGetPageTyped<T> page =
+							theClient.loadPage().byUrl(url).andReturnBundle(getBundleClass(theFirstPage));
+					return stats == null
+							? execute(page, theAccessToken)
+							: stats.callWith(() -> execute(page, theAccessToken));
+				}));
+			}
+			for (Future<T> page : pages) {
+				if (capReached(theEntries.size())) {
+					return;
+				}
+				theEntries.addAll(theEntryChild.getAccessor().getValues(page.get()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while fetching cds-hooks prefetch pages", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new InternalErrorException("Failed to fetch cds-hooks prefetch page", e.getCause());
+		} finally {
+			pages.forEach(page -> page.cancel(true));
+		}
+	}
+
+	/**
+	 * Included resources are not part of the page size, so the _count the server put in the link is preferred over
+	 * the number of entries on the first page.
+	 */
+	private static int pageStep(String theNextUrl, Matcher theOffset) {
+		Matcher count = COUNT_PARAM.matcher(theNextUrl);
+		return count.find() ? Integer.parseInt(count.group(1)) : Integer.parseInt(theOffset.group(2));
+	}
+
+	private boolean capReached(int theEntryCount) {
+		CdsPrefetchStats stats = CdsPrefetchStats.current();
+		if (theEntryCount >= maxEntries || (stats != null && stats.getBytes() >= maxBytes)) {
+			logger.warn(
+					"cds-hooks prefetch search truncated at {} entries, limits are {} entries and {} bytes",
+					theEntryCount,
+					maxEntries,
+					maxBytes);
+			return true;
+		}
+		return false;
+	}
+
+	private <T extends IBaseBundle> T execute(IGetPageTyped<T> thePage, String theAccessToken) {
+		if (theAccessToken != null) {
+			thePage.withAdditionalHeader(Constants.HEADER_AUTHORIZATION, BEARER_PREFIX + theAccessToken);
+		}
+		T page = thePage.execute();
+		CdsPrefetchStats stats = CdsPrefetchStats.current();
+		if (stats != null) {
+			stats.addPage();
+		}
+		return page;
+	}
+
+	private void removeNextLink(IBaseBundle theBundle) {
+		FhirTerser terser = fhirContext.newTerser();
+		BaseRuntimeChildDefinition linkChild =
+				fhirContext.getResourceDefinition(theBundle).getChildByName("link");
+		List<IBase> links = new ArrayList<>(linkChild.getAccessor().getValues(theBundle));
+		links.removeIf(link -> "next".equals(terser.getSinglePrimitiveValueOrNull(link, "relation")));
+		linkChild.getMutator().setValue(theBundle, null);
+		links.forEach(link -> linkChild.getMutator().addValue(theBundle, link));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends IBaseBundle> Class<T> getBundleClass(T theBundle) {
+		return (Class<T>) theBundle.getClass();
+	}
+}
@@ -0,0 +1,222 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.UrlUtil;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Splits prefetch searches whose longest OR-list parameter (typically a code list) would exceed the configured
+ * url length or value count into several searches over slices of that list, and merges the resulting searchset
+ * bundles back into one. Only token and reference search parameters of the searched resource type are split, as
+ * the union of their slices is what the whole list matches; result parameters like _sort or _elements never are.
+ */
+public class CdsPrefetchQuerySplitter {
+
+	// Commas escaped with a backslash belong to the value itself
+	private static final Pattern VALUE_SEPARATOR = Pattern.compile("(?<!\\\\),");
+
+	private final FhirContext fhirContext;
+	private final int maxUrlLength;
+	private final int maxParamValues;
+
+	public CdsPrefetchQuerySplitter(FhirContext theFhirContext, CdsHooksProperties.Prefetch theProperties) {
+		fhirContext = theFhirContext;
+		maxUrlLength = theProperties.getMaxUrlLength();
+		maxParamValues = theProperties.getMaxParamValues();
+	}
+
+	/**
+	 * Returns the searches to run for the given prefetch url. Reads and searches that fit the budget are returned
+	 * unchanged as the only element.
+	 *
+	 * @param theUrl            the resolved prefetch url, relative to the fhirServer
+	 * @param theFhirServerBase the base the url will be sent to, counted against the url length; may be null
+	 */
+	public List<String> split(String theUrl, String theFhirServerBase) {
+		int queryStart = theUrl.indexOf('?');
+		if (queryStart < 0) {
+			return List.of(theUrl);
+		}
+
+		RuntimeResourceDefinition resourceDefinition = resourceDefinition(theUrl.substring(0, queryStart));
+		if (resourceDefinition == null) {
+			return List.of(theUrl);
+		}
+		String[] params = theUrl.substring(queryStart + 1).split("&");
+		int longest = -1;
+		String[] longestValues = null;
+		for (int i = 0; i < params.length; i++) {
+			int equals = params[i].indexOf('=');
+			if (equals < 0 || !isOrList(resourceDefinition, params[i].substring(0, equals))) {
+				continue;
+			}
+			String[] values = VALUE_SEPARATOR.split(params[i].substring(equals + 1));
+			if (values.length > 1 && (longestValues == null || values.length > longestValues.length)) {
+				longest = i;
+				longestValues = values;
+			}
+		}
+
+		int baseLength = theFhirServerBase == null ? 0 : theFhirServerBase.length() + 1;
+		if (longestValues == null
+				|| (encodedLength(theUrl) + baseLength <= maxUrlLength && longestValues.length <= maxParamValues)) {
+			return List.of(theUrl);
+		}
+
+		String name = params[longest].substring(0, params[longest].indexOf('=') + 1);
+		params[longest] = name;
+		String prefix = theUrl.substring(0, queryStart + 1) + String.join("&", params);
+		// Everything except the split values themselves
+		int fixedLength = encodedLength(prefix) + baseLength;
+		int separatorLength = encodedLength(",");
+
+		List<String> chunks = new ArrayList<>();
+		StringBuilder chunk = new StringBuilder();
+		int chunkLength = fixedLength;
+		int chunkValues = 0;
+		for (String value : longestValues) {
+			int valueLength = encodedLength(value) + (chunkValues > 0 ? separatorLength : 0);
+			if (chunkValues > 0 && (chunkLength + valueLength > maxUrlLength || chunkValues >= maxParamValues)) {
+				chunks.add(chunk.toString());
+				chunk.setLength(0);
+				chunkLength = fixedLength;
+				chunkValues = 0;
+				valueLength = encodedLength(value);
+			}
+			if (chunkValues > 0) {
+				chunk.append(',');
+			}
+			chunk.append(value);
+			chunkLength += valueLength;
+			chunkValues++;
+		}
+		chunks.add(chunk.toString());
+
+		String before = theUrl.substring(0, queryStart + 1)
+				+ String.join("&", List.of(params).subList(0, longest));
+		String after = String.join("&", List.of(params).subList(longest + 1, params.length));
+		List<String> urls = new ArrayList<>(chunks.size());
+		for (String values : chunks) {
+			StringBuilder url = new StringBuilder(before);
+			if (longest > 0) {
+				url.append('&');
+			}
+			url.append(name).append(values);
+			if (!after.isEmpty()) {
+				url.append('&').append(after);
+			}
+			urls.add(url.toString());
+		}
+		return urls;
+	}
+
+	/**
+	 * Combines the searchset bundles returned for the chunks of one split search. Entries are appended in chunk
+	 * order and a resource returned by more than one chunk, e.g. through _include, is kept once. The first bundle
+	 * is reused as the result and its total is recomputed from the merged match entries.
+	 */
+	public IBaseResource merge(List<IBaseResource> theChunkResults) {
+		IBaseBundle merged = null;
+		for (IBaseResource result : theChunkResults) {
+			if (result instanceof IBaseBundle) {
+				merged = (IBaseBundle) result;
+				break;
+			}
+		}
+		if (merged == null) {
+			return theChunkResults.isEmpty() ? null : theChunkResults.get(0);
+		}
+
+		FhirTerser terser = fhirContext.newTerser();
+		BaseRuntimeChildDefinition entryChild =
+				fhirContext.getResourceDefinition(merged).getChildByName("entry");
+		Set<String> seen = new HashSet<>();
+		List<IBase> entries = new ArrayList<>();
+		for (IBaseResource result : theChunkResults) {
+			if (!(result instanceof IBaseBundle)) {
+				continue;
+			}
+			for (IBase entry : entryChild.getAccessor().getValues(result)) {
+				IBaseResource resource = terser.getSingleValueOrNull(entry, "resource", IBaseResource.class);
+				if (resource == null
+						|| resource.getIdElement().getIdPart() == null
+						|| seen.add(fhirContext.getResourceType(resource) + "/"
+								+ resource.getIdElement().getIdPart())) {
+					entries.add(entry);
+				}
+			}
+		}
+
+		entryChild.getMutator().setValue(merged, null);
+		int matches = 0;
+		for (IBase entry : entries) {
+			entryChild.getMutator().addValue(merged, entry);
+			String mode = terser.getSinglePrimitiveValueOrNull(entry, "search.mode");
+			if (mode == null || "match".equals(mode)) {
+				matches++;
+			}
+		}
+		if (BundleUtil.getTotal(fhirContext, merged) != null) {
+			BundleUtil.setTotal(fhirContext, merged, matches);
+		}
+		return merged;
+	}
+
+	private RuntimeResourceDefinition resourceDefinition(String thePath) {
+		String resourceType = thePath.startsWith("/") ? thePath.substring(1) : thePath;
+		if (resourceType.isEmpty() || resourceType.contains("/")) {
+			return null;
+		}
+		try {
+			return fhirContext.getResourceDefinition(resourceType);
+		} catch (DataFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether the comma-separated values of the parameter are alternatives, so each slice can be searched on its own.
+	 * Chained parameters and modifiers such as :not change that, apart from the resource type of a reference.
+	 */
+	private static boolean isOrList(RuntimeResourceDefinition theResourceDefinition, String theName) {
+		String name = UrlUtil.unescape(theName);
+		String modifier = null;
+		int colon = name.indexOf(':');
+		if (colon >= 0) {
+			modifier = name.substring(colon + 1);
+			name = name.substring(0, colon);
+		}
+		if (name.contains(".")) {
+			return false;
+		}
+		RuntimeSearchParam searchParam = theResourceDefinition.getSearchParam(name);
+		if (searchParam == null) {
+			return false;
+		}
+		RestSearchParameterTypeEnum type = searchParam.getParamType();
+		if (type == RestSearchParameterTypeEnum.TOKEN) {
+			return modifier == null;
+		}
+		return type == RestSearchParameterTypeEnum.REFERENCE
+				&& (modifier == null || (!modifier.isEmpty() && Character.isUpperCase(modifier.charAt(0))));
+	}
+
+	private static int encodedLength(String theValue) {
+		return UrlUtil.escapeUrlParam(theValue).length();
+	}
+}
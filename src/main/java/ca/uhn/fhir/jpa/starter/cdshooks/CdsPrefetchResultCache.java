@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of prefetch results keyed by patient, fhirServer, resolved query url and the requesting subject.
+ * Entries expire after a fixed time and are evicted early when this server stores a resource in the patient's
+ * compartment. Results are kept in their encoded form so every hit hands out a fresh copy.
+ * <p>
+ * A result loaded while a write to its patient's compartment is stored may predate the write. Every invalidation
+ * bumps a generation counter of the patient's stripe, and a result whose stripe moved on during its load is dropped
+ * again instead of being served until it expires. Writes are seen before they commit, so a load starting between
+ * then and the commit still reads the old data; the compartment is invalidated once more after the commit.
+ */
+@Interceptor
+public class CdsPrefetchResultCache implements MeterBinder {
+
+	private static final int GENERATION_STRIPES = 256;
+
+	public record Key(String patientId, String fhirServer, String url, String subject) {}
+
+	private final FhirContext fhirContext;
+	private final Cache<Key, String> cache;
+	private final Map<String, Set<Key>> keysByPatient = new ConcurrentHashMap<>();
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+	private final AtomicInteger loading = new AtomicInteger();
+
+	public CdsPrefetchResultCache(FhirContext theFhirContext, CdsHooksProperties.Prefetch.Cache theProperties) {
+		fhirContext = theFhirContext;
+		cache = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getMaxSizeMb() * 1024L * 1024L)
+				// Strings are UTF-16 on the heap
+				.<Key, String>weigher((key, value) -> value.length() * 2)
+				.expireAfterWrite(Duration.ofSeconds(theProperties.getTtlSeconds()))
+				.executor(Runnable::run)
+				.removalListener((Key key, String value, RemovalCause cause) -> {
+					if (key != null && cause.wasEvicted()) {
+						unindex(key);
+					}
+				})
+				.recordStats()
+				.build();
+	}
+
+	public IBaseResource get(Key theKey, Supplier<IBaseResource> theLoader) {
+		String encoded = cache.getIfPresent(theKey);
+		if (encoded != null) {
+			return fhirContext.newJsonParser().parseResource(encoded);
+		}
+
+		int stripe = stripe(theKey.patientId());
+		long generation = generations.get(stripe);
+		IBaseResource resource;
+		loading.incrementAndGet();
+		try {
+			resource = theLoader.get();
+		} finally {
+			loading.decrementAndGet();
+		}
+		if (resource != null && generations.get(stripe) == generation) {
+			keysByPatient.compute(theKey.patientId(), (id, keys) -> {
+				Set<Key> indexed = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+				indexed.add(theKey);
+				return indexed;
+			});
+			cache.put(theKey, fhirContext.newJsonParser().encodeResourceToString(resource));
+			// An invalidation between the check above and the put may have missed the entry
+			if (generations.get(stripe) != generation) {
+				cache.invalidate(theKey);
+				unindex(theKey);
+			}
+		}
+		return resource;
+	}
+
+	public void invalidatePatient(String thePatientId) {
+		// Bumped before the entries are removed, so a load running concurrently sees it after its put at the latest
+		generations.incrementAndGet(stripe(thePatientId));
+		Set<Key> keys = keysByPatient.remove(thePatientId);
+		if (keys != null) {
+			cache.invalidateAll(keys);
+		}
+	}
+
+	private void unindex(Key theKey) {
+		keysByPatient.computeIfPresent(theKey.patientId(), (id, keys) -> {
+			keys.remove(theKey);
+			return keys.isEmpty() ? null : keys;
+		});
+	}
+
+	private static int stripe(String thePatientId) {
+		return Math.floorMod(Objects.hashCode(thePatientId), GENERATION_STRIPES);
+	}
+
+	public long getIndexedPatientCount() {
+		return keysByPatient.size();
+	}
+
+	public long getEntryCount() {
+		return cache.estimatedSize();
+	}
+
+	public long getWeightInBytes() {
+		return cache.policy()
+				.eviction()
+				.map(eviction -> eviction.weightedSize().orElse(0L))
+				.orElse(0L);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidateCompartmentOf(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		invalidateCompartmentOf(theOldResource);
+		invalidateCompartmentOf(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidateCompartmentOf(theResource);
+	}
+
+	private void invalidateCompartmentOf(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+		invalidateCompartmentNow(theResource);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					invalidateCompartmentNow(theResource);
+				}
+			});
+		}
+	}
+
+	private void invalidateCompartmentNow(IBaseResource theResource) {
+		// With nothing cached and nothing loading there is no result the write could make stale
+		if (keysByPatient.isEmpty() && loading.get() == 0) {
+			return;
+		}
+		Set<String> patientIds = new HashSet<>();
+		if ("Patient".equals(fhirContext.getResourceType(theResource))) {
+			patientIds.add(theResource.getIdElement().getIdPart());
+		}
+		for (IIdType owner :
+				fhirContext.newTerser().getCompartmentOwnersForResource("Patient", theResource, Set.of())) {
+			patientIds.add(owner.getIdPart());
+		}
+		patientIds.forEach(this::invalidatePatient);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		CaffeineCacheMetrics.monitor(theRegistry, cache, "cds.prefetch.results");
+		Gauge.builder("cds.prefetch.results.memory", this, CdsPrefetchResultCache::getWeightInBytes)
+				.description("Estimated heap used by cached prefetch results")
+				.baseUnit("bytes")
+				.register(theRegistry);
+	}
+}
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Pages, response bytes and elapsed time of one prefetch item. While a query runs its stats are bound to the fetching
+ * thread, so that the HTTP layer in {@link CdsPrefetchClientPool} can count into them without knowing the item.
+ */
+public class CdsPrefetchStats {
+
+	private static final ThreadLocal<CdsPrefetchStats> CURRENT = new ThreadLocal<>();
+
+	private final LongAdder pages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final long startNanos = System.nanoTime();
+	private final AtomicLong endNanos = new AtomicLong();
+
+	/**
+	 * @return the stats bound to the calling thread, or null outside of a prefetch query
+	 */
+	public static CdsPrefetchStats current() {
+		return CURRENT.get();
+	}
+
+	public <T> T callWith(Supplier<T> theAction) {
+		CdsPrefetchStats previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			return theAction.get();
+		} finally {
+			endNanos.accumulateAndGet(System.nanoTime(), Math::max);
+			if (previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+
+	public void addPage() {
+		pages.increment();
+	}
+
+	public void addBytes(long theBytes) {
+		bytes.add(theBytes);
+	}
+
+	public long getPages() {
+		return pages.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * @return the time from creating these stats until the last query bound to them returned, or until now if none
+	 * has returned yet
+	 */
+	public long getElapsedNanos() {
+		long end = endNanos.get();
+		return (end == 0 ? System.nanoTime() : end) - startNanos;
+	}
+}
@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A prefetch template split once into its literal text and its {{token}} slots, so that rendering it for a hook
+ * call is a single copy of each part instead of a chain of String.replace calls over the whole template.
+ */
+public final class CdsPrefetchTemplate {
+
+	private static final String TOKEN_START = "{{";
+	private static final String TOKEN_END = "}}";
+
+	private final String template;
+	// literals[i] precedes tokens[i]; the last literal follows the last token
+	private final String[] literals;
+	private final String[] tokens;
+
+	private CdsPrefetchTemplate(String theTemplate, List<String> theLiterals, List<String> theTokens) {
+		template = theTemplate;
+		literals = theLiterals.toArray(new String[0]);
+		tokens = theTokens.toArray(new String[0]);
+	}
+
+	public static CdsPrefetchTemplate compile(String theTemplate) {
+		List<String> literals = new ArrayList<>();
+		List<String> tokens = new ArrayList<>();
+		int position = 0;
+		int start;
+		while ((start = theTemplate.indexOf(TOKEN_START, position)) >= 0) {
+			int end = theTemplate.indexOf(TOKEN_END, start + TOKEN_START.length());
+			if (end < 0) {
+				break;
+			}
+			literals.add(theTemplate.substring(position, start));
+			tokens.add(theTemplate.substring(start + TOKEN_START.length(), end).trim());
+			position = end + TOKEN_END.length();
+		}
+		literals.add(theTemplate.substring(position));
+		return new CdsPrefetchTemplate(theTemplate, literals, tokens);
+	}
+
+	/**
+	 * Renders the template with the given token values, e.g. "context.patientId". Tokens without a value are kept
+	 * as they appear in the template.
+	 */
+	public String render(Map<String, String> theValues) {
+		if (tokens.length == 0) {
+			return literals[0];
+		}
+		// String.join sizes its result up front and copies each part once, unlike a StringBuilder and toString
+		String[] parts = new String[literals.length + tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			String value = theValues.get(tokens[i]);
+			parts[2 * i] = literals[i];
+			parts[2 * i + 1] = value != null ? value : TOKEN_START + tokens[i] + TOKEN_END;
+		}
+		parts[parts.length - 1] = literals[tokens.length];
+		return String.join("", parts);
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+}
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Calls one service for each hook request of a batch and streams a {@link CdsBatchResultJson} line per request as
+ * soon as its call completes. Requests are only read from the iterator once one of the maxConcurrency call slots
+ * is free, so neither the pending requests nor the finished cards of a sweep are held in memory.
+ */
+public class CdsServiceBatch {
+	private static final Logger logger = LoggerFactory.getLogger(CdsServiceBatch.class);
+
+	private final CdsServiceEvaluator evaluator;
+	private final ObjectWriter writer;
+	private final int maxConcurrency;
+
+	public CdsServiceBatch(CdsServiceEvaluator theEvaluator, ObjectWriter theWriter, int theMaxConcurrency) {
+		evaluator = theEvaluator;
+		writer = theWriter;
+		maxConcurrency = Math.max(1, theMaxConcurrency);
+	}
+
+	/**
+	 * @return the number of requests that were evaluated
+	 * @throws IOException if writing to the output failed, in which case the remaining requests are not evaluated
+	 */
+	public int run(String theServiceId, Iterator<? extends CdsServiceRequestJson> theRequests, OutputStream theOut)
+			throws IOException, InterruptedException {
+		Semaphore slots = new Semaphore(maxConcurrency);
+		AtomicReference<IOException> writeFailure = new AtomicReference<>();
+		int count = 0;
+		try {
+			while (writeFailure.get() == null && theRequests.hasNext()) {
+				slots.acquire();
+				try {
+					long parseStart = System.nanoTime();
+					CdsServiceRequestJson request = theRequests.next();
+					evaluator.recordStage(
+							theServiceId, CdsServiceEvaluator.STAGE_PARSE, System.nanoTime() - parseStart);
+					evaluator.evaluate(theServiceId, request).whenComplete((response, error) -> {
+						try {
+							write(theServiceId, theOut, newResult(theServiceId, request, response, error));
+						} catch (IOException e) {
+							writeFailure.compareAndSet(null, e);
+						} finally {
+							slots.release();
+						}
+					});
+				} catch (RuntimeException e) {
+					slots.release();
+					throw e;
+				}
+				count++;
+			}
+		} finally {
+			// Wait for the calls still running; their lines belong to this response
+			slots.acquireUninterruptibly(maxConcurrency);
+		}
+		if (writeFailure.get() != null) {
+			throw writeFailure.get();
+		}
+		return count;
+	}
+
+	private CdsBatchResultJson newResult(
+			String theServiceId,
+			CdsServiceRequestJson theRequest,
+			CdsServiceResponseJson theResponse,
+			Throwable theError) {
+		CdsBatchResultJson result = new CdsBatchResultJson()
+				.setHookInstance(theRequest.getHookInstance())
+				.setPatientId(
+						theRequest.getContext() == null
+								? null
+								: theRequest.getContext().getString("patientId"));
+		if (theError == null) {
+			return result.setResponse(theResponse);
+		}
+		Throwable error = theError instanceof CompletionException ? theError.getCause() : theError;
+		evaluator.recordError(theServiceId, error);
+		logger.warn(
+				"cds-hooks batch call to {} failed for hook instance {}: {}",
+				theServiceId,
+				theRequest.getHookInstance(),
+				error.toString());
+		return result.setError(error.getMessage() != null ? error.getMessage() : error.toString());
+	}
+
+	private void write(String theServiceId, OutputStream theOut, CdsBatchResultJson theResult) throws IOException {
+		long start = System.nanoTime();
+		byte[] line = writer.writeValueAsBytes(theResult);
+		evaluator.recordStage(theServiceId, CdsServiceEvaluator.STAGE_ENCODE, System.nanoTime() - start);
+		synchronized (theOut) {
+			theOut.write(line);
+			theOut.write('\n');
+			theOut.flush();
+		}
+	}
+}
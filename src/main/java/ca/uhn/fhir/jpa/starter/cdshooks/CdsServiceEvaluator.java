@@ -0,0 +1,186 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceIndicatorEnum;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseCardJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseCardSourceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs cds-hooks service calls, prefetch included, on a dedicated pool and bounds each call by the deadline
+ * configured for its service. A call still running at its deadline is cancelled and answered with a single warning
+ * card instead of its cards, since a service only hands back its response once all of its cards are evaluated.
+ * <p>
+ * It also owns the per-service metrics: cds.service.duration timed by stage (parse, evaluate including prefetch,
+ * and encode), cds.service.errors by exception type, and cds.service.timeouts.
+ */
+public class CdsServiceEvaluator implements MeterBinder, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(CdsServiceEvaluator.class);
+
+	// Completes a call's future when its deadline passes first; compared by identity only
+	private static final CdsServiceResponseJson TIMED_OUT = new CdsServiceResponseJson();
+
+	public static final String STAGE_PARSE = "parse";
+	public static final String STAGE_EVALUATE = "evaluate";
+	public static final String STAGE_ENCODE = "encode";
+
+	private final ICdsServiceRegistry cdsServiceRegistry;
+	private final CdsHooksProperties.Evaluation properties;
+	private final ExecutorService executor;
+	private boolean ownsExecutor;
+	private volatile MeterRegistry meterRegistry;
+
+	public CdsServiceEvaluator(ICdsServiceRegistry theCdsServiceRegistry, CdsHooksProperties theCdsHooksProperties) {
+		this(theCdsServiceRegistry, theCdsHooksProperties, newExecutor(theCdsHooksProperties.getEvaluation()));
+		ownsExecutor = true;
+	}
+
+	/**
+	 * Runs the service calls on a pool shared with its owner, which also shuts it down.
+	 */
+	public CdsServiceEvaluator(
+			ICdsServiceRegistry theCdsServiceRegistry,
+			CdsHooksProperties theCdsHooksProperties,
+			ExecutorService theExecutor) {
+		cdsServiceRegistry = theCdsServiceRegistry;
+		properties = theCdsHooksProperties.getEvaluation();
+		executor = theExecutor;
+	}
+
+	private static ExecutorService newExecutor(CdsHooksProperties.Evaluation theProperties) {
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("cds-evaluation-");
+		threadFactory.setDaemon(true);
+		ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+				theProperties.getMaxThreads(),
+				theProperties.getMaxThreads(),
+				60,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				threadFactory);
+		threadPool.allowCoreThreadTimeOut(true);
+		return threadPool;
+	}
+
+	/**
+	 * Calls the service on the evaluation pool. The returned future completes with the service's response, with a
+	 * warning response once the service's deadline has passed, or exceptionally with the service's own failure.
+	 * Time spent waiting for a free thread counts against the deadline.
+	 */
+	public CompletableFuture<CdsServiceResponseJson> evaluate(String theServiceId, CdsServiceRequestJson theRequest) {
+		CompletableFuture<CdsServiceResponseJson> result = new CompletableFuture<>();
+		Future<?> call = executor.submit(() -> {
+			long start = System.nanoTime();
+			CdsServiceResponseJson response = null;
+			Throwable failure = null;
+			try {
+				response = cdsServiceRegistry.callService(theServiceId, theRequest);
+			} catch (Throwable t) {
+				failure = t;
+			}
+			// Recorded before completing, so the stage is timed by the time the caller sees the response
+			recordStage(theServiceId, STAGE_EVALUATE, System.nanoTime() - start);
+			if (failure != null) {
+				result.completeExceptionally(failure);
+			} else {
+				result.complete(response);
+			}
+		});
+
+		long timeoutMillis = properties.getTimeoutMillis(theServiceId);
+		if (timeoutMillis <= 0) {
+			return result;
+		}
+		return result.completeOnTimeout(TIMED_OUT, timeoutMillis, TimeUnit.MILLISECONDS)
+				.thenApply(response -> {
+					if (response != TIMED_OUT) {
+						return response;
+					}
+					call.cancel(true);
+					recordTimeout(theServiceId);
+					logger.warn("cds-hooks service {} did not respond within {} ms", theServiceId, timeoutMillis);
+					return newTimedOutResponse(theServiceId, timeoutMillis);
+				});
+	}
+
+	public void recordStage(String theServiceId, String theStage, long theNanos) {
+		MeterRegistry registry = meterRegistry;
+		if (registry != null) {
+			Timer.builder("cds.service.duration")
+					.description("Time spent per cds-hooks service call in each stage of its handling")
+					.tag("service", theServiceId)
+					.tag("stage", theStage)
+					.publishPercentileHistogram()
+					.register(registry)
+					.record(theNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Counts a failed service call, whether it is reported through {@link ErrorHandling} or as a batch error line.
+	 */
+	public void recordError(String theServiceId, Throwable theError) {
+		MeterRegistry registry = meterRegistry;
+		if (registry != null) {
+			Counter.builder("cds.service.errors")
+					.description("cds-hooks service calls that failed")
+					.tag("service", theServiceId)
+					.tag("exception", theError.getClass().getSimpleName())
+					.register(registry)
+					.increment();
+		}
+	}
+
+	private void recordTimeout(String theServiceId) {
+		MeterRegistry registry = meterRegistry;
+		if (registry != null) {
+			Counter.builder("cds.service.timeouts")
+					.description("cds-hooks service calls answered with a warning after missing their deadline")
+					.tag("service", theServiceId)
+					.register(registry)
+					.increment();
+		}
+	}
+
+	private static CdsServiceResponseJson newTimedOutResponse(String theServiceId, long theTimeoutMillis) {
+		CdsServiceResponseCardJson card = new CdsServiceResponseCardJson();
+		card.setSummary("Decision support unavailable: " + theServiceId + " timed out");
+		card.setDetail("The service did not respond within " + theTimeoutMillis + " ms, no recommendations are shown.");
+		card.setIndicator(CdsServiceIndicatorEnum.WARNING);
+		card.setSource(new CdsServiceResponseCardSourceJson().setLabel(theServiceId));
+		CdsServiceResponseJson response = new CdsServiceResponseJson();
+		response.addCard(card);
+		return response;
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		meterRegistry = theRegistry;
+		if (ownsExecutor) {
+			new ExecutorServiceMetrics(executor, "cds-evaluation", List.of()).bindTo(theRegistry);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (ownsExecutor) {
+			executor.shutdownNow();
+		}
+	}
+}
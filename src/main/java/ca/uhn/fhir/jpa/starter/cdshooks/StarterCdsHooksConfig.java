@@ -1,11 +1,18 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.interceptor.api.IInterceptorBroadcaster;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutors;
 import ca.uhn.fhir.jpa.starter.cr.CrCommonConfig;
 import ca.uhn.fhir.jpa.starter.cr.CrConfigCondition;
 import ca.uhn.fhir.jpa.starter.cr.CrProperties;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
 import ca.uhn.hapi.fhir.cdshooks.svc.CdsHooksContextBooter;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrServiceRegistry;
 import org.opencds.cqf.fhir.cr.hapi.cdshooks.CdsCrSettings;
@@ -21,6 +28,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 
 @Configuration
 @Conditional({CdsHooksConfigCondition.class, CrConfigCondition.class})
@@ -76,6 +84,40 @@ public class StarterCdsHooksConfig {
 		return new CdsHooksDaoAuthorizationSvc();
 	}
 
+	/**
+	 * Replaces the default prefetch service, so module prefetch is configured through hapi.fhir.cdshooks.prefetch and
+	 * its metrics are bound.
+	 */
+	@Primary
+	@Bean
+	public ModuleConfigurationPrefetchSvc moduleConfigurationPrefetchSvc(
+			CdsResolutionStrategySvc theCdsResolutionStrategySvc,
+			CdsPrefetchDaoSvc theResourcePrefetchDao,
+			CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
+			ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc,
+			IInterceptorBroadcaster theInterceptorBroadcaster,
+			CdsHooksProperties theCdsHooksProperties,
+			AppProperties theAppProperties) {
+		return new ModuleConfigurationPrefetchSvc(
+				theCdsResolutionStrategySvc,
+				theResourcePrefetchDao,
+				theResourcePrefetchFhirClient,
+				theCdsHooksDaoAuthorizationSvc,
+				theInterceptorBroadcaster,
+				theCdsHooksProperties,
+				theAppProperties);
+	}
+
+	@Bean
+	public CdsServiceEvaluator cdsServiceEvaluator(
+			ICdsServiceRegistry cdsServiceRegistry, CdsHooksProperties cdsHooksProperties, CqlExecutors cqlExecutors) {
+		return new CdsServiceEvaluator(
+				cdsServiceRegistry,
+				cdsHooksProperties,
+				cqlExecutors.get(
+						CqlExecutors.CDS, cdsHooksProperties.getEvaluation().getMaxThreads()));
+	}
+
 	@Bean
 	public ServletRegistrationBean<CdsHooksServlet> cdsHooksRegistrationBean(AutowireCapableBeanFactory beanFactory) {
 		CdsHooksServlet cdsHooksServlet = new CdsHooksServlet();
@@ -86,6 +128,7 @@ public class StarterCdsHooksConfig {
 		registrationBean.setServlet(cdsHooksServlet);
 		registrationBean.addUrlMappings("/cds-services/*");
 		registrationBean.setLoadOnStartup(1);
+		registrationBean.setAsyncSupported(true);
 		return registrationBean;
 	}
 }
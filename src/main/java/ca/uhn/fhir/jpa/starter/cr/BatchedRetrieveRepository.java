@@ -0,0 +1,479 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.BundleBuilder;
+import ca.uhn.fhir.util.BundleUtil;
+import ca.uhn.fhir.util.FhirTerser;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Multimap;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.fhir.utility.repository.ig.IgRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the per-subject retrieves of a measure evaluation from multi-subject queries. The subjects are split into
+ * blocks of the configured size; the first search scoped to one subject of a block (a single reference such as
+ * {@code subject=Patient/a}, or {@code _id=a} for the subject itself) runs once for the whole block
+ * ({@code subject=Patient/a,Patient/b,...}) with the same other parameters, and every subject of the block is then
+ * answered from those results in memory. Only the block being evaluated is kept.
+ * <p>
+ * With a shared result cache, searches that do not name a subject at all, such as retrieves in the Unfiltered
+ * context or of resources outside the patient compartment ({@code [Location]}, {@code [Medication]}), are patient
+ * independent: they are answered once, with all their pages, and every later subject of the evaluation gets the same
+ * results from the cache.
+ * <p>
+ * Any other search, and every read or write, goes straight to the wrapped repository.
+ */
+public class BatchedRetrieveRepository implements IRepository {
+	private static final Logger logger = LoggerFactory.getLogger(BatchedRetrieveRepository.class);
+
+	private static final String ID_PARAM = "_id";
+
+	private final IRepository repository;
+	private final List<String> subjects;
+	private final Map<String, Integer> blockOfSubject = new HashMap<>();
+	private final int blockSize;
+	private final AtomicLong queries;
+	private final AsyncCache<String, List<IBaseResource>> shared;
+	private final AtomicLong sharedHits;
+	private final Map<String, Map<String, List<IBaseResource>>> loaded = new HashMap<>();
+	private int loadedBlock = -1;
+
+	/**
+	 * @param theSubjects the subjects in the order they are evaluated, as {@code ResourceType/id}
+	 * @param theQueries counts the searches issued to the wrapped repository, including unbatched ones
+	 */
+	public BatchedRetrieveRepository(
+			IRepository theRepository, List<String> theSubjects, int theBlockSize, AtomicLong theQueries) {
+		this(theRepository, theSubjects, theBlockSize, theQueries, null, new AtomicLong());
+	}
+
+	/**
+	 * @param theShared results of the searches that name no subject, shared by every repository of one evaluation,
+	 * 		or null to run those searches every time
+	 * @param theSharedHits counts the searches answered from theShared
+	 */
+	public BatchedRetrieveRepository(
+			IRepository theRepository,
+			List<String> theSubjects,
+			int theBlockSize,
+			AtomicLong theQueries,
+			AsyncCache<String, List<IBaseResource>> theShared,
+			AtomicLong theSharedHits) {
+		repository = theRepository;
+		subjects = theSubjects;
+		blockSize = Math.max(1, theBlockSize);
+		queries = theQueries;
+		shared = theShared;
+		sharedHits = theSharedHits;
+		for (int i = 0; i < theSubjects.size(); i++) {
+			blockOfSubject.putIfAbsent(theSubjects.get(i), i / blockSize);
+		}
+	}
+
+	@Override
+	public <B extends IBaseBundle, T extends IBaseResource> B search(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		String resourceType = fhirContext().getResourceType(theResourceType);
+		String contextParameter = null;
+		String subject = null;
+		for (Map.Entry<String, List<IQueryParameterType>> entry : theSearchParameters.entries()) {
+			String candidate = subjectOf(resourceType, entry.getKey(), entry.getValue());
+			if (candidate != null) {
+				if (subject != null) {
+					return delegateSearch(theBundleType, theResourceType, theSearchParameters, theHeaders);
+				}
+				contextParameter = entry.getKey();
+				subject = candidate;
+			}
+		}
+		Map<String, String> headers = theHeaders == null ? Map.of() : theHeaders;
+		String compartment = headers.get(IgRepository.FHIR_COMPARTMENT_HEADER);
+		if (subject == null && compartment == null && shared != null) {
+			return toBundle(searchShared(
+					theBundleType,
+					theResourceType,
+					resourceType + "?" + key(theSearchParameters, null) + "#" + new TreeMap<>(headers),
+					theSearchParameters,
+					theHeaders));
+		}
+		List<String> paths = subject == null ? null : referencePaths(resourceType, contextParameter);
+		if (paths == null || (compartment != null && !compartment.equals(subject))) {
+			return delegateSearch(theBundleType, theResourceType, theSearchParameters, theHeaders);
+		}
+		if (compartment != null) {
+			// The subject's compartment is replaced by the block's subjects
+			headers = new HashMap<>(headers);
+			headers.remove(IgRepository.FHIR_COMPARTMENT_HEADER);
+		}
+
+		List<IBaseResource> resources = retrieve(
+				theBundleType,
+				theResourceType,
+				resourceType,
+				contextParameter,
+				paths,
+				subject,
+				theSearchParameters,
+				headers);
+		return toBundle(resources);
+	}
+
+	private <B extends IBaseBundle> B toBundle(List<IBaseResource> theResources) {
+		BundleBuilder builder = new BundleBuilder(fhirContext());
+		builder.setType("searchset");
+		theResources.forEach(builder::addCollectionEntry);
+		return builder.getBundleTyped();
+	}
+
+	private <B extends IBaseBundle, T extends IBaseResource> List<IBaseResource> searchShared(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			String theKey,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		// Concurrent shards asking for the same search wait for the one that runs it, which pages through the results
+		// after its pending result is in the cache rather than while the cache holds a lock
+		CompletableFuture<List<IBaseResource>> search = new CompletableFuture<>();
+		CompletableFuture<List<IBaseResource>> result = shared.get(theKey, (key, executor) -> search);
+		if (result == search) {
+			try {
+				List<IBaseResource> all = new ArrayList<>();
+				B bundle = delegateSearch(theBundleType, theResourceType, theSearchParameters, theHeaders);
+				while (bundle != null) {
+					all.addAll(BundleUtil.toListOfResources(fhirContext(), bundle));
+					String next = BundleUtil.getLinkUrlOfType(fhirContext(), bundle, "next");
+					bundle = next == null ? null : delegateLink(theBundleType, next, theHeaders);
+				}
+				logger.debug("Retrieved {} resources for the subject independent search {}", all.size(), theKey);
+				search.complete(List.copyOf(all));
+			} catch (Throwable e) {
+				// Failed searches are dropped from the cache, and the shards waiting for them fail too
+				search.completeExceptionally(e);
+				throw e;
+			}
+		} else {
+			sharedHits.incrementAndGet();
+		}
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	private synchronized <B extends IBaseBundle, T extends IBaseResource> List<IBaseResource> retrieve(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			String theResourceTypeName,
+			String theContextParameter,
+			List<String> thePaths,
+			String theSubject,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		int block = blockOfSubject.get(theSubject);
+		if (block != loadedBlock) {
+			loaded.clear();
+			loadedBlock = block;
+		}
+		String key = theResourceTypeName + "?" + theContextParameter + "&"
+				+ key(theSearchParameters, theContextParameter) + "#" + new TreeMap<>(theHeaders);
+		Map<String, List<IBaseResource>> bySubject = loaded.get(key);
+		if (bySubject == null) {
+			bySubject = loadBlock(
+					theBundleType,
+					theResourceType,
+					theResourceTypeName,
+					theContextParameter,
+					thePaths,
+					block,
+					theSearchParameters,
+					theHeaders);
+			loaded.put(key, bySubject);
+		}
+		return bySubject.getOrDefault(theSubject, List.of());
+	}
+
+	private <B extends IBaseBundle, T extends IBaseResource> Map<String, List<IBaseResource>> loadBlock(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			String theResourceTypeName,
+			String theContextParameter,
+			List<String> thePaths,
+			int theBlock,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		List<String> block =
+				subjects.subList(theBlock * blockSize, Math.min((theBlock + 1) * blockSize, subjects.size()));
+		List<IQueryParameterType> anyOfBlock = new ArrayList<>(block.size());
+		for (String subject : block) {
+			anyOfBlock.add(
+					ID_PARAM.equals(theContextParameter)
+							? new TokenParam(subject.substring(subject.indexOf('/') + 1))
+							: new ReferenceParam(subject));
+		}
+		Multimap<String, List<IQueryParameterType>> parameters = ArrayListMultimap.create();
+		theSearchParameters.entries().stream()
+				.filter(entry -> !entry.getKey().equals(theContextParameter))
+				.forEach(entry -> parameters.put(entry.getKey(), entry.getValue()));
+		parameters.put(theContextParameter, anyOfBlock);
+
+		Map<String, List<IBaseResource>> bySubject = new HashMap<>();
+		FhirTerser terser = fhirContext().newTerser();
+		B bundle = delegateSearch(theBundleType, theResourceType, parameters, theHeaders);
+		int count = 0;
+		while (bundle != null) {
+			for (IBaseResource resource : BundleUtil.toListOfResources(fhirContext(), bundle)) {
+				count++;
+				for (String subject : subjectsReferencedBy(terser, theResourceTypeName, thePaths, resource)) {
+					if (Objects.equals(blockOfSubject.get(subject), theBlock)) {
+						bySubject
+								.computeIfAbsent(subject, s -> new ArrayList<>())
+								.add(resource);
+					}
+				}
+			}
+			String next = BundleUtil.getLinkUrlOfType(fhirContext(), bundle, "next");
+			bundle = next == null ? null : delegateLink(theBundleType, next, theHeaders);
+		}
+		logger.debug(
+				"Retrieved {} {} resources for block {} of {} subjects by {}",
+				count,
+				theResourceTypeName,
+				theBlock,
+				block.size(),
+				theContextParameter);
+		return bySubject;
+	}
+
+	/**
+	 * The subject a search parameter scopes a search to, if it names exactly one subject of the evaluation and nothing
+	 * else.
+	 */
+	private String subjectOf(String theResourceType, String theName, List<IQueryParameterType> theValues) {
+		if (theValues.size() != 1) {
+			return null;
+		}
+		IQueryParameterType value = theValues.get(0);
+		String subject = null;
+		if (value instanceof ReferenceParam reference) {
+			if (reference.getChain() == null
+					&& reference.getMissing() == null
+					&& reference.getBaseUrl() == null
+					&& reference.getResourceType() != null) {
+				subject = reference.getResourceType() + "/" + reference.getIdPart();
+			}
+		} else if (value instanceof TokenParam token && ID_PARAM.equals(theName)) {
+			if (token.getModifier() == null && token.getSystem() == null && token.getMissing() == null) {
+				subject = theResourceType + "/" + token.getValue();
+			}
+		}
+		return subject != null && blockOfSubject.containsKey(subject) ? subject : null;
+	}
+
+	/**
+	 * The plain element paths a reference search parameter is indexed on, or null if it uses FHIRPath the terser
+	 * cannot follow, in which case the search is not batched.
+	 */
+	private List<String> referencePaths(String theResourceType, String theParameter) {
+		if (ID_PARAM.equals(theParameter)) {
+			return List.of();
+		}
+		RuntimeResourceDefinition definition = fhirContext().getResourceDefinition(theResourceType);
+		RuntimeSearchParam searchParam = definition.getSearchParam(theParameter);
+		if (searchParam == null) {
+			return null;
+		}
+		List<String> paths = new ArrayList<>();
+		for (String path : searchParam.getPathsSplitForResourceType(theResourceType)) {
+			path = path.trim();
+			if (path.startsWith("(") && path.endsWith(")")) {
+				path = path.substring(1, path.length() - 1).trim();
+			}
+			int where = path.indexOf(".where(resolve() is ");
+			if (where > 0) {
+				path = path.substring(0, where);
+			}
+			if (!path.matches("[A-Za-z]+(\\.[A-Za-z]+)+")) {
+				return null;
+			}
+			paths.add(path);
+		}
+		return paths.isEmpty() ? null : paths;
+	}
+
+	private static Set<String> subjectsReferencedBy(
+			FhirTerser theTerser, String theResourceType, List<String> thePaths, IBaseResource theResource) {
+		if (thePaths.isEmpty()) {
+			return Set.of(theResourceType + "/" + theResource.getIdElement().getIdPart());
+		}
+		Set<String> references = new LinkedHashSet<>();
+		for (String path : thePaths) {
+			for (IBase value : theTerser.getValues(theResource, path)) {
+				if (value instanceof IBaseReference reference
+						&& reference.getReferenceElement().hasIdPart()) {
+					references.add(reference
+							.getReferenceElement()
+							.toUnqualifiedVersionless()
+							.getValue());
+				}
+			}
+		}
+		return references;
+	}
+
+	private String key(Multimap<String, List<IQueryParameterType>> theParameters, String theExcluded) {
+		FhirContext context = fhirContext();
+		Map<String, List<String>> sorted = new TreeMap<>();
+		for (Map.Entry<String, List<IQueryParameterType>> entry : theParameters.entries()) {
+			if (!entry.getKey().equals(theExcluded)) {
+				sorted.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+						.add(entry.getValue().stream()
+								.map(value -> value.getClass().getSimpleName() + ":"
+										+ value.getQueryParameterQualifier() + "="
+										+ value.getValueAsQueryToken(context))
+								.collect(Collectors.joining(",")));
+			}
+		}
+		sorted.values().forEach(values -> values.sort(null));
+		return sorted.toString();
+	}
+
+	private <B extends IBaseBundle, T extends IBaseResource> B delegateSearch(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		queries.incrementAndGet();
+		return repository.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+	}
+
+	private <B extends IBaseBundle> B delegateLink(
+			Class<B> theBundleType, String theUrl, Map<String, String> theHeaders) {
+		queries.incrementAndGet();
+		return repository.link(theBundleType, theUrl, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle> B link(Class<B> theBundleType, String theUrl, Map<String, String> theHeaders) {
+		return delegateLink(theBundleType, theUrl, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource, I extends IIdType> T read(
+			Class<T> theResourceType, I theId, Map<String, String> theHeaders) {
+		return repository.read(theResourceType, theId, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource> MethodOutcome create(T theResource, Map<String, String> theHeaders) {
+		return repository.create(theResource, theHeaders);
+	}
+
+	@Override
+	public <I extends IIdType, P extends IBaseParameters> MethodOutcome patch(
+			I theId, P thePatchParameters, Map<String, String> theHeaders) {
+		return repository.patch(theId, thePatchParameters, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource> MethodOutcome update(T theResource, Map<String, String> theHeaders) {
+		return repository.update(theResource, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
+			Class<T> theResourceType, I theId, Map<String, String> theHeaders) {
+		return repository.delete(theResourceType, theId, theHeaders);
+	}
+
+	@Override
+	public <C extends IBaseConformance> C capabilities(
+			Class<C> theCapabilityStatementType, Map<String, String> theHeaders) {
+		return repository.capabilities(theCapabilityStatementType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle> B transaction(B theBundle, Map<String, String> theHeaders) {
+		return repository.transaction(theBundle, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters, T extends IBaseResource> R invoke(
+			Class<T> theResourceType,
+			String theName,
+			P theParameters,
+			Class<R> theReturnType,
+			Map<String, String> theHeaders) {
+		return repository.invoke(theResourceType, theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters> R invoke(
+			String theName, P theParameters, Class<R> theReturnType, Map<String, String> theHeaders) {
+		return repository.invoke(theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters, I extends IIdType> R invoke(
+			I theId, String theName, P theParameters, Class<R> theReturnType, Map<String, String> theHeaders) {
+		return repository.invoke(theId, theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters> B history(
+			P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return repository.history(theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters, T extends IBaseResource> B history(
+			Class<T> theResourceType, P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return repository.history(theResourceType, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters, I extends IIdType> B history(
+			I theId, P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return repository.history(theId, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public FhirContext fhirContext() {
+		return repository.fhirContext();
+	}
+}
@@ -3,6 +3,9 @@ package ca.uhn.fhir.jpa.starter.cr;
 public class CareGapsProperties {
 	private String reporter = "default";
 	private String section_author = "default";
+	private boolean streaming_enabled = false;
+	private int streaming_concurrency = 4;
+	private int patients_per_binary = 1000;
 
 	public String getReporter() {
 		return reporter;
@@ -19,4 +22,40 @@ public class CareGapsProperties {
 	public void setSection_author(String section_author) {
 		this.section_author = section_author;
 	}
+
+	/**
+	 * Adds Measure/$care-gaps-stream, which evaluates patients in parallel and returns each patient's gaps bundle as a
+	 * line of NDJSON as soon as it is ready, or with Prefer: respond-async writes them to NDJSON Binary resources
+	 * reported by Measure/$care-gaps-status.
+	 */
+	public boolean isStreamingEnabled() {
+		return streaming_enabled;
+	}
+
+	public void setStreamingEnabled(boolean streaming_enabled) {
+		this.streaming_enabled = streaming_enabled;
+	}
+
+	/**
+	 * Patients of one $care-gaps-stream request evaluated at the same time on the CQL care_gaps pool, which bounds the
+	 * gaps bundles held in memory.
+	 */
+	public int getStreamingConcurrency() {
+		return streaming_concurrency;
+	}
+
+	public void setStreamingConcurrency(int streaming_concurrency) {
+		this.streaming_concurrency = streaming_concurrency;
+	}
+
+	/**
+	 * Gaps bundles written to each NDJSON Binary by an asynchronous $care-gaps-stream request.
+	 */
+	public int getPatientsPerBinary() {
+		return patients_per_binary;
+	}
+
+	public void setPatientsPerBinary(int patients_per_binary) {
+		this.patients_per_binary = patients_per_binary;
+	}
 }
@@ -0,0 +1,82 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import com.google.common.collect.ForwardingConcurrentMap;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * The value set expansions shared by all CQL evaluations. Expansions are stored as immutable, exactly sized lists
+ * in their original (sorted) order, and the code system and version strings of all cached codes are interned, since
+ * an expansion parsed from a ValueSet resource carries its own copy of them for every code. The terminology provider
+ * binary-searches these lists by code for membership checks, so the order is left as it is.
+ * <p>
+ * {@link CqlCacheInvalidator} invalidates the entries of changed value sets through {@link #remove(Object)}.
+ */
+public class CompactValueSetCache extends ForwardingConcurrentMap<String, List<Code>> {
+
+	private final ConcurrentMap<String, List<Code>> expansions = new ConcurrentHashMap<>();
+	// Code systems and versions, of which there are only a handful across all value sets
+	private final ConcurrentMap<String, String> strings = new ConcurrentHashMap<>();
+
+	@Override
+	protected ConcurrentMap<String, List<Code>> delegate() {
+		return expansions;
+	}
+
+	@Override
+	public List<Code> put(String theValueSetUrl, List<Code> theCodes) {
+		return expansions.put(theValueSetUrl, compact(theCodes));
+	}
+
+	@Override
+	public List<Code> putIfAbsent(String theValueSetUrl, List<Code> theCodes) {
+		return expansions.putIfAbsent(theValueSetUrl, compact(theCodes));
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends List<Code>> theExpansions) {
+		theExpansions.forEach(this::put);
+	}
+
+	@Override
+	public List<Code> replace(String theValueSetUrl, List<Code> theCodes) {
+		return expansions.replace(theValueSetUrl, compact(theCodes));
+	}
+
+	@Override
+	public List<Code> computeIfAbsent(
+			String theValueSetUrl, Function<? super String, ? extends List<Code>> theMappingFunction) {
+		return expansions.computeIfAbsent(theValueSetUrl, url -> compact(theMappingFunction.apply(url)));
+	}
+
+	/**
+	 * @return the number of codes over all cached expansions
+	 */
+	public long getCodeCount() {
+		return expansions.values().stream().mapToLong(List::size).sum();
+	}
+
+	private List<Code> compact(List<Code> theCodes) {
+		if (theCodes == null) {
+			return null;
+		}
+		Code[] codes = new Code[theCodes.size()];
+		int i = 0;
+		for (Code code : theCodes) {
+			// The expansion is owned by the cache from here on, so its codes are updated in place
+			code.setSystem(intern(code.getSystem()));
+			code.setVersion(intern(code.getVersion()));
+			codes[i++] = code;
+		}
+		return List.of(codes);
+	}
+
+	private String intern(String theValue) {
+		return theValue == null ? null : strings.computeIfAbsent(theValue, Function.identity());
+	}
+}
@@ -0,0 +1,305 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the compiled library and value set caches in step with Library and ValueSet changes, evicting only what a
+ * change affects. A changed or deleted Library evicts the compiled library under its name and version as read from
+ * the resource's history before the change and as it is now, also under the name its URL ends in. Only when the
+ * version before the change cannot be read, or the library has no version, is every cached version of the name
+ * evicted. Every cached library that includes one of them, directly or through other libraries, is evicted too,
+ * since their ELM was compiled against the old one. The reverse include graph is built from the ELM of the cached
+ * libraries when a change comes in. The evicted libraries that still exist, and new libraries while the warm-up is
+ * enabled, are handed to the recompiler, so they are compiled again in the background rather than by the next
+ * evaluation.
+ * <p>
+ * A changed ValueSet evicts the cached expansions of its URL only. Compiled ELM refers to value sets by URL, so no
+ * library needs compiling again. cql.cache.invalidations counts the evicted entries by cache.
+ */
+public class CqlCacheInvalidator implements IResourceChangeListener, MeterBinder {
+	private static final Logger logger = LoggerFactory.getLogger(CqlCacheInvalidator.class);
+
+	private final CqlLibraryCache libraryCache;
+	private final Map<String, List<Code>> valueSetCache;
+	private final DaoRegistry daoRegistry;
+	private final CqlRuntimeProperties properties;
+	private final Consumer<Collection<VersionedIdentifier>> recompiler;
+	private final FhirTerser terser;
+	private final AtomicLong evictedLibraries = new AtomicLong();
+	private final AtomicLong evictedValueSets = new AtomicLong();
+
+	public CqlCacheInvalidator(
+			CqlLibraryCache theLibraryCache,
+			Map<String, List<Code>> theValueSetCache,
+			DaoRegistry theDaoRegistry,
+			CqlRuntimeProperties theProperties,
+			Consumer<Collection<VersionedIdentifier>> theRecompiler) {
+		libraryCache = theLibraryCache;
+		valueSetCache = theValueSetCache;
+		daoRegistry = theDaoRegistry;
+		properties = theProperties;
+		recompiler = theRecompiler;
+		terser = theDaoRegistry.getFhirContext().newTerser();
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		// Nothing is cached before the first evaluation
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		Set<VersionedIdentifier> changedLibraries = new LinkedHashSet<>();
+		Set<VersionedIdentifier> currentLibraries = new LinkedHashSet<>();
+		Set<String> changedValueSets = new LinkedHashSet<>();
+		for (IIdType id : theResourceChangeEvent.getCreatedResourceIds()) {
+			if ("Library".equals(id.getResourceType())) {
+				// May be what unversioned includes of cached libraries now resolve to
+				VersionedIdentifier created = toLibrary(read(id, -1));
+				addIfPresent(changedLibraries, created);
+				addIfPresent(currentLibraries, created);
+			}
+		}
+		for (IIdType id : theResourceChangeEvent.getUpdatedResourceIds()) {
+			collect(id, false, changedLibraries, currentLibraries, changedValueSets);
+		}
+		for (IIdType id : theResourceChangeEvent.getDeletedResourceIds()) {
+			collect(id, true, changedLibraries, currentLibraries, changedValueSets);
+		}
+
+		if (!changedValueSets.isEmpty()) {
+			invalidateValueSets(changedValueSets);
+		}
+		Set<VersionedIdentifier> evicted = Set.of();
+		if (!changedLibraries.isEmpty()) {
+			evicted = affectedLibraries(libraryCache.asMap(), changedLibraries);
+			libraryCache.invalidate(evicted);
+			evictedLibraries.addAndGet(evicted.size());
+			logger.info(
+					"Evicted {} compiled CQL libraries affected by changes to {}", evicted.size(), changedLibraries);
+		}
+
+		Set<VersionedIdentifier> recompile = new LinkedHashSet<>();
+		if (properties.isLibraryRecompileOnChange()) {
+			// Only the evicted libraries that still exist, at their current name and version
+			evicted.stream()
+					.filter(library ->
+							!matchesAny(library, changedLibraries) || currentLibraries.contains(library))
+					.forEach(recompile::add);
+		}
+		if (properties.isLibraryWarmUpEnabled()) {
+			recompile.addAll(currentLibraries);
+		}
+		if (!recompile.isEmpty()) {
+			recompiler.accept(recompile);
+		}
+	}
+
+	/**
+	 * Adds what a changed or deleted resource was, in the version before the change or the last one before the
+	 * deletion, and what it is now.
+	 */
+	private void collect(
+			IIdType theId,
+			boolean theDeleted,
+			Set<VersionedIdentifier> theChangedLibraries,
+			Set<VersionedIdentifier> theCurrentLibraries,
+			Set<String> theChangedValueSets) {
+		IBaseResource previous;
+		IBaseResource current;
+		if (theDeleted) {
+			// The id of a deleted resource carries its last version, which is still readable, unless it names the
+			// deletion itself
+			previous = read(theId, 0);
+			if (previous == null) {
+				previous = read(theId, 1);
+			}
+			current = null;
+		} else {
+			previous = read(theId, 1);
+			current = read(theId, -1);
+		}
+		if ("Library".equals(theId.getResourceType())) {
+			// Without the version before the change, what was compiled can only be told by its name
+			boolean versionUnknown = previous == null && !theDeleted;
+			for (IBaseResource library : new IBaseResource[] {previous, current}) {
+				if (library == null) {
+					continue;
+				}
+				// A library without a version matches every cached version of its name
+				String version = versionUnknown ? null : terser.getSinglePrimitiveValueOrNull(library, "version");
+				String name = terser.getSinglePrimitiveValueOrNull(library, "name");
+				addIfPresent(theChangedLibraries, named(name, version));
+				String url = terser.getSinglePrimitiveValueOrNull(library, "url");
+				addIfPresent(theChangedLibraries, named(url == null ? null : name(url.split("\\|")[0]), version));
+			}
+			addIfPresent(theCurrentLibraries, toLibrary(current));
+		} else if ("ValueSet".equals(theId.getResourceType())) {
+			for (IBaseResource valueSet : new IBaseResource[] {previous, current}) {
+				String url = valueSet == null ? null : terser.getSinglePrimitiveValueOrNull(valueSet, "url");
+				if (url != null) {
+					theChangedValueSets.add(url);
+				}
+			}
+		}
+	}
+
+	private void invalidateValueSets(Set<String> theUrls) {
+		int evicted = 0;
+		for (String key : new ArrayList<>(valueSetCache.keySet())) {
+			int bar = key.indexOf('|');
+			if (theUrls.contains(bar < 0 ? key : key.substring(0, bar)) && valueSetCache.remove(key) != null) {
+				evicted++;
+			}
+		}
+		evictedValueSets.addAndGet(evicted);
+		logger.debug("Evicted {} cached expansions of value sets {}", evicted, theUrls);
+	}
+
+	/**
+	 * The cached libraries matching one of the changed ones, and every cached library including one of those,
+	 * transitively.
+	 */
+	public static Set<VersionedIdentifier> affectedLibraries(
+			Map<VersionedIdentifier, CompiledLibrary> theCached, Collection<VersionedIdentifier> theChanged) {
+		Map<String, List<Map.Entry<VersionedIdentifier, IncludeDef>>> includedBy = new HashMap<>();
+		for (Map.Entry<VersionedIdentifier, CompiledLibrary> entry : theCached.entrySet()) {
+			CompiledLibrary library = entry.getValue();
+			if (library == null
+					|| library.getLibrary() == null
+					|| library.getLibrary().getIncludes() == null) {
+				continue;
+			}
+			for (IncludeDef include : library.getLibrary().getIncludes().getDef()) {
+				includedBy
+						.computeIfAbsent(name(include.getPath()), name -> new ArrayList<>())
+						.add(Map.entry(entry.getKey(), include));
+			}
+		}
+
+		Set<VersionedIdentifier> affected = new LinkedHashSet<>();
+		Deque<VersionedIdentifier> pending = new ArrayDeque<>();
+		for (VersionedIdentifier cached : theCached.keySet()) {
+			if (matchesAny(cached, theChanged)) {
+				affected.add(cached);
+			}
+		}
+		pending.addAll(theChanged);
+		pending.addAll(affected);
+		while (!pending.isEmpty()) {
+			VersionedIdentifier library = pending.poll();
+			for (Map.Entry<VersionedIdentifier, IncludeDef> dependent :
+					includedBy.getOrDefault(library.getId(), List.of())) {
+				IncludeDef include = dependent.getValue();
+				if (versionsMatch(include.getVersion(), library.getVersion()) && affected.add(dependent.getKey())) {
+					pending.add(dependent.getKey());
+				}
+			}
+		}
+		return affected;
+	}
+
+	private static boolean matchesAny(VersionedIdentifier theLibrary, Collection<VersionedIdentifier> theLibraries) {
+		for (VersionedIdentifier library : theLibraries) {
+			if (Objects.equals(theLibrary.getId(), library.getId())
+					&& versionsMatch(theLibrary.getVersion(), library.getVersion())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// An unversioned reference resolves to whatever version is current, so it matches every version
+	private static boolean versionsMatch(String theVersion, String theOtherVersion) {
+		return theVersion == null || theOtherVersion == null || theVersion.equals(theOtherVersion);
+	}
+
+	// Includes of namespaced libraries carry the namespace URI in front of the name
+	private static String name(String thePath) {
+		return thePath == null ? null : thePath.substring(thePath.lastIndexOf('/') + 1);
+	}
+
+	private static VersionedIdentifier named(String theName, String theVersion) {
+		return theName == null ? null : new VersionedIdentifier().withId(theName).withVersion(theVersion);
+	}
+
+	private VersionedIdentifier toLibrary(IBaseResource theLibrary) {
+		if (theLibrary == null) {
+			return null;
+		}
+		String name = terser.getSinglePrimitiveValueOrNull(theLibrary, "name");
+		return name == null
+				? null
+				: new VersionedIdentifier()
+						.withId(name)
+						.withVersion(terser.getSinglePrimitiveValueOrNull(theLibrary, "version"));
+	}
+
+	/**
+	 * Reads the resource as it is now when theVersionsBack is negative, or the version that many versions before the
+	 * one in theId, or returns null if there is none.
+	 */
+	private IBaseResource read(IIdType theId, int theVersionsBack) {
+		IIdType id = theId.toUnqualifiedVersionless();
+		if (theVersionsBack >= 0) {
+			if (!theId.hasVersionIdPart()
+					|| !theId.isVersionIdPartValidLong()
+					|| theId.getVersionIdPartAsLong() - theVersionsBack < 1) {
+				return null;
+			}
+			id = id.withVersion(String.valueOf(theId.getVersionIdPartAsLong() - theVersionsBack));
+		}
+		try {
+			return daoRegistry.getResourceDao(theId.getResourceType()).read(id, new SystemRequestDetails());
+		} catch (RuntimeException e) {
+			logger.debug("Could not read {}: {}", id, e.getMessage());
+			return null;
+		}
+	}
+
+	private static void addIfPresent(Set<VersionedIdentifier> theLibraries, VersionedIdentifier theLibrary) {
+		if (theLibrary != null) {
+			theLibraries.add(theLibrary);
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		FunctionCounter.builder("cql.cache.invalidations", evictedLibraries, AtomicLong::get)
+				.description("Cache entries evicted because of Library and ValueSet changes")
+				.tag("cache", "library")
+				.register(theRegistry);
+		FunctionCounter.builder("cql.cache.invalidations", evictedValueSets, AtomicLong::get)
+				.description("Cache entries evicted because of Library and ValueSet changes")
+				.tag("cache", "valueset")
+				.register(theRegistry);
+	}
+}
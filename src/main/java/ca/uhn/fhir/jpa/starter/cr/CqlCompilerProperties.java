@@ -26,6 +26,8 @@ public class CqlCompilerProperties {
 	private Boolean disable_method_invocation = false;
 	private Boolean require_from_keyword = false;
 	private Boolean disable_default_model_info_load = false;
+	private Boolean elm_cache_enabled = false;
+	private String elm_cache_directory = "elm-cache";
 
 	public boolean isValidateUnits() {
 		return validate_units;
@@ -194,4 +196,20 @@ public class CqlCompilerProperties {
 	public void setTranslatorFormat(CqlTranslator.Format translatorFormat) {
 		this.translator_format = translatorFormat;
 	}
+
+	public boolean isElmCacheEnabled() {
+		return elm_cache_enabled;
+	}
+
+	public void setElmCacheEnabled(boolean elmCacheEnabled) {
+		this.elm_cache_enabled = elmCacheEnabled;
+	}
+
+	public String getElmCacheDirectory() {
+		return elm_cache_directory;
+	}
+
+	public void setElmCacheDirectory(String elmCacheDirectory) {
+		this.elm_cache_directory = elmCacheDirectory;
+	}
 }
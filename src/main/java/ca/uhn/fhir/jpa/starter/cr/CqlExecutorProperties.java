@@ -0,0 +1,95 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pools CQL evaluation runs on. Every workload (measure, care_gaps, cds) gets a pool of its own, so a long measure
+ * evaluation does not hold up cds-hooks calls. A workload's entry in pools overrides the defaults set here.
+ */
+public class CqlExecutorProperties {
+
+	/**
+	 * FIXED is a pool of a fixed number of threads, WORK_STEALING a fork-join pool with the given parallelism and
+	 * VIRTUAL a new virtual thread per task, which needs a Java 21 runtime and falls back to WORK_STEALING otherwise.
+	 */
+	public enum Type {
+		FIXED,
+		WORK_STEALING,
+		VIRTUAL
+	}
+
+	private Type type = Type.FIXED;
+	private int threads = 2;
+	private int queue_capacity = 0;
+	private Map<String, Pool> pools = new HashMap<>();
+
+	public Type getType() {
+		return type;
+	}
+
+	public void setType(Type type) {
+		this.type = type;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Tasks that may wait for a free thread before further tasks are rejected; 0 queues without a limit. As VIRTUAL
+	 * starts every task right away, there it bounds the tasks running at a time.
+	 */
+	public int getQueueCapacity() {
+		return queue_capacity;
+	}
+
+	public void setQueueCapacity(int queue_capacity) {
+		this.queue_capacity = queue_capacity;
+	}
+
+	public Map<String, Pool> getPools() {
+		return pools;
+	}
+
+	public void setPools(Map<String, Pool> pools) {
+		this.pools = pools;
+	}
+
+	/**
+	 * Settings of a single workload's pool, each falling back to the defaults when unset.
+	 */
+	public static class Pool {
+		private Type type;
+		private Integer threads;
+		private Integer queue_capacity;
+
+		public Type getType() {
+			return type;
+		}
+
+		public void setType(Type type) {
+			this.type = type;
+		}
+
+		public Integer getThreads() {
+			return threads;
+		}
+
+		public void setThreads(Integer threads) {
+			this.threads = threads;
+		}
+
+		public Integer getQueueCapacity() {
+			return queue_capacity;
+		}
+
+		public void setQueueCapacity(Integer queue_capacity) {
+			this.queue_capacity = queue_capacity;
+		}
+	}
+}
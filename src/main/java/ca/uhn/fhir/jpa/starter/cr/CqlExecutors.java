@@ -0,0 +1,253 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the pools CQL evaluation runs on, one per workload, built as configured in {@link CqlExecutorProperties}.
+ * Tasks run with the submitter's security context. A pool with a queue capacity rejects tasks with a
+ * {@link RejectedExecutionException} once that many are waiting for a thread.
+ * <p>
+ * Every pool reports cql.executor.queued and cql.executor.active, and times its tasks as cql.executor.wait (queued
+ * until started) and cql.executor.duration (running), all tagged by pool.
+ */
+public class CqlExecutors implements MeterBinder, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(CqlExecutors.class);
+
+	public static final String DEFAULT = "default";
+	public static final String MEASURE = "measure";
+	public static final String CARE_GAPS = "care_gaps";
+	public static final String CDS = "cds";
+
+	private final CqlExecutorProperties properties;
+	private final Map<String, InstrumentedExecutor> executors = new ConcurrentHashMap<>();
+	private final List<InstrumentedExecutor> created = new ArrayList<>();
+	private MeterRegistry meterRegistry;
+
+	public CqlExecutors(CqlExecutorProperties theProperties) {
+		properties = theProperties;
+	}
+
+	/**
+	 * The workload's pool, sized by the default thread count unless configured otherwise.
+	 */
+	public ExecutorService get(String theWorkload) {
+		return get(theWorkload, properties.getThreads());
+	}
+
+	/**
+	 * The workload's pool, sized by theDefaultThreads unless a thread count is configured for the workload. The pool
+	 * is created on first use and shared by later callers.
+	 */
+	public ExecutorService get(String theWorkload, int theDefaultThreads) {
+		InstrumentedExecutor executor =
+				executors.computeIfAbsent(theWorkload, workload -> newExecutor(workload, theDefaultThreads));
+		return new DelegatingSecurityContextExecutorService(executor);
+	}
+
+	private InstrumentedExecutor newExecutor(String theWorkload, int theDefaultThreads) {
+		CqlExecutorProperties.Pool pool = properties.getPools().get(theWorkload);
+		CqlExecutorProperties.Type type =
+				pool != null && pool.getType() != null ? pool.getType() : properties.getType();
+		int threads = Math.max(1, pool != null && pool.getThreads() != null ? pool.getThreads() : theDefaultThreads);
+		int queueCapacity = pool != null && pool.getQueueCapacity() != null
+				? pool.getQueueCapacity()
+				: properties.getQueueCapacity();
+
+		String threadNamePrefix = "cql-" + theWorkload.replace('_', '-') + "-";
+		ExecutorService delegate = null;
+		if (type == CqlExecutorProperties.Type.VIRTUAL) {
+			delegate = newVirtualThreadPerTaskExecutor();
+			if (delegate == null) {
+				logger.warn(
+						"Virtual threads need a Java 21 runtime, running the {} pool as WORK_STEALING", theWorkload);
+				type = CqlExecutorProperties.Type.WORK_STEALING;
+			}
+		}
+		if (type == CqlExecutorProperties.Type.WORK_STEALING) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			delegate = new ForkJoinPool(
+					threads,
+					forkJoinPool -> {
+						ForkJoinWorkerThread thread =
+								ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+						thread.setName(threadNamePrefix + threadNumber.incrementAndGet());
+						return thread;
+					},
+					null,
+					true);
+		} else if (type == CqlExecutorProperties.Type.FIXED) {
+			CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(threadNamePrefix);
+			threadFactory.setDaemon(true);
+			ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+					threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+			threadPool.allowCoreThreadTimeOut(true);
+			delegate = threadPool;
+		}
+		logger.info(
+				"CQL {} pool: {}{}",
+				theWorkload,
+				type == CqlExecutorProperties.Type.VIRTUAL ? "virtual threads" : type + " with " + threads + " threads",
+				queueCapacity > 0 ? ", queue capacity " + queueCapacity : "");
+
+		InstrumentedExecutor executor = new InstrumentedExecutor(
+				theWorkload,
+				delegate,
+				queueCapacity > 0 ? (type == CqlExecutorProperties.Type.VIRTUAL ? 0 : threads) + queueCapacity : 0);
+		synchronized (created) {
+			created.add(executor);
+			if (meterRegistry != null) {
+				executor.bindTo(meterRegistry);
+			}
+		}
+		return executor;
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService)
+					Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		synchronized (created) {
+			meterRegistry = theRegistry;
+			created.forEach(executor -> executor.bindTo(theRegistry));
+		}
+	}
+
+	@Override
+	public void close() {
+		executors.values().forEach(ExecutorService::shutdownNow);
+	}
+
+	/**
+	 * Counts and times the tasks passing through a pool, and bounds how many may be pending when a limit is set.
+	 */
+	private static class InstrumentedExecutor extends AbstractExecutorService {
+		private final String workload;
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicInteger active = new AtomicInteger();
+		private volatile Timer waitTimer;
+		private volatile Timer durationTimer;
+
+		InstrumentedExecutor(String theWorkload, ExecutorService theDelegate, int theMaxPending) {
+			workload = theWorkload;
+			delegate = theDelegate;
+			permits = theMaxPending > 0 ? new Semaphore(theMaxPending) : null;
+		}
+
+		@Override
+		public void execute(Runnable theTask) {
+			if (permits != null && !permits.tryAcquire()) {
+				throw new RejectedExecutionException("The CQL " + workload + " pool queue is full");
+			}
+			long submitted = System.nanoTime();
+			queued.incrementAndGet();
+			try {
+				delegate.execute(() -> {
+					long started = System.nanoTime();
+					queued.decrementAndGet();
+					active.incrementAndGet();
+					try {
+						theTask.run();
+					} finally {
+						active.decrementAndGet();
+						if (permits != null) {
+							permits.release();
+						}
+						record(waitTimer, started - submitted);
+						record(durationTimer, System.nanoTime() - started);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				queued.decrementAndGet();
+				if (permits != null) {
+					permits.release();
+				}
+				throw e;
+			}
+		}
+
+		private static void record(Timer theTimer, long theNanos) {
+			if (theTimer != null) {
+				theTimer.record(theNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		void bindTo(MeterRegistry theRegistry) {
+			Gauge.builder("cql.executor.queued", queued, AtomicInteger::get)
+					.description("CQL tasks waiting for a thread")
+					.tag("pool", workload)
+					.register(theRegistry);
+			Gauge.builder("cql.executor.active", active, AtomicInteger::get)
+					.description("CQL tasks running")
+					.tag("pool", workload)
+					.register(theRegistry);
+			waitTimer = Timer.builder("cql.executor.wait")
+					.description("Time CQL tasks spent waiting for a thread")
+					.tag("pool", workload)
+					.register(theRegistry);
+			durationTimer = Timer.builder("cql.executor.duration")
+					.description("Time CQL tasks spent running")
+					.tag("pool", workload)
+					.publishPercentileHistogram()
+					.register(theRegistry);
+			new ExecutorServiceMetrics(delegate, "cql-" + workload, List.of()).bindTo(theRegistry);
+		}
+
+		@Override
+		public void shutdown() {
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long theTimeout, TimeUnit theUnit) throws InterruptedException {
+			return delegate.awaitTermination(theTimeout, theUnit);
+		}
+	}
+}
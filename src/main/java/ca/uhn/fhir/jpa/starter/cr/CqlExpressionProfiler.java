@@ -0,0 +1,221 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import org.apache.commons.lang3.tuple.Pair;
+import org.cqframework.cql.cql2elm.CqlCompilerException;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.elm.visiting.BaseElmLibraryVisitor;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.ExpressionRef;
+import org.hl7.elm.r1.FunctionDef;
+import org.hl7.elm.r1.ParameterDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates a CQL library one define at a time for each of a few subjects and records, per define, how often it was
+ * evaluated, the time it took and the searches it issued. Defines are evaluated in dependency order, so with
+ * expression caching enabled the time of a define excludes the defines it references, which were evaluated, and
+ * cached, before it.
+ * <p>
+ * Only the evaluations of the profiler are instrumented, so regular evaluations carry no overhead.
+ */
+public class CqlExpressionProfiler {
+	private static final Logger logger = LoggerFactory.getLogger(CqlExpressionProfiler.class);
+
+	private final EvaluationSettings evaluationSettings;
+	private final int maxSubjects;
+
+	public CqlExpressionProfiler(EvaluationSettings theEvaluationSettings, int theMaxSubjects) {
+		evaluationSettings = theEvaluationSettings;
+		maxSubjects = Math.max(1, theMaxSubjects);
+	}
+
+	public int getMaxSubjects() {
+		return maxSubjects;
+	}
+
+	/**
+	 * @param theSubjects the subjects to evaluate the library for, as {@code ResourceType/id}, of which at most the
+	 * configured number are used
+	 * @param theParameters parameter values by name, of which those the library does not declare are ignored
+	 * @return the profile of every define, slowest first
+	 */
+	public List<ExpressionProfile> profile(
+			IRepository theRepository,
+			VersionedIdentifier theLibrary,
+			List<String> theSubjects,
+			Map<String, Object> theParameters) {
+		AtomicLong searches = new AtomicLong();
+		IRepository counting = new SearchCountingRepository(theRepository, searches);
+		CqlEngine engine = Engines.forRepository(counting, evaluationSettings);
+		List<CqlCompilerException> errors = new ArrayList<>();
+		CompiledLibrary library = engine.getEnvironment().getLibraryManager().resolveLibrary(theLibrary, errors);
+		for (CqlCompilerException error : errors) {
+			if (error.getSeverity() == CqlCompilerException.ErrorSeverity.Error) {
+				throw new UnprocessableEntityException(
+						"Library " + theLibrary.getId() + " does not compile: " + error.getMessage());
+			}
+		}
+
+		Map<String, ExpressionDef> defines = new LinkedHashMap<>();
+		if (library.getLibrary().getStatements() != null) {
+			for (ExpressionDef def : library.getLibrary().getStatements().getDef()) {
+				if (!(def instanceof FunctionDef)) {
+					defines.put(def.getName(), def);
+				}
+			}
+		}
+		Map<String, Object> parameters = new LinkedHashMap<>();
+		if (library.getLibrary().getParameters() != null) {
+			for (ParameterDef def : library.getLibrary().getParameters().getDef()) {
+				if (theParameters.containsKey(def.getName())) {
+					parameters.put(def.getName(), theParameters.get(def.getName()));
+				}
+			}
+		}
+		List<String> order = dependencyOrder(defines);
+		Map<String, ExpressionProfile> profiles = new LinkedHashMap<>();
+		order.forEach(name -> profiles.put(name, new ExpressionProfile(name, defines.get(name).getContext())));
+
+		List<String> subjects = theSubjects.subList(0, Math.min(maxSubjects, theSubjects.size()));
+		long start = System.nanoTime();
+		for (String subject : subjects) {
+			int slash = subject.indexOf('/');
+			Pair<String, Object> context = slash < 0
+					? Pair.of("Patient", subject)
+					: Pair.of(subject.substring(0, slash), subject.substring(slash + 1));
+			for (String name : order) {
+				ExpressionProfile profile = profiles.get(name);
+				long searchesBefore = searches.get();
+				long evaluationStart = System.nanoTime();
+				boolean failed = false;
+				try {
+					engine.evaluate(theLibrary, Set.of(name), context, parameters);
+				} catch (RuntimeException e) {
+					logger.debug("Failed to evaluate {} for {}: {}", name, subject, e.getMessage());
+					failed = true;
+				}
+				profile.record(System.nanoTime() - evaluationStart, searches.get() - searchesBefore, failed);
+			}
+		}
+		logger.info(
+				"Profiled {} defines of library {} for {} subjects in {} ms",
+				order.size(),
+				theLibrary.getId(),
+				subjects.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		List<ExpressionProfile> result = new ArrayList<>(profiles.values());
+		result.sort(Comparator.comparingLong(ExpressionProfile::getNanos).reversed());
+		return result;
+	}
+
+	/**
+	 * The defines ordered so that every define comes after the defines of the same library it references.
+	 */
+	static List<String> dependencyOrder(Map<String, ExpressionDef> theDefines) {
+		ReferenceCollector collector = new ReferenceCollector();
+		Set<String> ordered = new LinkedHashSet<>();
+		Set<String> visiting = new LinkedHashSet<>();
+		for (String name : theDefines.keySet()) {
+			addInDependencyOrder(name, theDefines, collector, visiting, ordered);
+		}
+		return new ArrayList<>(ordered);
+	}
+
+	private static void addInDependencyOrder(
+			String theName,
+			Map<String, ExpressionDef> theDefines,
+			ReferenceCollector theCollector,
+			Set<String> theVisiting,
+			Set<String> theOrdered) {
+		if (theOrdered.contains(theName) || !theVisiting.add(theName)) {
+			return;
+		}
+		ExpressionDef def = theDefines.get(theName);
+		Set<String> references = new LinkedHashSet<>();
+		if (def.getExpression() != null) {
+			theCollector.visitExpression(def.getExpression(), references);
+		}
+		for (String reference : references) {
+			if (theDefines.containsKey(reference)) {
+				addInDependencyOrder(reference, theDefines, theCollector, theVisiting, theOrdered);
+			}
+		}
+		theVisiting.remove(theName);
+		theOrdered.add(theName);
+	}
+
+	private static class ReferenceCollector extends BaseElmLibraryVisitor<Void, Set<String>> {
+		@Override
+		public Void visitExpressionRef(ExpressionRef theElm, Set<String> theContext) {
+			if (theElm.getLibraryName() == null) {
+				theContext.add(theElm.getName());
+			}
+			return super.visitExpressionRef(theElm, theContext);
+		}
+	}
+
+	public static class ExpressionProfile {
+		private final String name;
+		private final String context;
+		private int calls;
+		private int failures;
+		private long nanos;
+		private long searches;
+
+		ExpressionProfile(String theName, String theContext) {
+			name = theName;
+			context = theContext;
+		}
+
+		void record(long theNanos, long theSearches, boolean theFailed) {
+			calls++;
+			nanos += theNanos;
+			searches += theSearches;
+			if (theFailed) {
+				failures++;
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getContext() {
+			return context;
+		}
+
+		public int getCalls() {
+			return calls;
+		}
+
+		public int getFailures() {
+			return failures;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public long getSearches() {
+			return searches;
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.ForwardingConcurrentMap;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.elm.tracking.Trackable;
+import org.cqframework.cql.elm.visiting.BaseElmLibraryVisitor;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * The compiled CQL libraries shared by all evaluations, bounded by the estimated heap size of their ELM. Eviction
+ * is Caffeine's size-based W-TinyLFU, so libraries used by many evaluations outlive ones that were loaded once. The
+ * engine uses the cache through its {@link #asMap()} view, which evicts like the cache itself and counts its lookups
+ * as hits and misses; the {@link CqlCacheInvalidator} drops the libraries a Library change affects through
+ * {@link #invalidate(Collection)}. With a {@link PersistentElmCache} set, libraries are also kept on disk across
+ * restarts.
+ */
+public class CqlLibraryCache implements MeterBinder {
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlLibraryCache.class);
+
+	// Rough heap cost of one ELM node with its type specifiers, locators and annotations
+	static final int BYTES_PER_ELM_NODE = 256;
+
+	private final Cache<VersionedIdentifier, CompiledLibrary> cache;
+	private final ConcurrentMap<VersionedIdentifier, CompiledLibrary> map = new StatsRecordingMap();
+	private volatile PersistentElmCache persistentElmCache;
+
+	public CqlLibraryCache(CqlRuntimeProperties theProperties) {
+		Caffeine<Object, Object> builder = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getLibraryCacheMaxMegabytes() * 1024L * 1024L)
+				.executor(Runnable::run)
+				.recordStats();
+		if (theProperties.isLibraryCacheSoftValues()) {
+			// Lets the collector reclaim libraries under memory pressure, on top of the weight bound
+			builder.softValues();
+		}
+		cache = builder.<VersionedIdentifier, CompiledLibrary>weigher((id, library) -> estimateBytes(library))
+				.build();
+	}
+
+	public Map<VersionedIdentifier, CompiledLibrary> asMap() {
+		return map;
+	}
+
+	/**
+	 * Also writes every library added to the cache to the given on-disk cache, so that it outlives a restart, and
+	 * reads libraries missing from memory from there.
+	 */
+	public void setPersistentElmCache(PersistentElmCache thePersistentElmCache) {
+		persistentElmCache = thePersistentElmCache;
+	}
+
+	/**
+	 * Drops libraries from memory and from the on-disk cache, so that they are compiled again when next used.
+	 */
+	public void invalidate(Collection<VersionedIdentifier> theLibraries) {
+		cache.invalidateAll(theLibraries);
+		PersistentElmCache persistent = persistentElmCache;
+		if (persistent != null) {
+			theLibraries.forEach(persistent::remove);
+		}
+	}
+
+	/**
+	 * @return the estimated heap size of the cached libraries
+	 */
+	public long getWeightInBytes() {
+		return cache.policy()
+				.eviction()
+				.map(eviction -> eviction.weightedSize().orElse(0L))
+				.orElse(0L);
+	}
+
+	/**
+	 * Estimates a library's heap size from the number of nodes in its ELM tree.
+	 */
+	static int estimateBytes(CompiledLibrary theLibrary) {
+		Library library = theLibrary.getLibrary();
+		if (library == null) {
+			return BYTES_PER_ELM_NODE;
+		}
+		long nodes;
+		try {
+			nodes = new ElmNodeCounter().visitLibrary(library, null);
+		} catch (RuntimeException e) {
+			ourLog.debug(
+					"Could not walk the ELM of library {}, weighing it by its statements",
+					theLibrary.getIdentifier(),
+					e);
+			nodes = library.getStatements() == null
+					? 1
+					: library.getStatements().getDef().size() * 100L;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, nodes) * BYTES_PER_ELM_NODE);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		CaffeineCacheMetrics.monitor(theRegistry, cache, "cql.library");
+		Gauge.builder("cql.library.cache.memory", this, CqlLibraryCache::getWeightInBytes)
+				.description("Estimated heap used by compiled CQL libraries")
+				.baseUnit("bytes")
+				.register(theRegistry);
+	}
+
+	/**
+	 * Caffeine's own map view does not record statistics, so lookups are routed through the cache.
+	 */
+	private class StatsRecordingMap extends ForwardingConcurrentMap<VersionedIdentifier, CompiledLibrary> {
+		@Override
+		protected ConcurrentMap<VersionedIdentifier, CompiledLibrary> delegate() {
+			return cache.asMap();
+		}
+
+		@Override
+		public CompiledLibrary get(Object theKey) {
+			if (!(theKey instanceof VersionedIdentifier)) {
+				return null;
+			}
+			VersionedIdentifier key = (VersionedIdentifier) theKey;
+			CompiledLibrary library = cache.getIfPresent(key);
+			PersistentElmCache persistent = persistentElmCache;
+			if (library == null && persistent != null) {
+				// Spares the library manager compiling a library whose ELM is still on disk
+				library = persistent.withContentSnapshot(() -> persistent.load(key));
+				if (library != null) {
+					cache.put(key, library);
+				}
+			}
+			return library;
+		}
+
+		@Override
+		public CompiledLibrary getOrDefault(Object theKey, CompiledLibrary theDefaultValue) {
+			CompiledLibrary library = get(theKey);
+			return library != null ? library : theDefaultValue;
+		}
+
+		@Override
+		public CompiledLibrary computeIfAbsent(
+				VersionedIdentifier theKey,
+				Function<? super VersionedIdentifier, ? extends CompiledLibrary> theMappingFunction) {
+			PersistentElmCache persistent = persistentElmCache;
+			if (persistent == null) {
+				return compileIfAbsent(theKey, theMappingFunction);
+			}
+			// The library and its includes are looked up once for the load, the compilation and the store
+			return persistent.withContentSnapshot(() -> compileIfAbsent(theKey, theMappingFunction));
+		}
+
+		private CompiledLibrary compileIfAbsent(
+				VersionedIdentifier theKey,
+				Function<? super VersionedIdentifier, ? extends CompiledLibrary> theMappingFunction) {
+			CompiledLibrary library = get(theKey);
+			if (library != null) {
+				return library;
+			}
+			// Compiled outside the cache's compute, which would otherwise also hold the lookups of the included
+			// libraries and the on-disk cache's Library searches; a library compiled twice concurrently is kept once
+			library = theMappingFunction.apply(theKey);
+			if (library == null) {
+				return null;
+			}
+			CompiledLibrary previous = putIfAbsent(theKey, library);
+			return previous != null ? previous : library;
+		}
+
+		@Override
+		public CompiledLibrary put(VersionedIdentifier theKey, CompiledLibrary theLibrary) {
+			return delegate().put(theKey, persist(theKey, theLibrary));
+		}
+
+		@Override
+		public CompiledLibrary putIfAbsent(VersionedIdentifier theKey, CompiledLibrary theLibrary) {
+			CompiledLibrary previous = delegate().putIfAbsent(theKey, theLibrary);
+			if (previous == null) {
+				persist(theKey, theLibrary);
+			}
+			return previous;
+		}
+
+		@Override
+		public void putAll(Map<? extends VersionedIdentifier, ? extends CompiledLibrary> theLibraries) {
+			theLibraries.forEach(this::put);
+		}
+
+		private CompiledLibrary persist(VersionedIdentifier theKey, CompiledLibrary theLibrary) {
+			PersistentElmCache persistent = persistentElmCache;
+			if (persistent != null && theLibrary != null) {
+				persistent.store(theKey, theLibrary);
+			}
+			return theLibrary;
+		}
+	}
+
+	private static class ElmNodeCounter extends BaseElmLibraryVisitor<Long, Void> {
+		@Override
+		protected Long defaultResult(Trackable theElm, Void theContext) {
+			return 1L;
+		}
+
+		@Override
+		protected Long aggregateResult(Long theAggregate, Long theNextResult) {
+			if (theAggregate == null) {
+				return theNextResult;
+			}
+			return theNextResult == null ? theAggregate : theAggregate + theNextResult;
+		}
+	}
+}
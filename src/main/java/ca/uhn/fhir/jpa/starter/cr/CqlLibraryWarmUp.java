@@ -0,0 +1,303 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.repository.HapiFhirRepository;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.util.FhirTerser;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.cqframework.cql.cql2elm.CqlCompilerException;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.availability.ApplicationAvailabilityBean;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Compiles the stored CQL libraries ahead of their first evaluation, so the first $evaluate-measure or cds-hooks call
+ * after a restart does not pay for compiling its whole dependency tree. Once the application is ready every Library
+ * with CQL content is compiled on a bounded pool of its own, and libraries created or updated later, e.g. by an IG
+ * install, are compiled as the {@link CqlCacheInvalidator} picks up their changes. The compiled libraries land in the
+ * global library cache.
+ * <p>
+ * When readiness is held, the {@link ReadinessHoldingAvailability} keeps the readiness state refused until the startup
+ * warm-up has finished. Compile times are
+ * recorded as cql.library.compile by outcome, and cql.library.warmup.remaining counts the libraries still queued.
+ */
+public class CqlLibraryWarmUp implements MeterBinder, AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(CqlLibraryWarmUp.class);
+
+	private static final String CQL_CONTENT_TYPE = "text/cql";
+
+	private final CqlRuntimeProperties properties;
+	private final DaoRegistry daoRegistry;
+	private final Function<VersionedIdentifier, List<CqlCompilerException>> compiler;
+	private final ApplicationEventPublisher eventPublisher;
+	private final FhirTerser terser;
+	private final ExecutorService executor;
+	private final AtomicInteger remaining = new AtomicInteger();
+	private final Object readinessLock = new Object();
+	private boolean startupDone;
+	private volatile MeterRegistry meterRegistry;
+
+	public CqlLibraryWarmUp(
+			CqlRuntimeProperties theProperties,
+			DaoRegistry theDaoRegistry,
+			Function<VersionedIdentifier, List<CqlCompilerException>> theCompiler,
+			ApplicationEventPublisher theEventPublisher) {
+		properties = theProperties;
+		daoRegistry = theDaoRegistry;
+		compiler = theCompiler;
+		eventPublisher = theEventPublisher;
+		terser = theDaoRegistry.getFhirContext().newTerser();
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("cql-warm-up-");
+		threadFactory.setDaemon(true);
+		ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+				theProperties.getLibraryWarmUpThreads(),
+				theProperties.getLibraryWarmUpThreads(),
+				60,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				threadFactory);
+		threadPool.allowCoreThreadTimeOut(true);
+		executor = threadPool;
+	}
+
+	/**
+	 * Compiles a library the way the evaluation operations do, through the library manager of an engine built from
+	 * the shared evaluation settings, so that it is cached in their global library cache.
+	 */
+	public static Function<VersionedIdentifier, List<CqlCompilerException>> engineCompiler(
+			DaoRegistry theDaoRegistry, RestfulServer theRestfulServer, EvaluationSettings theEvaluationSettings) {
+		return identifier -> {
+			CqlEngine engine = Engines.forRepository(
+					new HapiFhirRepository(theDaoRegistry, new SystemRequestDetails(), theRestfulServer),
+					theEvaluationSettings);
+			List<CqlCompilerException> errors = new ArrayList<>();
+			engine.getEnvironment().getLibraryManager().resolveLibrary(identifier, errors);
+			return errors;
+		};
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void onApplicationReady() {
+		if (properties.isLibraryWarmUpEnabled()) {
+			warmUpStoredLibraries();
+		}
+	}
+
+	/**
+	 * Compiles every stored Library with CQL content and releases readiness once done, whether or not all of them
+	 * compiled.
+	 */
+	public CompletableFuture<Void> warmUpStoredLibraries() {
+		long start = System.nanoTime();
+		return CompletableFuture.supplyAsync(this::findStoredLibraries, executor)
+				.thenCompose(libraries -> {
+					logger.info(
+							"Warming up {} CQL libraries on {} threads",
+							libraries.size(),
+							properties.getLibraryWarmUpThreads());
+					return warmUp(libraries)
+							.thenAccept(failed -> logger.info(
+									"Warmed up {} CQL libraries in {} ms, {} failed to compile",
+									libraries.size(),
+									TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+									failed));
+				})
+				.whenComplete((ignored, error) -> {
+					if (error != null) {
+						logger.warn("CQL library warm-up did not complete", error);
+					}
+					releaseReadiness();
+				});
+	}
+
+	/**
+	 * Compiles the given libraries in parallel. The returned future completes with the number of libraries that failed
+	 * to compile.
+	 */
+	public CompletableFuture<Integer> warmUp(Collection<VersionedIdentifier> theLibraries) {
+		AtomicInteger failed = new AtomicInteger();
+		AtomicInteger completed = new AtomicInteger();
+		int progressStep = Math.max(1, theLibraries.size() / 10);
+		remaining.addAndGet(theLibraries.size());
+		CompletableFuture<?>[] compilations = theLibraries.stream()
+				.map(library -> CompletableFuture.runAsync(
+						() -> {
+							try {
+								if (!compile(library)) {
+									failed.incrementAndGet();
+								}
+							} finally {
+								remaining.decrementAndGet();
+							}
+							int count = completed.incrementAndGet();
+							if (count % progressStep == 0 && count < theLibraries.size()) {
+								logger.info("Warmed up {} of {} CQL libraries", count, theLibraries.size());
+							}
+						},
+						executor))
+				.toArray(CompletableFuture[]::new);
+		return CompletableFuture.allOf(compilations).thenApply(ignored -> failed.get());
+	}
+
+	private boolean compile(VersionedIdentifier theLibrary) {
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			List<CqlCompilerException> errors = compiler.apply(theLibrary);
+			success = !CqlCompilerException.hasErrors(errors);
+			if (!success) {
+				logger.warn("CQL library {} compiled with errors: {}", describe(theLibrary), errors);
+			}
+		} catch (RuntimeException e) {
+			logger.warn("CQL library {} failed to compile: {}", describe(theLibrary), e.getMessage());
+		}
+		long elapsed = System.nanoTime() - start;
+		logger.debug("Compiled CQL library {} in {} ms", describe(theLibrary), TimeUnit.NANOSECONDS.toMillis(elapsed));
+		MeterRegistry registry = meterRegistry;
+		if (registry != null) {
+			Timer.builder("cql.library.compile")
+					.description("Time spent compiling CQL libraries ahead of their first evaluation")
+					.tag("outcome", success ? "success" : "error")
+					.register(registry)
+					.record(elapsed, TimeUnit.NANOSECONDS);
+		}
+		return success;
+	}
+
+	private Set<VersionedIdentifier> findStoredLibraries() {
+		Set<VersionedIdentifier> libraries = new LinkedHashSet<>();
+		for (IBaseResource library : libraryDao()
+				.search(SearchParameterMap.newSynchronous(), new SystemRequestDetails())
+				.getAllResources()) {
+			VersionedIdentifier identifier = toIdentifier(library);
+			if (identifier != null) {
+				libraries.add(identifier);
+			}
+		}
+		return libraries;
+	}
+
+	private VersionedIdentifier toIdentifier(IBaseResource theLibrary) {
+		String name = terser.getSinglePrimitiveValueOrNull(theLibrary, "name");
+		if (name == null) {
+			return null;
+		}
+		for (IBase attachment : terser.getValues(theLibrary, "content")) {
+			if (CQL_CONTENT_TYPE.equals(terser.getSinglePrimitiveValueOrNull(attachment, "contentType"))) {
+				return new VersionedIdentifier()
+						.withId(name)
+						.withVersion(terser.getSinglePrimitiveValueOrNull(theLibrary, "version"));
+			}
+		}
+		return null;
+	}
+
+	private static String describe(VersionedIdentifier theLibrary) {
+		return theLibrary.getVersion() == null
+				? theLibrary.getId()
+				: theLibrary.getId() + "|" + theLibrary.getVersion();
+	}
+
+	@SuppressWarnings("unchecked")
+	private IFhirResourceDao<IBaseResource> libraryDao() {
+		return (IFhirResourceDao<IBaseResource>) daoRegistry.getResourceDao("Library");
+	}
+
+	/**
+	 * @return whether readiness is to be refused, as the startup warm-up is held for and still running
+	 */
+	public boolean isHoldingReadiness() {
+		synchronized (readinessLock) {
+			return properties.isLibraryWarmUpEnabled() && properties.isLibraryWarmUpHoldsReadiness() && !startupDone;
+		}
+	}
+
+	private void releaseReadiness() {
+		synchronized (readinessLock) {
+			startupDone = true;
+			if (properties.isLibraryWarmUpHoldsReadiness()) {
+				AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.ACCEPTING_TRAFFIC);
+			}
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		meterRegistry = theRegistry;
+		Gauge.builder("cql.library.warmup.remaining", remaining, AtomicInteger::get)
+				.description("CQL libraries queued for compilation ahead of their first evaluation")
+				.register(theRegistry);
+		new ExecutorServiceMetrics(executor, "cql-warm-up", List.of()).bindTo(theRegistry);
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Spring Boot's application availability, except that the readiness state stays refused while a warm-up holds it.
+	 * Spring marks the application ready right after the warm-up has been started; the state that marking records is
+	 * decided here rather than corrected by a listener afterwards, so it does not depend on the order listeners run
+	 * in. Once done, the warm-up publishes the accepting state itself.
+	 */
+	public static class ReadinessHoldingAvailability extends ApplicationAvailabilityBean {
+		private final Supplier<CqlLibraryWarmUp> warmUp;
+
+		public ReadinessHoldingAvailability(Supplier<CqlLibraryWarmUp> theWarmUp) {
+			warmUp = theWarmUp;
+		}
+
+		@Override
+		public void onApplicationEvent(AvailabilityChangeEvent<?> theEvent) {
+			CqlLibraryWarmUp holder = theEvent.getState() == ReadinessState.ACCEPTING_TRAFFIC ? warmUp.get() : null;
+			if (holder == null) {
+				super.onApplicationEvent(theEvent);
+				return;
+			}
+			// Taken with the lock the warm-up releases readiness under, so its own accepting state is never overwritten
+			synchronized (holder.readinessLock) {
+				if (holder.isHoldingReadiness()) {
+					logger.info("Refusing traffic until the CQL library warm-up has finished");
+					super.onApplicationEvent(
+							new AvailabilityChangeEvent<>(theEvent.getSource(), ReadinessState.REFUSING_TRAFFIC));
+				} else {
+					super.onApplicationEvent(theEvent);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+
+public class CqlLibraryWarmUpReadinessCondition implements Condition {
+
+	@Override
+	public boolean matches(ConditionContext theConditionContext, AnnotatedTypeMetadata theAnnotatedTypeMetadata) {
+		String enabled = theConditionContext
+				.getEnvironment()
+				.getProperty("hapi.fhir.cr.cql.runtime.library_warm_up_enabled");
+		String holdsReadiness = theConditionContext
+				.getEnvironment()
+				.getProperty("hapi.fhir.cr.cql.runtime.library_warm_up_holds_readiness", "true");
+		return Boolean.parseBoolean(enabled) && Boolean.parseBoolean(holdsReadiness);
+	}
+}
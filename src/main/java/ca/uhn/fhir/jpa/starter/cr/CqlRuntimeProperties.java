@@ -5,6 +5,14 @@ public class CqlRuntimeProperties {
 	private Boolean debug_logging_enabled = false;
 	private Boolean enable_validation = false;
 	private Boolean enable_expression_caching = true;
+	private long library_cache_max_megabytes = 256;
+	private Boolean library_cache_soft_values = false;
+	private Boolean library_warm_up_enabled = false;
+	private int library_warm_up_threads = 2;
+	private Boolean library_warm_up_holds_readiness = true;
+	private Boolean library_recompile_on_change = true;
+	private Boolean profiling_enabled = false;
+	private int profiling_max_subjects = 10;
 
 	public boolean isDebugLoggingEnabled() {
 		return debug_logging_enabled;
@@ -29,4 +37,95 @@ public class CqlRuntimeProperties {
 	public void EnableValidation(boolean enable_validation) {
 		this.enable_validation = enable_validation;
 	}
+
+	/**
+	 * Upper bound of the compiled library cache, in estimated megabytes of ELM.
+	 */
+	public long getLibraryCacheMaxMegabytes() {
+		return library_cache_max_megabytes;
+	}
+
+	public void setLibraryCacheMaxMegabytes(long library_cache_max_megabytes) {
+		this.library_cache_max_megabytes = library_cache_max_megabytes;
+	}
+
+	/**
+	 * Holds compiled libraries through soft references, so they can also be reclaimed under memory pressure.
+	 */
+	public boolean isLibraryCacheSoftValues() {
+		return library_cache_soft_values;
+	}
+
+	public void setLibraryCacheSoftValues(boolean library_cache_soft_values) {
+		this.library_cache_soft_values = library_cache_soft_values;
+	}
+
+	/**
+	 * Compiles the stored CQL libraries once the application is ready, and libraries created or updated later as
+	 * their changes are picked up.
+	 */
+	public boolean isLibraryWarmUpEnabled() {
+		return library_warm_up_enabled;
+	}
+
+	public void setLibraryWarmUpEnabled(boolean library_warm_up_enabled) {
+		this.library_warm_up_enabled = library_warm_up_enabled;
+	}
+
+	/**
+	 * Number of libraries compiled in parallel during the warm-up.
+	 */
+	public int getLibraryWarmUpThreads() {
+		return library_warm_up_threads;
+	}
+
+	public void setLibraryWarmUpThreads(int library_warm_up_threads) {
+		this.library_warm_up_threads = library_warm_up_threads;
+	}
+
+	/**
+	 * Keeps the readiness probe refusing traffic until the startup warm-up has finished.
+	 */
+	public boolean isLibraryWarmUpHoldsReadiness() {
+		return library_warm_up_holds_readiness;
+	}
+
+	public void setLibraryWarmUpHoldsReadiness(boolean library_warm_up_holds_readiness) {
+		this.library_warm_up_holds_readiness = library_warm_up_holds_readiness;
+	}
+
+	/**
+	 * Compiles the cached libraries evicted by a Library change, the changed library and the libraries including it,
+	 * again in the background, instead of leaving that to their next evaluation.
+	 */
+	public boolean isLibraryRecompileOnChange() {
+		return library_recompile_on_change;
+	}
+
+	public void setLibraryRecompileOnChange(boolean library_recompile_on_change) {
+		this.library_recompile_on_change = library_recompile_on_change;
+	}
+
+	/**
+	 * Adds Library/[id]/$profile, which evaluates a library define by define for a sample of subjects and reports the
+	 * calls, time and retrieves of each define. Evaluations outside of the operation are not instrumented.
+	 */
+	public boolean isProfilingEnabled() {
+		return profiling_enabled;
+	}
+
+	public void setProfilingEnabled(boolean profiling_enabled) {
+		this.profiling_enabled = profiling_enabled;
+	}
+
+	/**
+	 * Most subjects one $profile request evaluates; without subjects in the request, that many patients are sampled.
+	 */
+	public int getProfilingMaxSubjects() {
+		return profiling_max_subjects;
+	}
+
+	public void setProfilingMaxSubjects(int profiling_max_subjects) {
+		this.profiling_max_subjects = profiling_max_subjects;
+	}
 }
@@ -7,6 +7,7 @@ import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
 import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
 import org.hl7.cql.model.ModelIdentifier;
@@ -16,26 +17,24 @@ import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.fhir.cql.EvaluationSettings;
 import org.opencds.cqf.fhir.cql.engine.retrieve.RetrieveSettings;
 import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
-import org.opencds.cqf.fhir.cr.hapi.common.CodeCacheResourceChangeListener;
-import org.opencds.cqf.fhir.cr.hapi.common.CqlThreadFactory;
-import org.opencds.cqf.fhir.cr.hapi.common.ElmCacheResourceChangeListener;
 import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
-import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 
+import java.nio.file.Path;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 @Configuration
 @Conditional({CrConfigCondition.class})
@@ -62,6 +61,8 @@ public class CrCommonConfig {
 			CrProperties theCrProperties,
 			RetrieveSettings theRetrieveSettings,
 			TerminologySettings theTerminologySettings,
+			DaoRegistry theDaoRegistry,
+			CqlLibraryCache theCqlLibraryCache,
 			Map<VersionedIdentifier, CompiledLibrary> theGlobalLibraryCache,
 			Map<ModelIdentifier, Model> theGlobalModelCache,
 			Map<String, List<Code>> theGlobalValueSetCache) {
@@ -135,6 +136,13 @@ public class CrCommonConfig {
 		cqlCompilerOptions.setCollapseDataRequirements(cqlCompilerProperties.isCollapseDataRequirements());
 
 		cqlOptions.setCqlCompilerOptions(cqlCompilerOptions);
+		if (cqlCompilerProperties.isElmCacheEnabled()) {
+			theCqlLibraryCache.setPersistentElmCache(new PersistentElmCache(
+					Path.of(cqlCompilerProperties.getElmCacheDirectory()),
+					cqlCompilerOptions,
+					new ModelManager(theGlobalModelCache),
+					PersistentElmCache.libraryContentLookup(theDaoRegistry, theDaoRegistry.getFhirContext())));
+		}
 		evaluationSettings.setLibraryCache(theGlobalLibraryCache);
 		evaluationSettings.setModelCache(theGlobalModelCache);
 		evaluationSettings.setValueSetCache(theGlobalValueSetCache);
@@ -143,14 +151,15 @@ public class CrCommonConfig {
 		return evaluationSettings;
 	}
 
-	@Primary
 	@Bean
-	public ExecutorService cqlExecutor() {
-		CqlThreadFactory factory = new CqlThreadFactory();
-		ExecutorService executor = Executors.newFixedThreadPool(2, factory);
-		executor = new DelegatingSecurityContextExecutorService(executor);
+	public CqlExecutors cqlExecutors(CrProperties theCrProperties) {
+		return new CqlExecutors(theCrProperties.getExecutor());
+	}
 
-		return executor;
+	@Primary
+	@Bean
+	public ExecutorService cqlExecutor(CqlExecutors theCqlExecutors) {
+		return theCqlExecutors.get(CqlExecutors.DEFAULT);
 	}
 
 	@Bean
@@ -183,8 +192,13 @@ public class CrCommonConfig {
 	}
 
 	@Bean
-	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	public CqlLibraryCache cqlLibraryCache(CrProperties theCrProperties) {
+		return new CqlLibraryCache(theCrProperties.getCql().getRuntime());
+	}
+
+	@Bean
+	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache(CqlLibraryCache theCqlLibraryCache) {
+		return theCqlLibraryCache.asMap();
 	}
 
 	@Bean
@@ -194,34 +208,53 @@ public class CrCommonConfig {
 
 	@Bean
 	public Map<String, List<Code>> globalValueSetCache() {
-		return new ConcurrentHashMap<>();
+		return new CompactValueSetCache();
 	}
 
 	@Bean
-	public ElmCacheResourceChangeListener elmCacheResourceChangeListener(
-			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
+	public CqlLibraryWarmUp cqlLibraryWarmUp(
+			CrProperties theCrProperties,
 			DaoRegistry theDaoRegistry,
-			EvaluationSettings theEvaluationSettings) {
-		ElmCacheResourceChangeListener listener =
-				new ElmCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getLibraryCache());
-		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
-				"Library", SearchParameterMap.newSynchronous(), listener, 1000);
-		return listener;
+			RestfulServer theRestfulServer,
+			EvaluationSettings theEvaluationSettings,
+			ApplicationEventPublisher theApplicationEventPublisher) {
+		return new CqlLibraryWarmUp(
+				theCrProperties.getCql().getRuntime(),
+				theDaoRegistry,
+				CqlLibraryWarmUp.engineCompiler(theDaoRegistry, theRestfulServer, theEvaluationSettings),
+				theApplicationEventPublisher);
 	}
 
+	/**
+	 * Takes the place of Spring Boot's application availability, so the CQL library warm-up can hold readiness. Only
+	 * registered when the warm-up is enabled and holds readiness, as Spring Boot's own is used otherwise.
+	 */
 	@Bean
-	public CodeCacheResourceChangeListener codeCacheResourceChangeListener(
-			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
-			EvaluationSettings theEvaluationSettings,
-			DaoRegistry theDaoRegistry) {
+	@Conditional({CqlLibraryWarmUpReadinessCondition.class})
+	public CqlLibraryWarmUp.ReadinessHoldingAvailability applicationAvailability(
+			ObjectProvider<CqlLibraryWarmUp> theCqlLibraryWarmUp) {
+		return new CqlLibraryWarmUp.ReadinessHoldingAvailability(theCqlLibraryWarmUp::getIfAvailable);
+	}
 
-		CodeCacheResourceChangeListener listener =
-				new CodeCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getValueSetCache());
-		// registry
+	@Bean
+	public CqlCacheInvalidator cqlCacheInvalidator(
+			CrProperties theCrProperties,
+			CqlLibraryCache theCqlLibraryCache,
+			EvaluationSettings theEvaluationSettings,
+			DaoRegistry theDaoRegistry,
+			CqlLibraryWarmUp theCqlLibraryWarmUp,
+			IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		CqlCacheInvalidator invalidator = new CqlCacheInvalidator(
+				theCqlLibraryCache,
+				theEvaluationSettings.getValueSetCache(),
+				theDaoRegistry,
+				theCrProperties.getCql().getRuntime(),
+				theCqlLibraryWarmUp::warmUp);
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
-				"ValueSet", SearchParameterMap.newSynchronous(), listener, 1000);
-
-		return listener;
+				"Library", SearchParameterMap.newSynchronous(), invalidator, 1000);
+		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"ValueSet", SearchParameterMap.newSynchronous(), invalidator, 1000);
+		return invalidator;
 	}
 
 	@Bean
@@ -5,6 +5,8 @@ public class CrProperties {
 
 	private CareGapsProperties careGaps = new CareGapsProperties();
 	private CqlProperties cql = new CqlProperties();
+	private CqlExecutorProperties executor = new CqlExecutorProperties();
+	private MeasureProperties measure = new MeasureProperties();
 
 	public Boolean getEnabled() {
 		return enabled;
@@ -29,4 +31,20 @@ public class CrProperties {
 	public void setCql(CqlProperties cql) {
 		this.cql = cql;
 	}
+
+	public CqlExecutorProperties getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(CqlExecutorProperties executor) {
+		this.executor = executor;
+	}
+
+	public MeasureProperties getMeasure() {
+		return measure;
+	}
+
+	public void setMeasure(MeasureProperties measure) {
+		this.measure = measure;
+	}
 }
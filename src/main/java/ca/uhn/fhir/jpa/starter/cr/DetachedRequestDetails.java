@@ -0,0 +1,137 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.IRestfulServerDefaults;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A copy of a request's details that outlives the request, for work it started that runs on after the response was
+ * sent. Unlike a SystemRequestDetails the copy is still the requester's request: the interceptors, e.g. authorization
+ * and partitioning, see the same tenant, headers and user data, but nothing refers to the servlet request any more.
+ */
+public class DetachedRequestDetails extends RequestDetails {
+
+	private final FhirContext fhirContext;
+	private final IRestfulServerDefaults server;
+	private final String serverBaseForRequest;
+	private final Charset charset;
+	private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+	private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+	public DetachedRequestDetails(ServletRequestDetails theRequestDetails) {
+		super(theRequestDetails.getInterceptorBroadcaster());
+		fhirContext = theRequestDetails.getFhirContext();
+		server = theRequestDetails.getServer();
+		serverBaseForRequest = theRequestDetails.getServerBaseForRequest();
+		charset = theRequestDetails.getCharset() == null ? StandardCharsets.UTF_8 : theRequestDetails.getCharset();
+		setTenantId(theRequestDetails.getTenantId());
+		setFhirServerBase(theRequestDetails.getFhirServerBase());
+		setCompleteUrl(theRequestDetails.getCompleteUrl());
+		setRequestPath(theRequestDetails.getRequestPath());
+		setRequestType(theRequestDetails.getRequestType());
+		setRestOperationType(theRequestDetails.getRestOperationType());
+		setResourceName(theRequestDetails.getResourceName());
+		setOperation(theRequestDetails.getOperation());
+		setId(theRequestDetails.getId());
+		setParameters(theRequestDetails.getParameters());
+		setRequestId(theRequestDetails.getRequestId());
+		getUserData().putAll(theRequestDetails.getUserData());
+		HttpServletRequest request = theRequestDetails.getServletRequest();
+		for (String name : Collections.list(request.getHeaderNames())) {
+			headers.put(name, List.copyOf(Collections.list(request.getHeaders(name))));
+		}
+	}
+
+	@Override
+	protected byte[] getByteStreamRequestContents() {
+		return new byte[0];
+	}
+
+	@Override
+	public Charset getCharset() {
+		return charset;
+	}
+
+	@Override
+	public FhirContext getFhirContext() {
+		return fhirContext;
+	}
+
+	@Override
+	public String getHeader(String theName) {
+		List<String> values = getHeaders(theName);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	@Override
+	public List<String> getHeaders(String theName) {
+		synchronized (headers) {
+			return headers.getOrDefault(theName, List.of());
+		}
+	}
+
+	@Override
+	public void addHeader(String theName, String theValue) {
+		synchronized (headers) {
+			List<String> values = new ArrayList<>(headers.getOrDefault(theName, List.of()));
+			values.add(theValue);
+			headers.put(theName, List.copyOf(values));
+		}
+	}
+
+	@Override
+	public void setHeaders(String theName, List<String> theValues) {
+		synchronized (headers) {
+			headers.put(theName, List.copyOf(theValues));
+		}
+	}
+
+	@Override
+	public Object getAttribute(String theAttributeName) {
+		return attributes.get(theAttributeName);
+	}
+
+	@Override
+	public void setAttribute(String theAttributeName, Object theAttributeValue) {
+		if (theAttributeValue == null) {
+			attributes.remove(theAttributeName);
+		} else {
+			attributes.put(theAttributeName, theAttributeValue);
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return new ByteArrayInputStream(getByteStreamRequestContents());
+	}
+
+	@Override
+	public Reader getReader() {
+		return new InputStreamReader(getInputStream(), charset);
+	}
+
+	@Override
+	public IRestfulServerDefaults getServer() {
+		return server;
+	}
+
+	@Override
+	public String getServerBaseForRequest() {
+		return serverBaseForRequest;
+	}
+}
@@ -0,0 +1,97 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class MeasureProperties {
+
+	private int shard_size = 0;
+	private int retrieve_block_size = 0;
+	private int shared_retrieve_cache_size = 0;
+	private boolean report_cache_enabled = false;
+	private int report_cache_max_megabytes = 64;
+	private int report_cache_ttl_seconds = 3600;
+	private String report_cache_evict_token;
+
+	/**
+	 * Subjects per shard of a population $evaluate-measure. Populations larger than this are evaluated shard by shard
+	 * in parallel on the CQL measure pool; 0 evaluates every population in one pass.
+	 */
+	public int getShardSize() {
+		return shard_size;
+	}
+
+	public void setShardSize(int shard_size) {
+		this.shard_size = shard_size;
+	}
+
+	/**
+	 * Subjects whose data a population $evaluate-measure loads with one query per data requirement, e.g.
+	 * {@code Condition?subject=Patient/a,Patient/b,...}, instead of one query per subject; 0 retrieves subject by
+	 * subject.
+	 */
+	public int getRetrieveBlockSize() {
+		return retrieve_block_size;
+	}
+
+	public void setRetrieveBlockSize(int retrieve_block_size) {
+		this.retrieve_block_size = retrieve_block_size;
+	}
+
+	/**
+	 * Distinct patient-independent searches, ones that name none of the subjects (e.g. {@code [Location]}, or any
+	 * retrieve in the Unfiltered context), whose results a population $evaluate-measure keeps and reuses for all of its
+	 * subjects instead of running them again for each; 0 runs them for every subject.
+	 */
+	public int getSharedRetrieveCacheSize() {
+		return shared_retrieve_cache_size;
+	}
+
+	public void setSharedRetrieveCacheSize(int shared_retrieve_cache_size) {
+		this.shared_retrieve_cache_size = shared_retrieve_cache_size;
+	}
+
+	/**
+	 * Whether $evaluate-measure results are cached and served again until a resource of a type their evaluation read
+	 * changes.
+	 */
+	public boolean isReportCacheEnabled() {
+		return report_cache_enabled;
+	}
+
+	public void setReportCacheEnabled(boolean report_cache_enabled) {
+		this.report_cache_enabled = report_cache_enabled;
+	}
+
+	/**
+	 * Heap, in megabytes, the cached measure reports may take up before the least recently used are evicted.
+	 */
+	public int getReportCacheMaxMegabytes() {
+		return report_cache_max_megabytes;
+	}
+
+	public void setReportCacheMaxMegabytes(int report_cache_max_megabytes) {
+		this.report_cache_max_megabytes = report_cache_max_megabytes;
+	}
+
+	/**
+	 * Seconds a cached measure report is served at most, bounding how stale it gets when data changes outside this
+	 * server; 0 keeps reports until their data changes or they are evicted.
+	 */
+	public int getReportCacheTtlSeconds() {
+		return report_cache_ttl_seconds;
+	}
+
+	public void setReportCacheTtlSeconds(int report_cache_ttl_seconds) {
+		this.report_cache_ttl_seconds = report_cache_ttl_seconds;
+	}
+
+	/**
+	 * Bearer token $measure-report-cache-evict requires in the Authorization header. Without one, who may evict is
+	 * left to the server's interceptors, such as an AuthorizationInterceptor rule for the operation.
+	 */
+	public String getReportCacheEvictToken() {
+		return report_cache_evict_token;
+	}
+
+	public void setReportCacheEvictToken(String report_cache_evict_token) {
+		this.report_cache_evict_token = report_cache_evict_token;
+	}
+}
@@ -0,0 +1,203 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of $evaluate-measure results. Next to the request, every entry records the resource types its
+ * evaluation read, always including Measure, Library, ValueSet and CodeSystem as those may come from the CQL caches
+ * rather than the repository, and the data watermark of each: the number of changes this server had stored for that
+ * type when the evaluation started. An entry is served as long as none of its types has changed since, and is
+ * evaluated again otherwise. Reports are kept in their encoded form so every hit hands out a fresh copy.
+ * <p>
+ * Only changes stored through this server move the watermarks, once when the change is about to commit and again once
+ * it has, so a report evaluated in between, from the data before the change, is not served afterwards. Entries are
+ * shared by all callers of a tenant, so the cache suits deployments where every caller of $evaluate-measure may see
+ * the same data.
+ */
+@Interceptor
+public class MeasureReportCache implements MeterBinder {
+
+	private static final Set<String> KNOWLEDGE_TYPES = Set.of("Measure", "Library", "ValueSet", "CodeSystem");
+
+	public record Key(
+			String tenant,
+			String measure,
+			String periodStart,
+			String periodEnd,
+			String reportType,
+			String subject,
+			String practitioner,
+			String productLine,
+			String lastReceivedOn,
+			String parameters) {}
+
+	private record Entry(String report, Map<String, Long> watermarks) {}
+
+	private final FhirContext fhirContext;
+	private final Cache<Key, Entry> cache;
+	private final Map<String, AtomicLong> changes = new ConcurrentHashMap<>();
+	private final AtomicLong stale = new AtomicLong();
+
+	public MeasureReportCache(FhirContext theFhirContext, MeasureProperties theProperties) {
+		fhirContext = theFhirContext;
+		Caffeine<Object, Object> builder = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getReportCacheMaxMegabytes() * 1024L * 1024L)
+				.executor(Runnable::run)
+				.recordStats();
+		if (theProperties.getReportCacheTtlSeconds() > 0) {
+			builder.expireAfterWrite(Duration.ofSeconds(theProperties.getReportCacheTtlSeconds()));
+		}
+		// Strings are UTF-16 on the heap
+		cache = builder.<Key, Entry>weigher((key, entry) -> entry.report().length() * 2)
+				.build();
+	}
+
+	/**
+	 * Returns the cached report for the key if none of the resource types it was evaluated from changed since, and
+	 * otherwise evaluates it, passing the evaluation a set to add the resource types it reads to.
+	 */
+	public MeasureReport get(Key theKey, Function<Set<String>, MeasureReport> theEvaluation) {
+		Entry entry = cache.getIfPresent(theKey);
+		if (entry != null) {
+			if (isCurrent(entry)) {
+				return fhirContext.newJsonParser().parseResource(MeasureReport.class, entry.report());
+			}
+			stale.incrementAndGet();
+			cache.invalidate(theKey);
+		}
+
+		Map<String, Long> before = new HashMap<>();
+		changes.forEach((type, count) -> before.put(type, count.get()));
+		Set<String> types = ConcurrentHashMap.newKeySet();
+		types.addAll(KNOWLEDGE_TYPES);
+		MeasureReport report = theEvaluation.apply(types);
+		if (report != null) {
+			Map<String, Long> watermarks = new HashMap<>();
+			types.forEach(type -> watermarks.put(type, before.getOrDefault(type, 0L)));
+			cache.put(theKey, new Entry(fhirContext.newJsonParser().encodeResourceToString(report), watermarks));
+		}
+		return report;
+	}
+
+	/**
+	 * Evicts the reports of a measure, as referenced in the request (its canonical URL or id), or all reports.
+	 *
+	 * @return the number of evicted reports
+	 */
+	public long evict(String theMeasure) {
+		long before = cache.estimatedSize();
+		if (theMeasure == null) {
+			cache.invalidateAll();
+		} else {
+			cache.asMap().keySet().removeIf(key -> Objects.equals(key.measure(), theMeasure));
+		}
+		cache.cleanUp();
+		return Math.max(0, before - cache.estimatedSize());
+	}
+
+	/**
+	 * Evicts the reports of a measure, or all reports, of one tenant only.
+	 *
+	 * @return the number of evicted reports
+	 */
+	public long evict(String theTenant, String theMeasure) {
+		long before = cache.estimatedSize();
+		cache.asMap()
+				.keySet()
+				.removeIf(key -> Objects.equals(key.tenant(), theTenant)
+						&& (theMeasure == null || Objects.equals(key.measure(), theMeasure)));
+		cache.cleanUp();
+		return Math.max(0, before - cache.estimatedSize());
+	}
+
+	private boolean isCurrent(Entry theEntry) {
+		for (Map.Entry<String, Long> watermark : theEntry.watermarks().entrySet()) {
+			AtomicLong count = changes.get(watermark.getKey());
+			if ((count == null ? 0L : count.get()) != watermark.getValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		changed(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		changed(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		changed(theResource);
+	}
+
+	private void changed(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+		String type = fhirContext.getResourceType(theResource);
+		advance(type);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					advance(type);
+				}
+			});
+		}
+	}
+
+	private void advance(String theResourceType) {
+		changes.computeIfAbsent(theResourceType, type -> new AtomicLong()).incrementAndGet();
+	}
+
+	public long getEntryCount() {
+		return cache.estimatedSize();
+	}
+
+	public long getWeightInBytes() {
+		return cache.policy()
+				.eviction()
+				.map(eviction -> eviction.weightedSize().orElse(0L))
+				.orElse(0L);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		CaffeineCacheMetrics.monitor(theRegistry, cache, "cql.measure.reports");
+		Gauge.builder("cql.measure.reports.memory", this, MeasureReportCache::getWeightInBytes)
+				.description("Estimated heap used by cached measure reports")
+				.baseUnit("bytes")
+				.register(theRegistry);
+		FunctionCounter.builder("cql.measure.reports.stale", stale, AtomicLong::get)
+				.description("Cached measure reports found outdated by changes to the data they were evaluated from")
+				.register(theRegistry);
+	}
+}
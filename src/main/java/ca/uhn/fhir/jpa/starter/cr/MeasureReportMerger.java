@@ -0,0 +1,157 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Adds up population MeasureReports evaluated over disjoint sets of subjects into one report: population counts are
+ * summed per group, per stratum and per population code, strata only found in some of the reports are carried over,
+ * and evaluated resources are combined. Scores are left to be computed once all reports are merged.
+ */
+public class MeasureReportMerger {
+
+	private final MeasureReport merged;
+	private final Set<String> evaluatedResources = new HashSet<>();
+
+	/**
+	 * Starts from a copy of the first report, to which the others are added.
+	 */
+	public MeasureReportMerger(MeasureReport theFirst) {
+		merged = theFirst.copy();
+		merged.getEvaluatedResource().forEach(reference -> evaluatedResources.add(reference.getReference()));
+	}
+
+	public MeasureReport getMerged() {
+		return merged;
+	}
+
+	public void add(MeasureReport theReport) {
+		List<MeasureReport.MeasureReportGroupComponent> groups = theReport.getGroup();
+		for (int i = 0; i < groups.size(); i++) {
+			MeasureReport.MeasureReportGroupComponent group = groups.get(i);
+			MeasureReport.MeasureReportGroupComponent into = findGroup(group, i);
+			if (into == null) {
+				merged.addGroup(group.copy());
+				continue;
+			}
+			for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+				addGroupPopulation(into, population);
+			}
+			List<MeasureReport.MeasureReportGroupStratifierComponent> stratifiers = group.getStratifier();
+			for (int j = 0; j < stratifiers.size(); j++) {
+				addStratifier(into, stratifiers.get(j), j);
+			}
+		}
+		for (Reference reference : theReport.getEvaluatedResource()) {
+			if (evaluatedResources.add(reference.getReference())) {
+				merged.addEvaluatedResource(reference.copy());
+			}
+		}
+	}
+
+	private MeasureReport.MeasureReportGroupComponent findGroup(
+			MeasureReport.MeasureReportGroupComponent theGroup, int theIndex) {
+		if (theGroup.hasId()) {
+			return merged.getGroup().stream()
+					.filter(group -> theGroup.getId().equals(group.getId()))
+					.findFirst()
+					.orElse(null);
+		}
+		return theIndex < merged.getGroup().size() ? merged.getGroup().get(theIndex) : null;
+	}
+
+	private static void addGroupPopulation(
+			MeasureReport.MeasureReportGroupComponent theInto,
+			MeasureReport.MeasureReportGroupPopulationComponent thePopulation) {
+		String key = key(thePopulation.getCode());
+		for (MeasureReport.MeasureReportGroupPopulationComponent population : theInto.getPopulation()) {
+			if (key.equals(key(population.getCode()))) {
+				population.setCount(population.getCount() + thePopulation.getCount());
+				return;
+			}
+		}
+		theInto.addPopulation(thePopulation.copy());
+	}
+
+	private static void addStratifier(
+			MeasureReport.MeasureReportGroupComponent theInto,
+			MeasureReport.MeasureReportGroupStratifierComponent theStratifier,
+			int theIndex) {
+		MeasureReport.MeasureReportGroupStratifierComponent into = null;
+		if (theStratifier.hasId()) {
+			into = theInto.getStratifier().stream()
+					.filter(stratifier -> theStratifier.getId().equals(stratifier.getId()))
+					.findFirst()
+					.orElse(null);
+		} else if (theIndex < theInto.getStratifier().size()) {
+			into = theInto.getStratifier().get(theIndex);
+		}
+		if (into == null) {
+			theInto.addStratifier(theStratifier.copy());
+			return;
+		}
+		for (MeasureReport.StratifierGroupComponent stratum : theStratifier.getStratum()) {
+			addStratum(into, stratum);
+		}
+	}
+
+	private static void addStratum(
+			MeasureReport.MeasureReportGroupStratifierComponent theInto,
+			MeasureReport.StratifierGroupComponent theStratum) {
+		String key = key(theStratum);
+		for (MeasureReport.StratifierGroupComponent stratum : theInto.getStratum()) {
+			if (key.equals(key(stratum))) {
+				for (MeasureReport.StratifierGroupPopulationComponent population : theStratum.getPopulation()) {
+					addStratumPopulation(stratum, population);
+				}
+				return;
+			}
+		}
+		theInto.addStratum(theStratum.copy());
+	}
+
+	private static void addStratumPopulation(
+			MeasureReport.StratifierGroupComponent theInto,
+			MeasureReport.StratifierGroupPopulationComponent thePopulation) {
+		String key = key(thePopulation.getCode());
+		for (MeasureReport.StratifierGroupPopulationComponent population : theInto.getPopulation()) {
+			if (key.equals(key(population.getCode()))) {
+				population.setCount(population.getCount() + thePopulation.getCount());
+				return;
+			}
+		}
+		theInto.addPopulation(thePopulation.copy());
+	}
+
+	private static String key(MeasureReport.StratifierGroupComponent theStratum) {
+		return key(theStratum.getValue())
+				+ theStratum.getComponent().stream()
+						.map(component -> key(component.getCode()) + "=" + key(component.getValue()))
+						.sorted()
+						.collect(Collectors.joining(";", "{", "}"));
+	}
+
+	private static String key(CodeableConcept theConcept) {
+		if (theConcept == null || theConcept.isEmpty()) {
+			return "";
+		}
+		if (!theConcept.hasCoding()) {
+			return theConcept.getText();
+		}
+		return theConcept.getCoding().stream()
+				.map(MeasureReportMerger::key)
+				.sorted()
+				.collect(Collectors.joining(","));
+	}
+
+	private static String key(Coding theCoding) {
+		return theCoding.getSystem() + "|" + theCoding.getCode();
+	}
+}
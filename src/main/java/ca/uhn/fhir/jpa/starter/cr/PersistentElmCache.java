@@ -0,0 +1,515 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibraryBuilder;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.cql2elm.model.Model;
+import org.cqframework.cql.elm.serializing.jackson.ElmJsonLibraryReader;
+import org.cqframework.cql.elm.serializing.jackson.ElmJsonLibraryWriter;
+import org.hl7.cql.model.ChoiceType;
+import org.hl7.cql.model.DataType;
+import org.hl7.cql.model.IntervalType;
+import org.hl7.cql.model.ListType;
+import org.hl7.cql.model.ModelIdentifier;
+import org.hl7.cql.model.TupleType;
+import org.hl7.cql.model.TupleTypeElement;
+import org.hl7.elm.r1.ChoiceTypeSpecifier;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.FunctionDef;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.IntervalTypeSpecifier;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.ListTypeSpecifier;
+import org.hl7.elm.r1.NamedTypeSpecifier;
+import org.hl7.elm.r1.OperandDef;
+import org.hl7.elm.r1.Retrieve;
+import org.hl7.elm.r1.SingletonFrom;
+import org.hl7.elm.r1.TupleElementDefinition;
+import org.hl7.elm.r1.TupleTypeSpecifier;
+import org.hl7.elm.r1.TypeSpecifier;
+import org.hl7.elm.r1.UsingDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.xml.namespace.QName;
+
+/**
+ * Keeps the ELM of compiled CQL libraries on disk, so that a restarted server reads it back instead of compiling the
+ * same CQL again. An entry is keyed by the library's name, version and canonical URL, a hash of its CQL content, the
+ * translator version and the compiler options in use, and by the content hashes of the libraries it includes, since
+ * its ELM carries the types it resolved from them. A library whose CQL, or whose includes' CQL, changed no longer
+ * matches its entry, is compiled again and its stale entry is replaced.
+ * <p>
+ * The {@link CqlLibraryCache} writes libraries here once compiled and reads them back lazily when a library is
+ * missing from memory. The library manager drops ELM it did not compile itself unless every statement carries its
+ * resolved type, which deserialized ELM lacks, so entries are read here and their types are resolved from the result
+ * type specifiers the compiler writes with the EnableResultTypes option. Without that option nothing is persisted.
+ * <p>
+ * Content is looked up once per library within {@link #withContentSnapshot(Supplier)}, which the library cache opens
+ * around a load and the compilation that may follow. A library missing here is stored under the content it had when
+ * it was found missing, i.e. before it was compiled, so CQL changed during the compilation is not stored with the ELM
+ * of the old CQL.
+ */
+public class PersistentElmCache {
+	private static final Logger ourLog = LoggerFactory.getLogger(PersistentElmCache.class);
+
+	private static final String CQL_CONTENT_TYPE = "text/cql";
+	private static final String ELM_SUFFIX = ".json";
+	private static final String TRANSLATOR_VERSION =
+			LibraryBuilder.class.getPackage().getImplementationVersion();
+
+	private final Path directory;
+	private final ModelManager modelManager;
+	private final String optionsKey;
+	private final boolean enabled;
+	private final Function<VersionedIdentifier, LibraryContent> contentLookup;
+	private final ThreadLocal<Map<String, Optional<LibraryContent>>> contentSnapshot = new ThreadLocal<>();
+	// The content of libraries found missing, until they are compiled and stored
+	private final Cache<String, Optional<LibraryContent>> missingContent = Caffeine.newBuilder()
+			.maximumSize(1000)
+			.expireAfterWrite(Duration.ofMinutes(10))
+			.build();
+
+	/**
+	 * @param theContentLookup finds the canonical URL and CQL content hash of a library, or returns null for
+	 *                         libraries that should not be persisted
+	 */
+	public PersistentElmCache(
+			Path theDirectory,
+			CqlCompilerOptions theCompilerOptions,
+			ModelManager theModelManager,
+			Function<VersionedIdentifier, LibraryContent> theContentLookup) {
+		directory = theDirectory;
+		modelManager = theModelManager;
+		optionsKey = optionsKey(theCompilerOptions);
+		contentLookup = theContentLookup;
+		enabled = theCompilerOptions.getOptions().contains(CqlCompilerOptions.Options.EnableResultTypes);
+		if (!enabled) {
+			ourLog.warn(
+					"The ELM cache needs the compiler's result types (enable_results_type), compiled ELM is not kept");
+		}
+	}
+
+	/**
+	 * @return the library as compiled from its current content, or null if it has to be compiled
+	 */
+	public CompiledLibrary load(VersionedIdentifier theIdentifier) {
+		if (!isPersisted(theIdentifier)) {
+			return null;
+		}
+		LibraryContent content = lookup(theIdentifier);
+		String contentKey = contentKey(theIdentifier, content);
+		if (contentKey == null) {
+			return null;
+		}
+		CompiledLibrary compiled = read(theIdentifier, contentKey);
+		if (compiled == null) {
+			// Compiled next, from the content it has now
+			missingContent.put(key(theIdentifier), Optional.of(content));
+		}
+		return compiled;
+	}
+
+	private CompiledLibrary read(VersionedIdentifier theIdentifier, String theContentKey) {
+		Path file = find(theIdentifier, theContentKey);
+		if (file == null) {
+			return null;
+		}
+		try {
+			Library library = new ElmJsonLibraryReader().read(file.toFile());
+			// The includes are only known from the ELM, so whether they still match is checked once it is read
+			if (!file.equals(entry(theIdentifier, theContentKey, library))) {
+				ourLog.debug("The cached ELM of library {} was compiled against other includes", theIdentifier.getId());
+				return null;
+			}
+			CompiledLibrary compiled = toCompiledLibrary(library);
+			ourLog.debug("Read the ELM of library {} from {}", theIdentifier.getId(), file);
+			return compiled;
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Could not read cached ELM {}, compiling library {} instead", file, theIdentifier.getId(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the ELM of a freshly compiled library, replacing the entries of earlier versions of its content.
+	 */
+	public void store(VersionedIdentifier theIdentifier, CompiledLibrary theLibrary) {
+		if (theLibrary == null || theLibrary.getLibrary() == null || !isPersisted(theIdentifier)) {
+			return;
+		}
+		Optional<LibraryContent> missing = missingContent.asMap().remove(key(theIdentifier));
+		String contentKey =
+				contentKey(theIdentifier, missing != null ? missing.orElse(null) : lookup(theIdentifier));
+		Path file = contentKey == null ? null : entry(theIdentifier, contentKey, theLibrary.getLibrary());
+		if (file == null || Files.isRegularFile(file)) {
+			return;
+		}
+		try {
+			Files.createDirectories(file.getParent());
+			removeStaleEntries(file);
+			Path temporary =
+					Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+				new ElmJsonLibraryWriter().write(theLibrary.getLibrary(), writer);
+			}
+			// Readers on other threads or servers sharing the directory only ever see a complete entry
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			ourLog.debug("Wrote the ELM of library {} to {}", theIdentifier.getId(), file);
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Could not write the ELM of library {} to {}", theIdentifier.getId(), file, e);
+		}
+	}
+
+	/**
+	 * Deletes every entry of a library version, e.g. because a library it includes changed, which its own content
+	 * hash does not reflect.
+	 */
+	public void remove(VersionedIdentifier theIdentifier) {
+		if (!enabled || theIdentifier == null || theIdentifier.getId() == null || theIdentifier.getVersion() == null) {
+			return;
+		}
+		Path versionDirectory = versionDirectory(theIdentifier);
+		if (!Files.isDirectory(versionDirectory)) {
+			return;
+		}
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(versionDirectory, "*" + ELM_SUFFIX)) {
+			for (Path entry : entries) {
+				Files.deleteIfExists(entry);
+			}
+		} catch (IOException e) {
+			ourLog.warn("Could not remove the cached ELM of library {}", theIdentifier.getId(), e);
+		}
+	}
+
+	/**
+	 * @return the entry written for the library's current content, whichever includes it was compiled against
+	 */
+	private Path find(VersionedIdentifier theIdentifier, String theContentKey) {
+		Path versionDirectory = versionDirectory(theIdentifier);
+		if (!Files.isDirectory(versionDirectory)) {
+			return null;
+		}
+		try (DirectoryStream<Path> entries =
+				Files.newDirectoryStream(versionDirectory, theContentKey + "-*" + ELM_SUFFIX)) {
+			for (Path entry : entries) {
+				return entry;
+			}
+		} catch (IOException e) {
+			ourLog.warn("Could not list the cached ELM of library {}", theIdentifier.getId(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the work with each library's content looked up at most once on this thread, also by nested calls.
+	 */
+	public <T> T withContentSnapshot(Supplier<T> theWork) {
+		if (!enabled || contentSnapshot.get() != null) {
+			return theWork.get();
+		}
+		contentSnapshot.set(new HashMap<>());
+		try {
+			return theWork.get();
+		} finally {
+			contentSnapshot.remove();
+		}
+	}
+
+	private boolean isPersisted(VersionedIdentifier theIdentifier) {
+		// Without a version the compiler resolves whatever is latest, which may change under the same key
+		return enabled && theIdentifier != null && theIdentifier.getId() != null && theIdentifier.getVersion() != null;
+	}
+
+	private LibraryContent lookup(VersionedIdentifier theIdentifier) {
+		Map<String, Optional<LibraryContent>> snapshot = contentSnapshot.get();
+		if (snapshot == null) {
+			return contentLookup.apply(theIdentifier);
+		}
+		return snapshot.computeIfAbsent(
+						key(theIdentifier), key -> Optional.ofNullable(contentLookup.apply(theIdentifier)))
+				.orElse(null);
+	}
+
+	private static String key(VersionedIdentifier theIdentifier) {
+		return theIdentifier.getId() + "|" + theIdentifier.getVersion();
+	}
+
+	/**
+	 * @return the key of the library's content, or null if the library is not persisted
+	 */
+	private String contentKey(VersionedIdentifier theIdentifier, LibraryContent theContent) {
+		if (theContent == null || theContent.getCqlHash() == null) {
+			return null;
+		}
+		return sha256(String.join(
+				"|",
+				String.valueOf(theIdentifier.getSystem()),
+				theIdentifier.getId(),
+				theIdentifier.getVersion(),
+				String.valueOf(theContent.getUrl()),
+				theContent.getCqlHash(),
+				String.valueOf(TRANSLATOR_VERSION),
+				optionsKey));
+	}
+
+	/**
+	 * @return the entry of the library's ELM as compiled against the current content of its includes, or null if
+	 *         an include is not versioned
+	 */
+	private Path entry(VersionedIdentifier theIdentifier, String theContentKey, Library theLibrary) {
+		TreeSet<String> includes = new TreeSet<>();
+		if (theLibrary.getIncludes() != null) {
+			for (IncludeDef include : theLibrary.getIncludes().getDef()) {
+				if (include.getVersion() == null) {
+					return null;
+				}
+				VersionedIdentifier identifier =
+						new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion());
+				LibraryContent content = lookup(identifier);
+				// Libraries not looked up here, e.g. the embedded FHIRHelpers, only change with the server
+				includes.add(String.join(
+						"|", include.getPath(), include.getVersion(), content == null ? "" : content.getCqlHash()));
+			}
+		}
+		return versionDirectory(theIdentifier)
+				.resolve(theContentKey + "-" + sha256(String.join(",", includes)) + ELM_SUFFIX);
+	}
+
+	private Path versionDirectory(VersionedIdentifier theIdentifier) {
+		return directory.resolve(safeName(theIdentifier.getId())).resolve(safeName(theIdentifier.getVersion()));
+	}
+
+	/**
+	 * Does what the library manager does with ELM it loads, after resolving the types it needs for that.
+	 */
+	private CompiledLibrary toCompiledLibrary(Library theLibrary) {
+		if (theLibrary.getUsings() != null) {
+			for (UsingDef using : theLibrary.getUsings().getDef()) {
+				modelManager.resolveModel(
+						new ModelIdentifier().withId(using.getLocalIdentifier()).withVersion(using.getVersion()));
+			}
+		}
+
+		CompiledLibrary compiled = new CompiledLibrary();
+		compiled.setLibrary(theLibrary);
+		compiled.setIdentifier(theLibrary.getIdentifier());
+		if (theLibrary.getUsings() != null) {
+			theLibrary.getUsings().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getIncludes() != null) {
+			theLibrary.getIncludes().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getCodeSystems() != null) {
+			theLibrary.getCodeSystems().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getValueSets() != null) {
+			theLibrary.getValueSets().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getCodes() != null) {
+			theLibrary.getCodes().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getConcepts() != null) {
+			theLibrary.getConcepts().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getParameters() != null) {
+			theLibrary.getParameters().getDef().forEach(compiled::add);
+		}
+		if (theLibrary.getStatements() != null) {
+			for (ExpressionDef statement : theLibrary.getStatements().getDef()) {
+				if (statement instanceof FunctionDef) {
+					for (OperandDef operand : ((FunctionDef) statement).getOperand()) {
+						operand.setResultType(resolveType(operand.getOperandTypeSpecifier(), operand.getOperandType()));
+					}
+				}
+				statement.setResultType(resolveStatementType(statement));
+				compiled.add(statement);
+			}
+		}
+		return compiled;
+	}
+
+	private DataType resolveStatementType(ExpressionDef theStatement) {
+		if (theStatement.getResultTypeSpecifier() != null || theStatement.getResultTypeName() != null) {
+			return resolveType(theStatement.getResultTypeSpecifier(), theStatement.getResultTypeName());
+		}
+		// The compiler records no type for the definition it adds for a context, e.g. "Patient"
+		if (theStatement.getExpression() instanceof SingletonFrom
+				&& ((SingletonFrom) theStatement.getExpression()).getOperand() instanceof Retrieve) {
+			return resolveTypeName(
+					((Retrieve) ((SingletonFrom) theStatement.getExpression()).getOperand()).getDataType());
+		}
+		throw new IllegalStateException("No result type recorded for " + theStatement.getName());
+	}
+
+	private DataType resolveType(TypeSpecifier theSpecifier, QName theName) {
+		if (theSpecifier == null) {
+			return resolveTypeName(theName);
+		}
+		if (theSpecifier instanceof NamedTypeSpecifier) {
+			return resolveTypeName(((NamedTypeSpecifier) theSpecifier).getName());
+		}
+		if (theSpecifier instanceof ListTypeSpecifier) {
+			return new ListType(resolveType(((ListTypeSpecifier) theSpecifier).getElementType(), null));
+		}
+		if (theSpecifier instanceof IntervalTypeSpecifier) {
+			return new IntervalType(resolveType(((IntervalTypeSpecifier) theSpecifier).getPointType(), null));
+		}
+		if (theSpecifier instanceof TupleTypeSpecifier) {
+			List<TupleTypeElement> elements = new ArrayList<>();
+			for (TupleElementDefinition element : ((TupleTypeSpecifier) theSpecifier).getElement()) {
+				elements.add(new TupleTypeElement(element.getName(), resolveType(element.getElementType(), null)));
+			}
+			return new TupleType(elements);
+		}
+		if (theSpecifier instanceof ChoiceTypeSpecifier) {
+			List<DataType> choices = new ArrayList<>();
+			for (TypeSpecifier choice : ((ChoiceTypeSpecifier) theSpecifier).getChoice()) {
+				choices.add(resolveType(choice, null));
+			}
+			return new ChoiceType(choices);
+		}
+		throw new IllegalStateException(
+				"Unsupported type specifier " + theSpecifier.getClass().getSimpleName());
+	}
+
+	private DataType resolveTypeName(QName theName) {
+		if (theName == null) {
+			throw new IllegalStateException("ELM type without a name");
+		}
+		Model model = modelManager.resolveModelByUri(theName.getNamespaceURI());
+		DataType type = model.resolveTypeName(theName.getLocalPart());
+		if (type == null) {
+			type = model.resolveTypeName(model.getModelInfo().getName() + "." + theName.getLocalPart());
+		}
+		if (type == null) {
+			throw new IllegalStateException("Unknown type " + theName);
+		}
+		return type;
+	}
+
+	private static void removeStaleEntries(Path theCurrentEntry) throws IOException {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(theCurrentEntry.getParent(), "*" + ELM_SUFFIX)) {
+			for (Path entry : entries) {
+				if (!entry.equals(theCurrentEntry)) {
+					Files.deleteIfExists(entry);
+				}
+			}
+		}
+	}
+
+	static String optionsKey(CqlCompilerOptions theOptions) {
+		TreeSet<String> options = new TreeSet<>();
+		theOptions.getOptions().forEach(option -> options.add(option.name()));
+		return String.join(
+				",",
+				options.toString(),
+				String.valueOf(theOptions.getCompatibilityLevel()),
+				String.valueOf(theOptions.getSignatureLevel()),
+				String.valueOf(theOptions.getErrorLevel()),
+				String.valueOf(theOptions.getValidateUnits()),
+				String.valueOf(theOptions.getVerifyOnly()),
+				String.valueOf(theOptions.getEnableCqlOnly()),
+				String.valueOf(theOptions.getAnalyzeDataRequirements()),
+				String.valueOf(theOptions.getCollapseDataRequirements()));
+	}
+
+	public static String sha256(String theValue) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(theValue.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String safeName(String theName) {
+		return theName.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+	/**
+	 * Looks libraries up by name and version among the Library resources stored on this server and hashes the CQL
+	 * attachments of all matches. Libraries found nowhere else, e.g. the embedded FHIRHelpers, are not persisted.
+	 */
+	public static Function<VersionedIdentifier, LibraryContent> libraryContentLookup(
+			DaoRegistry theDaoRegistry, FhirContext theFhirContext) {
+		FhirTerser terser = theFhirContext.newTerser();
+		return identifier -> {
+			SearchParameterMap search = SearchParameterMap.newSynchronous()
+					.add("name", new StringParam(identifier.getId(), true))
+					.add("version", new TokenParam(identifier.getVersion()));
+			List<IBaseResource> libraries = theDaoRegistry
+					.getResourceDao("Library")
+					.search(search, new SystemRequestDetails())
+					.getAllResources();
+			List<String> hashes = new ArrayList<>();
+			String url = null;
+			for (IBaseResource library : libraries) {
+				url = terser.getSinglePrimitiveValueOrNull(library, "url");
+				for (IBase attachment : terser.getValues(library, "content")) {
+					if (CQL_CONTENT_TYPE.equals(terser.getSinglePrimitiveValueOrNull(attachment, "contentType"))) {
+						hashes.add(sha256(String.valueOf(terser.getSinglePrimitiveValueOrNull(attachment, "data"))));
+					}
+				}
+			}
+			if (hashes.isEmpty()) {
+				return null;
+			}
+			hashes.sort(null);
+			return new LibraryContent(libraries.size() == 1 ? url : null, sha256(String.join(",", hashes)));
+		};
+	}
+
+	/**
+	 * What a cached entry depends on besides the library's name and version.
+	 */
+	public static class LibraryContent {
+		private final String url;
+		private final String cqlHash;
+
+		public LibraryContent(String theUrl, String theCqlHash) {
+			url = theUrl;
+			cqlHash = theCqlHash;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public String getCqlHash() {
+			return cqlHash;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.repository.IRepository;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsBundleBuilder;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsParameters;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsProcessor;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsService;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Evaluates $care-gaps one patient at a time instead of building the whole result in memory. Requests are validated
+ * and their measures and subjects resolved exactly as $care-gaps does; the patients are then evaluated on the CQL
+ * care_gaps pool with at most the configured number in flight, and each patient's gaps bundle is handed to the caller
+ * as soon as it is complete, in completion order. Memory is bounded by the concurrency, not by the population.
+ */
+public class R4CareGapsStreamer {
+	private static final Logger logger = LoggerFactory.getLogger(R4CareGapsStreamer.class);
+
+	// Keys the care gaps bundle builder looks the configured organizations up by
+	private static final String REPORTER_KEY = "care_gaps_reporter";
+	private static final String SECTION_AUTHOR_KEY = "care_gaps_composition_section_author";
+
+	private final CareGapsProperties careGapsProperties;
+	private final MeasureEvaluationOptions measureEvaluationOptions;
+	private final MeasurePeriodValidator measurePeriodValidator;
+	private final ExecutorService executor;
+	private final int concurrency;
+
+	public R4CareGapsStreamer(
+			CareGapsProperties theCareGapsProperties,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasurePeriodValidator theMeasurePeriodValidator,
+			ExecutorService theExecutor,
+			int theConcurrency) {
+		careGapsProperties = theCareGapsProperties;
+		measureEvaluationOptions = theMeasureEvaluationOptions;
+		measurePeriodValidator = theMeasurePeriodValidator;
+		executor = theExecutor;
+		concurrency = Math.max(1, theConcurrency);
+	}
+
+	/**
+	 * Validates the request and resolves its measures and subjects, failing as $care-gaps would before any patient is
+	 * evaluated.
+	 */
+	public Run prepare(
+			IRepository theRepository,
+			String theServerBase,
+			ZonedDateTime thePeriodStart,
+			ZonedDateTime thePeriodEnd,
+			String theSubject,
+			List<String> theStatus,
+			List<IdType> theMeasureIds,
+			List<String> theMeasureIdentifiers,
+			List<CanonicalType> theMeasureUrls,
+			boolean theNotDocument) {
+		List<Either3<IdType, String, CanonicalType>> measureReferences = new R4CareGapsService(
+						careGapsProperties,
+						theRepository,
+						measureEvaluationOptions,
+						theServerBase,
+						measurePeriodValidator)
+				.liftMeasureParameters(theMeasureIds, theMeasureIdentifiers, theMeasureUrls);
+		R4CareGapsProcessor processor = new R4CareGapsProcessor(
+				careGapsProperties, theRepository, measureEvaluationOptions, theServerBase, measurePeriodValidator);
+		R4CareGapsParameters parameters = processor.setCareGapParameters(
+				thePeriodStart, thePeriodEnd, theSubject, theStatus, measureReferences, theNotDocument);
+		processor.checkConfigurationReferences();
+		processor.checkValidStatusCode(parameters.getMeasure(), parameters.getStatus());
+		List<Measure> measures = processor.resolveMeasure(parameters.getMeasure());
+		processor.measureCompatibilityCheck(measures);
+
+		Map<String, Resource> configuredResources = new HashMap<>();
+		configuredResources.put(
+				REPORTER_KEY,
+				theRepository.read(
+						Organization.class, new IdType("Organization", careGapsProperties.getCareGapsReporter())));
+		configuredResources.put(
+				SECTION_AUTHOR_KEY,
+				theRepository.read(
+						Organization.class,
+						new IdType("Organization", careGapsProperties.getCareGapsCompositionSectionAuthor())));
+		return new Run(
+				theRepository,
+				theServerBase,
+				parameters,
+				measures.stream().map(Measure::getIdElement).toList(),
+				processor.getSubjects(parameters.getSubject()),
+				configuredResources);
+	}
+
+	public class Run {
+		private final IRepository repository;
+		private final String serverBase;
+		private final R4CareGapsParameters parameters;
+		private final List<IdType> measureIds;
+		private final List<String> subjects;
+		private final Map<String, Resource> configuredResources;
+		private volatile RuntimeException consumerFailure;
+
+		private Run(
+				IRepository theRepository,
+				String theServerBase,
+				R4CareGapsParameters theParameters,
+				List<IdType> theMeasureIds,
+				List<String> theSubjects,
+				Map<String, Resource> theConfiguredResources) {
+			repository = theRepository;
+			serverBase = theServerBase;
+			parameters = theParameters;
+			measureIds = theMeasureIds;
+			subjects = theSubjects;
+			configuredResources = theConfiguredResources;
+		}
+
+		public List<String> getSubjects() {
+			return subjects;
+		}
+
+		/**
+		 * Evaluates every subject, passing each gaps bundle to theBundles and each subject that failed to
+		 * theFailures, one call at a time. Subjects without gaps produce no bundle. Returns once every subject is
+		 * done. When interrupted, or when a consumer throws (e.g. because the client went away), no new subjects are
+		 * started and the consumer's exception is rethrown once the running ones finish.
+		 *
+		 * @return the number of gaps bundles produced
+		 */
+		public int evaluate(Consumer<Bundle> theBundles, BiConsumer<String, Exception> theFailures)
+				throws InterruptedException {
+			long start = System.nanoTime();
+			Semaphore inFlight = new Semaphore(concurrency);
+			AtomicInteger bundles = new AtomicInteger();
+			AtomicInteger completed = new AtomicInteger();
+			int progressStep = Math.max(1, subjects.size() / 10);
+			try {
+				for (String subject : subjects) {
+					inFlight.acquire();
+					if (consumerFailure != null) {
+						inFlight.release();
+						break;
+					}
+					Runnable task = () -> {
+						try {
+							evaluateSubject(subject, theBundles, theFailures, bundles);
+						} finally {
+							inFlight.release();
+							int done = completed.incrementAndGet();
+							if (done % progressStep == 0) {
+								logger.info("Evaluated care gaps for {} of {} subjects", done, subjects.size());
+							}
+						}
+					};
+					try {
+						executor.execute(task);
+					} catch (RejectedExecutionException e) {
+						// The pool's queue is full, so this subject is evaluated on the calling thread instead
+						task.run();
+					}
+				}
+			} finally {
+				// Waits for the subjects already started, even when interrupted
+				while (!inFlight.tryAcquire(concurrency, 1, TimeUnit.SECONDS)) {
+					logger.debug("Waiting for care gaps of {} subjects", concurrency - inFlight.availablePermits());
+				}
+			}
+			if (consumerFailure != null) {
+				throw consumerFailure;
+			}
+			logger.info(
+					"Evaluated care gaps for {} subjects ({} bundles) in {} ms",
+					subjects.size(),
+					bundles.get(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return bundles.get();
+		}
+
+		private void evaluateSubject(
+				String theSubject,
+				Consumer<Bundle> theBundles,
+				BiConsumer<String, Exception> theFailures,
+				AtomicInteger theCount) {
+			List<Parameters.ParametersParameterComponent> results;
+			try {
+				results = new R4CareGapsBundleBuilder(
+								careGapsProperties,
+								repository,
+								measureEvaluationOptions,
+								serverBase,
+								configuredResources,
+								measurePeriodValidator)
+						.makePatientBundles(List.of(theSubject), parameters, measureIds);
+			} catch (Exception e) {
+				logger.warn("Failed to evaluate care gaps for {}: {}", theSubject, e.getMessage());
+				consume(() -> theFailures.accept(theSubject, e));
+				return;
+			}
+			for (Parameters.ParametersParameterComponent result : results) {
+				if (result.getResource() instanceof Bundle bundle) {
+					theCount.incrementAndGet();
+					consume(() -> theBundles.accept(bundle));
+				}
+			}
+		}
+
+		private synchronized void consume(Runnable theConsumer) {
+			if (consumerFailure != null) {
+				return;
+			}
+			try {
+				theConsumer.run();
+			} catch (RuntimeException e) {
+				consumerFailure = e;
+			}
+		}
+	}
+}
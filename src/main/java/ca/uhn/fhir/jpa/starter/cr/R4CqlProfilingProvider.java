@@ -0,0 +1,118 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.google.common.collect.ArrayListMultimap;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DecimalType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Library/[id]/$profile evaluates the library define by define for the given subjects, or for a sample of patients
+ * when none are given, and returns one {@code expression} parameter per define with its context, the number of
+ * evaluations and failures, the total and mean time in milliseconds and the searches it issued, slowest first.
+ * periodStart and periodEnd set the Measurement Period, as for $evaluate-measure.
+ */
+public class R4CqlProfilingProvider {
+	private static final String MEASUREMENT_PERIOD = "Measurement Period";
+
+	private final IRepositoryFactory repositoryFactory;
+	private final StringTimePeriodHandler stringTimePeriodHandler;
+	private final CqlExpressionProfiler profiler;
+
+	public R4CqlProfilingProvider(
+			IRepositoryFactory theRepositoryFactory,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			CqlExpressionProfiler theProfiler) {
+		repositoryFactory = theRepositoryFactory;
+		stringTimePeriodHandler = theStringTimePeriodHandler;
+		profiler = theProfiler;
+	}
+
+	@Description(
+			shortDefinition = "$profile operation",
+			value = "Evaluates the defines of a CQL library one by one for a few subjects and reports the calls, time "
+					+ "and searches of each define.")
+	@Operation(name = "$profile", idempotent = true, type = Library.class)
+	public Parameters profile(
+			@IdParam IdType theId,
+			ServletRequestDetails theRequestDetails,
+			@OperationParam(name = "subject") List<String> theSubject,
+			@OperationParam(name = "periodStart") String thePeriodStart,
+			@OperationParam(name = "periodEnd") String thePeriodEnd) {
+		IRepository repository = repositoryFactory.create(theRequestDetails);
+		Library library = repository.read(Library.class, theId);
+		VersionedIdentifier identifier =
+				new VersionedIdentifier().withId(library.getName()).withVersion(library.getVersion());
+
+		Map<String, Object> parameters = new HashMap<>();
+		if (thePeriodStart != null && thePeriodEnd != null) {
+			ZonedDateTime start = stringTimePeriodHandler.getStartZonedDateTime(thePeriodStart, theRequestDetails);
+			ZonedDateTime end = stringTimePeriodHandler.getEndZonedDateTime(thePeriodEnd, theRequestDetails);
+			parameters.put(
+					MEASUREMENT_PERIOD,
+					new Interval(new DateTime(start.toOffsetDateTime()), true, new DateTime(end.toOffsetDateTime()), true));
+		}
+		List<String> subjects =
+				theSubject == null || theSubject.isEmpty() ? samplePatients(repository) : theSubject;
+
+		List<CqlExpressionProfiler.ExpressionProfile> profiles =
+				profiler.profile(repository, identifier, subjects, parameters);
+
+		Parameters result = new Parameters();
+		result.addParameter("library", library.getUrl() + "|" + library.getVersion());
+		result.addParameter("subjects", Math.min(subjects.size(), profiler.getMaxSubjects()));
+		for (CqlExpressionProfiler.ExpressionProfile profile : profiles) {
+			Parameters.ParametersParameterComponent expression = result.addParameter().setName("expression");
+			expression.addPart().setName("name").setValue(new StringType(profile.getName()));
+			if (profile.getContext() != null) {
+				expression.addPart().setName("context").setValue(new StringType(profile.getContext()));
+			}
+			expression.addPart().setName("calls").setValue(new IntegerType(profile.getCalls()));
+			expression.addPart().setName("failures").setValue(new IntegerType(profile.getFailures()));
+			expression.addPart().setName("time").setValue(new DecimalType(millis(profile.getNanos())));
+			expression
+					.addPart()
+					.setName("meanTime")
+					.setValue(new DecimalType(millis(profile.getCalls() == 0 ? 0 : profile.getNanos() / profile.getCalls())));
+			expression.addPart().setName("searches").setValue(new IntegerType(Math.toIntExact(profile.getSearches())));
+		}
+		return result;
+	}
+
+	private List<String> samplePatients(IRepository theRepository) {
+		Bundle bundle = theRepository.search(Bundle.class, Patient.class, ArrayListMultimap.create());
+		return bundle.getEntry().stream()
+				.limit(profiler.getMaxSubjects())
+				.map(entry -> entry.getResource()
+						.getIdElement()
+						.toUnqualifiedVersionless()
+						.getValue())
+				.toList();
+	}
+
+	private static BigDecimal millis(long theNanos) {
+		return BigDecimal.valueOf(theNanos).divide(BigDecimal.valueOf(1_000_000), 3, RoundingMode.HALF_UP);
+	}
+}
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * $measure-report-cache-evict evicts the cached $evaluate-measure reports of one measure, referenced as in the
+ * requests (its canonical URL or Measure/[id]), or of all measures when none is given, and returns the number of
+ * evicted reports. Only the reports of the tenant called are evicted. With an evict token configured, callers must
+ * send it as a bearer token; otherwise the operation is authorized like any other, by the server's interceptors.
+ */
+public class R4MeasureReportCacheProvider {
+
+	private final MeasureReportCache reportCache;
+	private final String evictToken;
+
+	public R4MeasureReportCacheProvider(MeasureReportCache theReportCache, String theEvictToken) {
+		reportCache = theReportCache;
+		evictToken = StringUtils.trimToNull(theEvictToken);
+	}
+
+	@Description(
+			shortDefinition = "$measure-report-cache-evict operation",
+			value = "Evicts the cached $evaluate-measure reports of a measure, or all of them.")
+	@Operation(name = "$measure-report-cache-evict")
+	public Parameters evict(
+			RequestDetails theRequestDetails, @OperationParam(name = "measure", max = 1) String theMeasure) {
+		if (evictToken != null && !hasEvictToken(theRequestDetails)) {
+			throw new AuthenticationException("$measure-report-cache-evict requires the configured bearer token");
+		}
+		Parameters result = new Parameters();
+		long evicted = reportCache.evict(theRequestDetails.getTenantId(), theMeasure);
+		result.addParameter().setName("evicted").setValue(new IntegerType(Math.toIntExact(evicted)));
+		return result;
+	}
+
+	private boolean hasEvictToken(RequestDetails theRequestDetails) {
+		String authorization = theRequestDetails.getHeader(Constants.HEADER_AUTHORIZATION);
+		if (authorization == null
+				|| !StringUtils.startsWithIgnoreCase(authorization, Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER)) {
+			return false;
+		}
+		String token = authorization
+				.substring(Constants.HEADER_AUTHORIZATION_VALPREFIX_BEARER.length())
+				.trim();
+		// Compared in constant time, so the token cannot be guessed from response times
+		return MessageDigest.isEqual(
+				token.getBytes(StandardCharsets.UTF_8), evictToken.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,491 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Parameters;
+import org.opencds.cqf.fhir.cr.hapi.r4.R4MeasureEvaluatorSingleFactory;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.GroupDef;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureDef;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureEvalType;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.cr.measure.common.MeasureScoring;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureDefBuilder;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureEvaluatorSingle;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureProcessor;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureReportScorer;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureService;
+import org.opencds.cqf.fhir.cr.measure.r4.R4RepositorySubjectProvider;
+import org.opencds.cqf.fhir.cr.measure.r4.utils.R4MeasureServiceUtils;
+import org.opencds.cqf.fhir.utility.monad.Either3;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+import org.opencds.cqf.fhir.utility.repository.Repositories;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Evaluates population $evaluate-measure requests shard by shard. The subjects are split into shards of the
+ * configured size, which are evaluated in parallel on the CQL measure pool and merged into one MeasureReport as they
+ * complete, so no more than a pool's worth of shards is held in memory. The merged report is scored once over the
+ * summed counts.
+ * <p>
+ * Subject and subject-list reports, populations no larger than a shard, and measures whose scores cannot be summed
+ * (continuous variable scoring, supplemental data) are evaluated in one pass as before. Progress is logged per shard,
+ * shards are timed as cql.measure.shard.duration and cql.measure.subjects.remaining counts the subjects still to be
+ * evaluated.
+ * <p>
+ * With a retrieve block size configured, each shard reads its subjects' data through a {@link BatchedRetrieveRepository}
+ * so one query per data requirement serves a whole block of subjects; population reports are then evaluated through
+ * this path even when they are not split into shards. cql.measure.retrieve.queries counts the searches these
+ * evaluations issue.
+ * <p>
+ * With a shared retrieve cache size configured, the searches of a population evaluation that name none of its
+ * subjects are patient independent, so they run once per evaluation and their results are reused by every subject
+ * of every shard; cql.measure.retrieve.shared.hits counts the searches answered that way.
+ * <p>
+ * With a {@link MeasureReportCache}, reports are served from the cache while the resource types they were evaluated
+ * from are unchanged. Requests carrying additional data, endpoints or an inline Measure are always evaluated.
+ */
+public class R4ShardedMeasureEvaluator implements R4MeasureEvaluatorSingleFactory, MeterBinder {
+	private static final Logger logger = LoggerFactory.getLogger(R4ShardedMeasureEvaluator.class);
+
+	private static final Set<MeasureScoring> SUMMABLE_SCORING =
+			EnumSet.of(MeasureScoring.PROPORTION, MeasureScoring.RATIO, MeasureScoring.COHORT);
+
+	private final IRepositoryFactory repositoryFactory;
+	private final MeasureEvaluationOptions measureEvaluationOptions;
+	private final MeasurePeriodValidator measurePeriodValidator;
+	private final MeasureProperties properties;
+	private final ExecutorService executor;
+	private final MeasureReportCache reportCache;
+	private final AtomicLong remainingSubjects = new AtomicLong();
+	private final AtomicLong retrieveQueries = new AtomicLong();
+	private final AtomicLong sharedRetrieveHits = new AtomicLong();
+	private volatile Timer shardTimer;
+
+	public R4ShardedMeasureEvaluator(
+			IRepositoryFactory theRepositoryFactory,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasurePeriodValidator theMeasurePeriodValidator,
+			MeasureProperties theProperties,
+			ExecutorService theExecutor) {
+		this(
+				theRepositoryFactory,
+				theMeasureEvaluationOptions,
+				theMeasurePeriodValidator,
+				theProperties,
+				theExecutor,
+				null);
+	}
+
+	public R4ShardedMeasureEvaluator(
+			IRepositoryFactory theRepositoryFactory,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasurePeriodValidator theMeasurePeriodValidator,
+			MeasureProperties theProperties,
+			ExecutorService theExecutor,
+			MeasureReportCache theReportCache) {
+		repositoryFactory = theRepositoryFactory;
+		measureEvaluationOptions = theMeasureEvaluationOptions;
+		measurePeriodValidator = theMeasurePeriodValidator;
+		properties = theProperties;
+		executor = theExecutor;
+		reportCache = theReportCache;
+	}
+
+	@Override
+	public R4MeasureEvaluatorSingle create(RequestDetails theRequestDetails) {
+		return forRepository(repositoryFactory.create(theRequestDetails), theRequestDetails.getTenantId());
+	}
+
+	public R4MeasureEvaluatorSingle forRepository(IRepository theRepository) {
+		return forRepository(theRepository, null);
+	}
+
+	/**
+	 * @param theTenant the tenant the repository belongs to, keeping cached reports of different tenants apart
+	 */
+	public R4MeasureEvaluatorSingle forRepository(IRepository theRepository, String theTenant) {
+		return reportCache == null
+				? new ShardedMeasureService(theRepository)
+				: new CachingMeasureService(theRepository, theTenant);
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		Gauge.builder("cql.measure.subjects.remaining", remainingSubjects, AtomicLong::get)
+				.description("Subjects of sharded population measure evaluations still to be evaluated")
+				.register(theRegistry);
+		FunctionCounter.builder("cql.measure.retrieve.queries", retrieveQueries, AtomicLong::get)
+				.description("Searches issued by batched retrieves of population measure evaluations")
+				.register(theRegistry);
+		FunctionCounter.builder("cql.measure.retrieve.shared.hits", sharedRetrieveHits, AtomicLong::get)
+				.description("Patient independent searches of population measure evaluations answered from the results "
+						+ "of an earlier subject")
+				.register(theRegistry);
+		shardTimer = Timer.builder("cql.measure.shard.duration")
+				.description("Time spent evaluating a shard of a population measure evaluation")
+				.register(theRegistry);
+	}
+
+	private class CachingMeasureService implements R4MeasureEvaluatorSingle {
+		private final IRepository repository;
+		private final String tenant;
+
+		CachingMeasureService(IRepository theRepository, String theTenant) {
+			repository = theRepository;
+			tenant = theTenant;
+		}
+
+		@Override
+		public MeasureReport evaluate(
+				Either3<CanonicalType, IdType, Measure> theMeasure,
+				ZonedDateTime thePeriodStart,
+				ZonedDateTime thePeriodEnd,
+				String theReportType,
+				String theSubjectId,
+				String theLastReceivedOn,
+				Endpoint theContentEndpoint,
+				Endpoint theTerminologyEndpoint,
+				Endpoint theDataEndpoint,
+				Bundle theAdditionalData,
+				Parameters theParameters,
+				String theProductLine,
+				String thePractitioner) {
+			String measure = theMeasure.fold(
+					CanonicalType::getValue, id -> id.toUnqualifiedVersionless().getValue(), inline -> null);
+			// Data outside this server does not move the watermarks
+			if (measure == null
+					|| theAdditionalData != null
+					|| theContentEndpoint != null
+					|| theTerminologyEndpoint != null
+					|| theDataEndpoint != null) {
+				return new ShardedMeasureService(repository)
+						.evaluate(
+								theMeasure,
+								thePeriodStart,
+								thePeriodEnd,
+								theReportType,
+								theSubjectId,
+								theLastReceivedOn,
+								theContentEndpoint,
+								theTerminologyEndpoint,
+								theDataEndpoint,
+								theAdditionalData,
+								theParameters,
+								theProductLine,
+								thePractitioner);
+			}
+
+			MeasureReportCache.Key key = new MeasureReportCache.Key(
+					tenant,
+					measure,
+					Objects.toString(thePeriodStart, null),
+					Objects.toString(thePeriodEnd, null),
+					theReportType,
+					theSubjectId,
+					thePractitioner,
+					theProductLine,
+					theLastReceivedOn,
+					theParameters == null
+							? null
+							: repository.fhirContext().newJsonParser().encodeResourceToString(theParameters));
+			return reportCache.get(key, types -> new ShardedMeasureService(
+							new ResourceTypeRecordingRepository(repository, types))
+					.evaluate(
+							theMeasure,
+							thePeriodStart,
+							thePeriodEnd,
+							theReportType,
+							theSubjectId,
+							theLastReceivedOn,
+							null,
+							null,
+							null,
+							null,
+							theParameters,
+							theProductLine,
+							thePractitioner));
+		}
+	}
+
+	private class ShardedMeasureService implements R4MeasureEvaluatorSingle {
+		private final IRepository repository;
+		private final R4MeasureService unsharded;
+
+		ShardedMeasureService(IRepository theRepository) {
+			repository = theRepository;
+			unsharded = new R4MeasureService(
+					theRepository,
+					measureEvaluationOptions,
+					measurePeriodValidator,
+					new R4MeasureServiceUtils(theRepository));
+		}
+
+		@Override
+		public MeasureReport evaluate(
+				Either3<CanonicalType, IdType, Measure> theMeasure,
+				ZonedDateTime thePeriodStart,
+				ZonedDateTime thePeriodEnd,
+				String theReportType,
+				String theSubjectId,
+				String theLastReceivedOn,
+				Endpoint theContentEndpoint,
+				Endpoint theTerminologyEndpoint,
+				Endpoint theDataEndpoint,
+				Bundle theAdditionalData,
+				Parameters theParameters,
+				String theProductLine,
+				String thePractitioner) {
+			int shardSize = properties.getShardSize();
+			int blockSize = properties.getRetrieveBlockSize();
+			int sharedCacheSize = properties.getSharedRetrieveCacheSize();
+			String subjectId = theSubjectId;
+			if (StringUtils.isNotBlank(thePractitioner)) {
+				subjectId = thePractitioner.contains("/") ? thePractitioner : "Practitioner/" + thePractitioner;
+			}
+			R4MeasureServiceUtils measureServiceUtils = new R4MeasureServiceUtils(repository);
+			if ((shardSize <= 0 && blockSize <= 0 && sharedCacheSize <= 0)
+					|| theAdditionalData != null
+					|| measureServiceUtils.getMeasureEvalType(theReportType, Collections.singletonList(subjectId))
+							!= MeasureEvalType.POPULATION) {
+				return unsharded.evaluate(
+						theMeasure,
+						thePeriodStart,
+						thePeriodEnd,
+						theReportType,
+						theSubjectId,
+						theLastReceivedOn,
+						theContentEndpoint,
+						theTerminologyEndpoint,
+						theDataEndpoint,
+						theAdditionalData,
+						theParameters,
+						theProductLine,
+						thePractitioner);
+			}
+
+			measurePeriodValidator.validatePeriodStartAndEnd(thePeriodStart, thePeriodEnd);
+			IRepository proxy =
+					Repositories.proxy(repository, true, theDataEndpoint, theContentEndpoint, theTerminologyEndpoint);
+			R4MeasureServiceUtils proxyUtils = new R4MeasureServiceUtils(proxy);
+			Measure measure = theMeasure.fold(
+					canonical -> proxyUtils.resolveByUrl(canonical.getValue()),
+					proxyUtils::resolveById,
+					resolved -> resolved);
+			MeasureDef measureDef = new R4MeasureDefBuilder().build(measure);
+			List<String> subjects = new R4RepositorySubjectProvider(
+							measureEvaluationOptions.getSubjectProviderOptions())
+					.getSubjects(proxy, Collections.singletonList(subjectId))
+					.collect(Collectors.toList());
+			boolean sharded = shardSize > 0 && subjects.size() > shardSize && isSummable(measureDef);
+			// Without subjects there is nothing to batch, and no shard whose report could be merged
+			if (subjects.isEmpty() || (!sharded && blockSize <= 0 && sharedCacheSize <= 0)) {
+				return unsharded.evaluate(
+						Eithers.forRight3(measure),
+						thePeriodStart,
+						thePeriodEnd,
+						theReportType,
+						theSubjectId,
+						theLastReceivedOn,
+						theContentEndpoint,
+						theTerminologyEndpoint,
+						theDataEndpoint,
+						theAdditionalData,
+						theParameters,
+						theProductLine,
+						thePractitioner);
+			}
+
+			measureServiceUtils.ensureSupplementalDataElementSearchParameter();
+			MeasureReport report = evaluateShards(
+					measure,
+					measureDef,
+					subjects,
+					sharded ? shardSize : subjects.size(),
+					blockSize,
+					sharedCacheSize,
+					thePeriodStart,
+					thePeriodEnd,
+					theReportType,
+					theParameters,
+					proxy);
+			report = measureServiceUtils.addProductLineExtension(report, theProductLine);
+			return measureServiceUtils.addSubjectReference(report, thePractitioner, subjectId);
+		}
+
+		private MeasureReport evaluateShards(
+				Measure theMeasure,
+				MeasureDef theMeasureDef,
+				List<String> theSubjects,
+				int theShardSize,
+				int theBlockSize,
+				int theSharedCacheSize,
+				ZonedDateTime thePeriodStart,
+				ZonedDateTime thePeriodEnd,
+				String theReportType,
+				Parameters theParameters,
+				IRepository theRepository) {
+			long start = System.nanoTime();
+			int shardCount = (theSubjects.size() + theShardSize - 1) / theShardSize;
+			logger.info(
+					"Evaluating measure {} over {} subjects in {} shards",
+					theMeasure.getUrl(),
+					theSubjects.size(),
+					shardCount);
+			remainingSubjects.addAndGet(theSubjects.size());
+
+			// Shared by all shards, so a patient independent search runs once per evaluation
+			AsyncCache<String, List<IBaseResource>> sharedRetrieves = theSharedCacheSize > 0
+					? Caffeine.newBuilder().maximumSize(theSharedCacheSize).buildAsync()
+					: null;
+			AtomicInteger completed = new AtomicInteger();
+			MeasureReportMerger[] merger = new MeasureReportMerger[1];
+			List<CompletableFuture<Void>> shards = new ArrayList<>();
+			// Claimed by a shard when it starts, or after a failure for the shards that never will, so each shard's
+			// subjects leave remainingSubjects exactly once
+			List<AtomicBoolean> started = new ArrayList<>();
+			List<Integer> shardSizes = new ArrayList<>();
+			for (int from = 0; from < theSubjects.size(); from += theShardSize) {
+				List<String> shard = theSubjects.subList(from, Math.min(from + theShardSize, theSubjects.size()));
+				AtomicBoolean shardStarted = new AtomicBoolean();
+				started.add(shardStarted);
+				shardSizes.add(shard.size());
+				Runnable task = () -> {
+					if (!shardStarted.compareAndSet(false, true)) {
+						return;
+					}
+					long shardStart = System.nanoTime();
+					MeasureReport shardReport;
+					IRepository shardRepository = theBlockSize > 0 || sharedRetrieves != null
+							? new BatchedRetrieveRepository(
+									theRepository,
+									shard,
+									theBlockSize,
+									retrieveQueries,
+									sharedRetrieves,
+									sharedRetrieveHits)
+							: theRepository;
+					try {
+						shardReport = new R4MeasureProcessor(
+										shardRepository,
+										measureEvaluationOptions,
+										new R4RepositorySubjectProvider(
+												measureEvaluationOptions.getSubjectProviderOptions()),
+										new R4MeasureServiceUtils(shardRepository))
+								.evaluateMeasure(
+										Eithers.forRight3(theMeasure),
+										thePeriodStart,
+										thePeriodEnd,
+										theReportType,
+										shard,
+										null,
+										theParameters,
+										MeasureEvalType.POPULATION);
+					} finally {
+						remainingSubjects.addAndGet(-shard.size());
+					}
+					synchronized (merger) {
+						if (merger[0] == null) {
+							merger[0] = new MeasureReportMerger(shardReport);
+						} else {
+							merger[0].add(shardReport);
+						}
+					}
+					long elapsed = System.nanoTime() - shardStart;
+					Timer timer = shardTimer;
+					if (timer != null) {
+						timer.record(elapsed, TimeUnit.NANOSECONDS);
+					}
+					logger.info(
+							"Evaluated shard {} of {} of measure {} ({} subjects) in {} ms",
+							completed.incrementAndGet(),
+							shardCount,
+							theMeasure.getUrl(),
+							shard.size(),
+							TimeUnit.NANOSECONDS.toMillis(elapsed));
+				};
+				try {
+					shards.add(CompletableFuture.runAsync(task, executor));
+				} catch (RejectedExecutionException e) {
+					// The pool's queue is full, so this shard is evaluated on the calling thread instead
+					shards.add(CompletableFuture.runAsync(task, Runnable::run));
+				}
+			}
+
+			try {
+				CompletableFuture.allOf(shards.toArray(CompletableFuture[]::new))
+						.join();
+			} catch (CompletionException e) {
+				shards.forEach(shard -> shard.cancel(true));
+				if (e.getCause() instanceof RuntimeException runtimeException) {
+					throw runtimeException;
+				}
+				throw e;
+			} finally {
+				// Shards cancelled after a failure never run; the ones still running count themselves down
+				for (int i = 0; i < started.size(); i++) {
+					if (started.get(i).compareAndSet(false, true)) {
+						remainingSubjects.addAndGet(-shardSizes.get(i));
+					}
+				}
+			}
+
+			MeasureReport report = merger[0].getMerged();
+			if (shardCount > 1) {
+				new R4MeasureReportScorer().score(theMeasure.getUrl(), theMeasureDef, report);
+			}
+			logger.info(
+					"Evaluated measure {} over {} subjects in {} ms",
+					theMeasure.getUrl(),
+					theSubjects.size(),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			return report;
+		}
+
+		private boolean isSummable(MeasureDef theMeasureDef) {
+			if (!theMeasureDef.sdes().isEmpty()) {
+				return false;
+			}
+			for (GroupDef group : theMeasureDef.groups()) {
+				if (!SUMMABLE_SCORING.contains(group.measureScoring())) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
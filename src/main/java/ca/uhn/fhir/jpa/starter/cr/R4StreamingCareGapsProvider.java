@@ -0,0 +1,350 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.model.api.annotation.Description;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure/$care-gaps-stream takes the same parameters as $care-gaps but returns one line of NDJSON per patient, the
+ * patient's gaps bundle, written as soon as the patient is evaluated; patients that fail to evaluate are written as
+ * an OperationOutcome line. With Prefer: respond-async the lines are instead written to NDJSON Binary resources of at
+ * most the configured number of patients each, and the request is answered with 202 Accepted and a Content-Location
+ * pointing at Measure/$care-gaps-status for the job, which lists the Binaries written so far.
+ * <p>
+ * Asynchronous jobs run one at a time with the requester's authorization, and at most {@value #MAX_QUEUED_JOBS} wait
+ * for their turn; further requests are answered with 429 Too Many Requests. The status of the most recent
+ * {@value #MAX_JOBS} finished jobs is kept in memory and only reported to the requester of the job.
+ */
+public class R4StreamingCareGapsProvider implements AutoCloseable {
+	private static final Logger logger = LoggerFactory.getLogger(R4StreamingCareGapsProvider.class);
+
+	static final int MAX_JOBS = 100;
+	static final int MAX_QUEUED_JOBS = 10;
+
+	private final IRepositoryFactory repositoryFactory;
+	private final StringTimePeriodHandler stringTimePeriodHandler;
+	private final R4CareGapsStreamer streamer;
+	private final int patientsPerBinary;
+	private final ThreadPoolExecutor asyncThreadPool;
+	private final ExecutorService asyncExecutor;
+	private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+	public R4StreamingCareGapsProvider(
+			IRepositoryFactory theRepositoryFactory,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			R4CareGapsStreamer theStreamer,
+			int thePatientsPerBinary) {
+		repositoryFactory = theRepositoryFactory;
+		stringTimePeriodHandler = theStringTimePeriodHandler;
+		streamer = theStreamer;
+		patientsPerBinary = Math.max(1, thePatientsPerBinary);
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("care-gaps-async-");
+		threadFactory.setDaemon(true);
+		asyncThreadPool =
+				new ThreadPoolExecutor(
+						1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED_JOBS), threadFactory);
+		asyncThreadPool.allowCoreThreadTimeOut(true);
+		// Jobs keep the requester's security context, which the care gaps pool passes on to each patient
+		asyncExecutor = new DelegatingSecurityContextExecutorService(asyncThreadPool);
+	}
+
+	@Description(
+			shortDefinition = "$care-gaps-stream operation",
+			value =
+					"Evaluates $care-gaps patient by patient and streams each patient's gaps bundle as NDJSON, or writes "
+							+ "them to NDJSON Binary resources when the request prefers respond-async.")
+	@Operation(name = "$care-gaps-stream", idempotent = true, type = Measure.class, manualResponse = true)
+	public void careGapsStream(
+			ServletRequestDetails theRequestDetails,
+			@OperationParam(name = "periodStart") String thePeriodStart,
+			@OperationParam(name = "periodEnd") String thePeriodEnd,
+			@OperationParam(name = "subject") String theSubject,
+			@OperationParam(name = "status") List<String> theStatus,
+			@OperationParam(name = "measureId") List<String> theMeasureId,
+			@OperationParam(name = "measureIdentifier") List<String> theMeasureIdentifier,
+			@OperationParam(name = "measureUrl") List<CanonicalType> theMeasureUrl,
+			@OperationParam(name = "nonDocument") BooleanType theNonDocument)
+			throws IOException {
+		boolean async = StringUtils.contains(
+				theRequestDetails.getHeader(Constants.HEADER_PREFER), Constants.HEADER_PREFER_RESPOND_ASYNC);
+		// Asynchronous jobs outlive the request, so they read through a copy that does not refer to it but is still
+		// authorized as the requester
+		IRepository repository = async
+				? repositoryFactory.create(new DetachedRequestDetails(theRequestDetails))
+				: repositoryFactory.create(theRequestDetails);
+		R4CareGapsStreamer.Run run = streamer.prepare(
+				repository,
+				theRequestDetails.getFhirServerBase(),
+				stringTimePeriodHandler.getStartZonedDateTime(thePeriodStart, theRequestDetails),
+				stringTimePeriodHandler.getEndZonedDateTime(thePeriodEnd, theRequestDetails),
+				theSubject,
+				theStatus,
+				theMeasureId == null
+						? null
+						: theMeasureId.stream().map(IdType::new).toList(),
+				theMeasureIdentifier,
+				theMeasureUrl,
+				theNonDocument != null && theNonDocument.booleanValue());
+		IParser parser = repository.fhirContext().newJsonParser().setPrettyPrint(false);
+		HttpServletResponse response = theRequestDetails.getServletResponse();
+
+		if (async) {
+			Job job = submit(run, repository, parser, requester(theRequestDetails));
+			response.setStatus(HttpServletResponse.SC_ACCEPTED);
+			response.setHeader(
+					Constants.HEADER_CONTENT_LOCATION,
+					theRequestDetails.getFhirServerBase() + "/Measure/$care-gaps-status?job=" + job.id);
+			response.setContentType(Constants.CT_FHIR_JSON_NEW);
+			response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+			parser.encodeResourceToWriter(job.toParameters(), response.getWriter());
+			return;
+		}
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(Constants.CT_FHIR_NDJSON);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		Writer writer = response.getWriter();
+		try {
+			run.evaluate(
+					bundle -> writeLine(parser, bundle, writer, true),
+					(subject, e) -> writeLine(parser, failure(subject, e), writer, true));
+		} catch (UncheckedIOException e) {
+			logger.info("Stopped streaming care gaps, the client went away: {}", e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while evaluating care gaps", e);
+		}
+	}
+
+	@Description(
+			shortDefinition = "$care-gaps-status operation",
+			value = "Reports the progress of an asynchronous $care-gaps-stream job and the NDJSON Binary resources it "
+					+ "has written.")
+	@Operation(name = "$care-gaps-status", idempotent = true, type = Measure.class)
+	public Parameters careGapsStatus(
+			RequestDetails theRequestDetails, @OperationParam(name = "job", min = 1, max = 1) String theJob) {
+		Job job;
+		synchronized (jobs) {
+			job = jobs.get(theJob);
+		}
+		// Someone else's job is reported as unknown, so job ids cannot be probed
+		if (job == null || !job.requester.equals(requester(theRequestDetails))) {
+			throw new ResourceNotFoundException("Unknown $care-gaps-stream job " + theJob);
+		}
+		return job.toParameters();
+	}
+
+	private Job submit(
+			R4CareGapsStreamer.Run theRun, IRepository theRepository, IParser theParser, String theRequester) {
+		Job job = new Job(theRun.getSubjects().size(), theRequester);
+		synchronized (jobs) {
+			jobs.put(job.id, job);
+			// Unfinished jobs are bounded by the queue, finished ones are dropped oldest first
+			Iterator<Job> oldest = jobs.values().iterator();
+			while (jobs.size() > MAX_JOBS + MAX_QUEUED_JOBS + 1 && oldest.hasNext()) {
+				if (oldest.next().isFinished()) {
+					oldest.remove();
+				}
+			}
+		}
+		try {
+			asyncExecutor.execute(() -> job.run(theRun, theRepository, theParser));
+		} catch (RejectedExecutionException e) {
+			synchronized (jobs) {
+				jobs.remove(job.id);
+			}
+			throw new UnclassifiedServerFailureException(
+					429, "Too many $care-gaps-stream jobs are waiting, try again later");
+		}
+		return job;
+	}
+
+	/**
+	 * Identifies who asked for a job: the tenant together with the authenticated principal, or a hash of the
+	 * credentials sent when the server authenticates requests some other way.
+	 */
+	private static String requester(RequestDetails theRequestDetails) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		String principal;
+		if (authentication != null
+				&& authentication.isAuthenticated()
+				&& !(authentication instanceof AnonymousAuthenticationToken)) {
+			principal = "principal:" + authentication.getName();
+		} else {
+			String authorization = theRequestDetails.getHeader(Constants.HEADER_AUTHORIZATION);
+			principal = authorization == null ? "anonymous" : "credentials:" + DigestUtils.sha256Hex(authorization);
+		}
+		return theRequestDetails.getTenantId() + "|" + principal;
+	}
+
+	private static void writeLine(IParser theParser, Resource theResource, Writer theWriter, boolean theFlush) {
+		try {
+			theParser.encodeResourceToWriter(theResource, theWriter);
+			theWriter.write('\n');
+			if (theFlush) {
+				theWriter.flush();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static OperationOutcome failure(String theSubject, Exception theException) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue()
+				.setSeverity(OperationOutcome.IssueSeverity.ERROR)
+				.setCode(OperationOutcome.IssueType.EXCEPTION)
+				.setDiagnostics("Failed to evaluate care gaps for " + theSubject + ": " + theException.getMessage());
+		return outcome;
+	}
+
+	@Override
+	public void close() {
+		asyncThreadPool.shutdownNow();
+	}
+
+	private class Job {
+		private final String id = UUID.randomUUID().toString();
+		private final int subjects;
+		private final String requester;
+		private final List<String> binaries = Collections.synchronizedList(new ArrayList<>());
+		private volatile String status = "queued";
+		private volatile int bundles;
+		private volatile int failures;
+		private volatile String error;
+
+		Job(int theSubjects, String theRequester) {
+			subjects = theSubjects;
+			requester = theRequester;
+		}
+
+		boolean isFinished() {
+			return "completed".equals(status) || "failed".equals(status);
+		}
+
+		void run(R4CareGapsStreamer.Run theRun, IRepository theRepository, IParser theParser) {
+			status = "in-progress";
+			long start = System.nanoTime();
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			Writer writer = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+			int[] buffered = new int[1];
+			Runnable flush = () -> {
+				try {
+					writer.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				Binary binary = new Binary();
+				binary.setContentType(Constants.CT_FHIR_NDJSON);
+				binary.setData(buffer.toByteArray());
+				binaries.add(theRepository
+						.create(binary)
+						.getId()
+						.toUnqualifiedVersionless()
+						.getValue());
+				buffer.reset();
+				buffered[0] = 0;
+			};
+			try {
+				theRun.evaluate(
+						bundle -> {
+							writeLine(theParser, bundle, writer, false);
+							bundles++;
+							if (++buffered[0] >= patientsPerBinary) {
+								flush.run();
+							}
+						},
+						(subject, e) -> {
+							writeLine(theParser, failure(subject, e), writer, false);
+							failures++;
+							if (++buffered[0] >= patientsPerBinary) {
+								flush.run();
+							}
+						});
+				if (buffered[0] > 0) {
+					flush.run();
+				}
+				status = "completed";
+				logger.info(
+						"Care gaps job {} wrote {} bundles to {} Binary resources in {} ms",
+						id,
+						bundles,
+						binaries.size(),
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = "Interrupted";
+				status = "failed";
+			} catch (RuntimeException e) {
+				logger.error("Care gaps job {} failed", id, e);
+				error = e.getMessage();
+				status = "failed";
+			}
+		}
+
+		Parameters toParameters() {
+			Parameters parameters = new Parameters();
+			parameters.addParameter("job", id);
+			parameters.addParameter("status", status);
+			parameters.addParameter("subjects", subjects);
+			parameters.addParameter("bundles", bundles);
+			parameters.addParameter("failures", failures);
+			synchronized (binaries) {
+				binaries.forEach(
+						binary -> parameters.addParameter().setName("output").setValue(new Reference(binary)));
+			}
+			if (error != null) {
+				parameters.addParameter("error", error);
+			}
+			return parameters;
+		}
+	}
+}
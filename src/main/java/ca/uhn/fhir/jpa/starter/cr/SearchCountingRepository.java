@@ -0,0 +1,131 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.repository.IRepository;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import com.google.common.collect.Multimap;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseConformance;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes every call through to the wrapped repository and counts the searches it issues, including the further pages
+ * of a search, which tells the {@link CqlExpressionProfiler} what each define searched for.
+ */
+public class SearchCountingRepository implements IRepository {
+
+	private final IRepository repository;
+	private final AtomicLong searches;
+
+	public SearchCountingRepository(IRepository theRepository, AtomicLong theSearches) {
+		repository = theRepository;
+		searches = theSearches;
+	}
+
+	@Override
+	public <B extends IBaseBundle, T extends IBaseResource> B search(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Multimap<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		searches.incrementAndGet();
+		return repository.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle> B link(Class<B> theBundleType, String theUrl, Map<String, String> theHeaders) {
+		searches.incrementAndGet();
+		return repository.link(theBundleType, theUrl, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource, I extends IIdType> T read(
+			Class<T> theResourceType, I theId, Map<String, String> theHeaders) {
+		return repository.read(theResourceType, theId, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource> MethodOutcome create(T theResource, Map<String, String> theHeaders) {
+		return repository.create(theResource, theHeaders);
+	}
+
+	@Override
+	public <I extends IIdType, P extends IBaseParameters> MethodOutcome patch(
+			I theId, P thePatchParameters, Map<String, String> theHeaders) {
+		return repository.patch(theId, thePatchParameters, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource> MethodOutcome update(T theResource, Map<String, String> theHeaders) {
+		return repository.update(theResource, theHeaders);
+	}
+
+	@Override
+	public <T extends IBaseResource, I extends IIdType> MethodOutcome delete(
+			Class<T> theResourceType, I theId, Map<String, String> theHeaders) {
+		return repository.delete(theResourceType, theId, theHeaders);
+	}
+
+	@Override
+	public <C extends IBaseConformance> C capabilities(
+			Class<C> theCapabilityStatementType, Map<String, String> theHeaders) {
+		return repository.capabilities(theCapabilityStatementType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle> B transaction(B theBundle, Map<String, String> theHeaders) {
+		return repository.transaction(theBundle, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters, T extends IBaseResource> R invoke(
+			Class<T> theResourceType,
+			String theName,
+			P theParameters,
+			Class<R> theReturnType,
+			Map<String, String> theHeaders) {
+		return repository.invoke(theResourceType, theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters> R invoke(
+			String theName, P theParameters, Class<R> theReturnType, Map<String, String> theHeaders) {
+		return repository.invoke(theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <R extends IBaseResource, P extends IBaseParameters, I extends IIdType> R invoke(
+			I theId, String theName, P theParameters, Class<R> theReturnType, Map<String, String> theHeaders) {
+		return repository.invoke(theId, theName, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters> B history(
+			P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return repository.history(theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters, T extends IBaseResource> B history(
+			Class<T> theResourceType, P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return repository.history(theResourceType, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public <B extends IBaseBundle, P extends IBaseParameters, I extends IIdType> B history(
+			I theId, P theParameters, Class<B> theReturnType, Map<String, String> theHeaders) {
+		return repository.history(theId, theParameters, theReturnType, theHeaders);
+	}
+
+	@Override
+	public FhirContext fhirContext() {
+		return repository.fhirContext();
+	}
+}
@@ -1,6 +1,12 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
+import ca.uhn.fhir.rest.api.server.IRepositoryFactory;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.cr.hapi.common.StringTimePeriodHandler;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.ApplyOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.CrR4Config;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.DataRequirementsOperationConfig;
@@ -9,9 +15,16 @@ import org.opencds.cqf.fhir.cr.hapi.config.r4.ExtractOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.PackageOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.PopulateOperationConfig;
 import org.opencds.cqf.fhir.cr.hapi.config.r4.QuestionnaireOperationConfig;
+import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+
+import java.util.Optional;
 
 @Configuration
 @Conditional({OnR4Condition.class, CrConfigCondition.class})
@@ -26,4 +39,86 @@ import org.springframework.context.annotation.Import;
 	PopulateOperationConfig.class,
 	QuestionnaireOperationConfig.class
 })
-public class StarterCrR4Config {}
+public class StarterCrR4Config {
+
+	@Primary
+	@Bean
+	R4ShardedMeasureEvaluator r4ShardedMeasureEvaluator(
+			IRepositoryFactory theRepositoryFactory,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasurePeriodValidator theMeasurePeriodValidator,
+			CrProperties theCrProperties,
+			CqlExecutors theCqlExecutors,
+			Optional<MeasureReportCache> theMeasureReportCache) {
+		return new R4ShardedMeasureEvaluator(
+				theRepositoryFactory,
+				theMeasureEvaluationOptions,
+				theMeasurePeriodValidator,
+				theCrProperties.getMeasure(),
+				theCqlExecutors.get(CqlExecutors.MEASURE),
+				theMeasureReportCache.orElse(null));
+	}
+
+	@Bean
+	@Conditional(MeasureReportCacheCondition.class)
+	MeasureReportCache measureReportCache(
+			FhirContext theFhirContext, CrProperties theCrProperties, IInterceptorService theInterceptorService) {
+		MeasureReportCache cache = new MeasureReportCache(theFhirContext, theCrProperties.getMeasure());
+		theInterceptorService.registerInterceptor(cache);
+		return cache;
+	}
+
+	@Bean
+	@Conditional(MeasureReportCacheCondition.class)
+	R4MeasureReportCacheProvider r4MeasureReportCacheProvider(
+			MeasureReportCache theMeasureReportCache, CrProperties theCrProperties, RestfulServer theRestfulServer) {
+		R4MeasureReportCacheProvider provider = new R4MeasureReportCacheProvider(
+				theMeasureReportCache, theCrProperties.getMeasure().getReportCacheEvictToken());
+		theRestfulServer.registerProvider(provider);
+		return provider;
+	}
+
+	@Bean
+	@Conditional(CareGapsStreamingCondition.class)
+	R4StreamingCareGapsProvider r4StreamingCareGapsProvider(
+			IRepositoryFactory theRepositoryFactory,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			CareGapsProperties theCareGapsProperties,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			MeasurePeriodValidator theMeasurePeriodValidator,
+			CrProperties theCrProperties,
+			CqlExecutors theCqlExecutors,
+			RestfulServer theRestfulServer) {
+		var properties = theCrProperties.getCareGaps();
+		R4StreamingCareGapsProvider provider = new R4StreamingCareGapsProvider(
+				theRepositoryFactory,
+				theStringTimePeriodHandler,
+				new R4CareGapsStreamer(
+						theCareGapsProperties,
+						theMeasureEvaluationOptions,
+						theMeasurePeriodValidator,
+						theCqlExecutors.get(CqlExecutors.CARE_GAPS),
+						properties.getStreamingConcurrency()),
+				properties.getPatientsPerBinary());
+		theRestfulServer.registerProvider(provider);
+		return provider;
+	}
+
+	@Bean
+	@Conditional(CqlProfilingCondition.class)
+	R4CqlProfilingProvider r4CqlProfilingProvider(
+			IRepositoryFactory theRepositoryFactory,
+			StringTimePeriodHandler theStringTimePeriodHandler,
+			EvaluationSettings theEvaluationSettings,
+			CrProperties theCrProperties,
+			RestfulServer theRestfulServer) {
+		R4CqlProfilingProvider provider = new R4CqlProfilingProvider(
+				theRepositoryFactory,
+				theStringTimePeriodHandler,
+				new CqlExpressionProfiler(
+						theEvaluationSettings,
+						theCrProperties.getCql().getRuntime().getProfilingMaxSubjects()));
+		theRestfulServer.registerProvider(provider);
+		return provider;
+	}
+}
@@ -0,0 +1,286 @@
+package ca.uhn.fhir.jpa.starter.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupportWrapper;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Caches the answers of a remote terminology server: code validations, lookups, expansions and whether a code system
+ * or value set is supported. Entries live for the configured time in a cache bounded by entry count, evicting the
+ * least recently used. Negative answers (unknown codes, failed lookups, missing expansions) are cached too, for their
+ * own, usually shorter, time so a code added to the server is picked up soon. Concurrent identical lookups share one
+ * call to the server, while lookups of different codes run in parallel. Errors talking to the server are not cached.
+ * Lookups and expansions are handed out as copies, as callers may change them.
+ */
+public class CachingRemoteTerminologyValidationSupport extends BaseValidationSupportWrapper implements MeterBinder {
+
+	private record Key(String operation, List<Object> arguments) {}
+
+	private final String name;
+	private final AsyncCache<Key, Optional<Object>> cache;
+
+	/**
+	 * @param theName the name of the remote server in the configuration, tagging its cache metrics
+	 */
+	public CachingRemoteTerminologyValidationSupport(
+			FhirContext theFhirContext,
+			IValidationSupport theRemote,
+			String theName,
+			long theMaximumSize,
+			Duration theTimeToLive,
+			Duration theNegativeTimeToLive) {
+		super(theFhirContext, theRemote);
+		name = theName;
+		long ttl = theTimeToLive.toNanos();
+		long negativeTtl = theNegativeTimeToLive.toNanos();
+		cache = Caffeine.newBuilder()
+				.maximumSize(theMaximumSize)
+				.expireAfter(new Expiry<Key, Optional<Object>>() {
+					@Override
+					public long expireAfterCreate(Key theKey, Optional<Object> theValue, long theCurrentTime) {
+						return isNegative(theValue) ? negativeTtl : ttl;
+					}
+
+					@Override
+					public long expireAfterUpdate(
+							Key theKey, Optional<Object> theValue, long theCurrentTime, long theCurrentDuration) {
+						return expireAfterCreate(theKey, theValue, theCurrentTime);
+					}
+
+					@Override
+					public long expireAfterRead(
+							Key theKey, Optional<Object> theValue, long theCurrentTime, long theCurrentDuration) {
+						return theCurrentDuration;
+					}
+				})
+				.recordStats()
+				.buildAsync();
+	}
+
+	@Override
+	public String getName() {
+		return "Caching" + super.getName();
+	}
+
+	@Override
+	public boolean isCodeSystemSupported(ValidationSupportContext theValidationSupportContext, String theSystem) {
+		Boolean supported = get(
+				"isCodeSystemSupported",
+				() -> super.isCodeSystemSupported(theValidationSupportContext, theSystem),
+				theSystem);
+		return Boolean.TRUE.equals(supported);
+	}
+
+	@Override
+	public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
+		Boolean supported = get(
+				"isValueSetSupported",
+				() -> super.isValueSetSupported(theValidationSupportContext, theValueSetUrl),
+				theValueSetUrl);
+		return Boolean.TRUE.equals(supported);
+	}
+
+	@Override
+	public CodeValidationResult validateCode(
+			ValidationSupportContext theValidationSupportContext,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay,
+			String theValueSetUrl) {
+		return get(
+				"validateCode",
+				() -> super.validateCode(
+						theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSetUrl),
+				theOptions == null ? null : theOptions.isInferSystem(),
+				theCodeSystem,
+				theCode,
+				theDisplay,
+				theValueSetUrl);
+	}
+
+	@Override
+	public CodeValidationResult validateCodeInValueSet(
+			ValidationSupportContext theValidationSupportContext,
+			ConceptValidationOptions theOptions,
+			String theCodeSystem,
+			String theCode,
+			String theDisplay,
+			IBaseResource theValueSet) {
+		String url = urlOf(theValueSet);
+		Supplier<CodeValidationResult> validation = () -> super.validateCodeInValueSet(
+				theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSet);
+		// A value set without a URL may be any content, so only its identity would be a safe key
+		if (url == null) {
+			return validation.get();
+		}
+		return get(
+				"validateCodeInValueSet",
+				validation,
+				theOptions == null ? null : theOptions.isInferSystem(),
+				theCodeSystem,
+				theCode,
+				theDisplay,
+				url);
+	}
+
+	@Override
+	public LookupCodeResult lookupCode(
+			ValidationSupportContext theValidationSupportContext, LookupCodeRequest theLookupCodeRequest) {
+		return get(
+				"lookupCode",
+				() -> super.lookupCode(theValidationSupportContext, theLookupCodeRequest),
+				theLookupCodeRequest.getSystem(),
+				theLookupCodeRequest.getCode(),
+				theLookupCodeRequest.getDisplayLanguage(),
+				theLookupCodeRequest.getPropertyNames());
+	}
+
+	@Override
+	public ValueSetExpansionOutcome expandValueSet(
+			ValidationSupportContext theValidationSupportContext,
+			ValueSetExpansionOptions theExpansionOptions,
+			IBaseResource theValueSetToExpand) {
+		String url = urlOf(theValueSetToExpand);
+		Supplier<ValueSetExpansionOutcome> expansion =
+				() -> super.expandValueSet(theValidationSupportContext, theExpansionOptions, theValueSetToExpand);
+		if (url == null) {
+			return expansion.get();
+		}
+		return get(
+				"expandValueSet",
+				expansion,
+				url,
+				theExpansionOptions == null ? null : theExpansionOptions.getOffset(),
+				theExpansionOptions == null ? null : theExpansionOptions.getCount(),
+				theExpansionOptions == null ? null : theExpansionOptions.getFilter());
+	}
+
+	/**
+	 * Returns the cached answer for the arguments, or asks the remote server, once for all callers asking at the same
+	 * time. The first caller asks on its own thread after its pending answer is in the cache, so the server is not
+	 * called while the cache holds a lock, and the others wait for that answer.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T get(String theOperation, Supplier<T> theLookup, Object... theArguments) {
+		// Arrays.asList, as List.of rejects the null arguments
+		Key key = new Key(theOperation, Arrays.asList(theArguments));
+		CompletableFuture<Optional<Object>> lookup = new CompletableFuture<>();
+		CompletableFuture<Optional<Object>> answer = cache.get(key, (k, executor) -> lookup);
+		if (answer == lookup) {
+			try {
+				lookup.complete(Optional.ofNullable(theLookup.get()));
+			} catch (Throwable e) {
+				// Failed answers are dropped from the cache, and the callers waiting for them fail too
+				lookup.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return (T) copy(answer.join().orElse(null));
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException cause) {
+				throw cause;
+			}
+			if (e.getCause() instanceof Error cause) {
+				throw cause;
+			}
+			throw e;
+		}
+	}
+
+	private Object copy(Object theValue) {
+		if (theValue instanceof CodeValidationResult result) {
+			CodeValidationResult copy = new CodeValidationResult();
+			copy.setCode(result.getCode());
+			copy.setMessage(result.getMessage());
+			copy.setSeverity(result.getSeverity());
+			copy.setCodeSystemName(result.getCodeSystemName());
+			copy.setCodeSystemVersion(result.getCodeSystemVersion());
+			copy.setDisplay(result.getDisplay());
+			copy.setSourceDetails(result.getSourceDetails());
+			copy.setProperties(result.getProperties() == null ? null : new ArrayList<>(result.getProperties()));
+			copy.setIssues(new ArrayList<>(result.getIssues()));
+			return copy;
+		}
+		if (theValue instanceof LookupCodeResult result) {
+			LookupCodeResult copy = new LookupCodeResult();
+			copy.setSearchedForCode(result.getSearchedForCode());
+			copy.setSearchedForSystem(result.getSearchedForSystem());
+			copy.setFound(result.isFound());
+			copy.setErrorMessage(result.getErrorMessage());
+			copy.setCodeSystemDisplayName(result.getCodeSystemDisplayName());
+			copy.setCodeSystemVersion(result.getCodeSystemVersion());
+			copy.setCodeDisplay(result.getCodeDisplay());
+			copy.setCodeIsAbstract(result.isCodeIsAbstract());
+			copy.getProperties().addAll(result.getProperties());
+			copy.getDesignations().addAll(result.getDesignations());
+			return copy;
+		}
+		if (theValue instanceof ValueSetExpansionOutcome outcome) {
+			IBaseResource valueSet = outcome.getValueSet();
+			return new ValueSetExpansionOutcome(
+					valueSet == null ? null : getFhirContext().newTerser().clone(valueSet), outcome.getError());
+		}
+		return theValue;
+	}
+
+	private String urlOf(IBaseResource theResource) {
+		if (theResource == null) {
+			return null;
+		}
+		String url = getFhirContext().newTerser().getSinglePrimitiveValueOrNull(theResource, "url");
+		String version = getFhirContext().newTerser().getSinglePrimitiveValueOrNull(theResource, "version");
+		return url == null || version == null ? url : url + "|" + version;
+	}
+
+	private static boolean isNegative(Optional<Object> theValue) {
+		if (theValue.isEmpty()) {
+			return true;
+		}
+		Object value = theValue.get();
+		if (value instanceof CodeValidationResult result) {
+			return !result.isOk();
+		}
+		if (value instanceof LookupCodeResult result) {
+			return !result.isFound();
+		}
+		if (value instanceof ValueSetExpansionOutcome outcome) {
+			return outcome.getValueSet() == null;
+		}
+		return Boolean.FALSE.equals(value);
+	}
+
+	public long getEntryCount() {
+		return cache.synchronous().estimatedSize();
+	}
+
+	public double getHitRate() {
+		return cache.synchronous().stats().hitRate();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry theRegistry) {
+		CaffeineCacheMetrics.monitor(theRegistry, cache.synchronous(), "terminology.remote", "server", name);
+	}
+}
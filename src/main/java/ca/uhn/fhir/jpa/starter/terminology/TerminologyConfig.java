@@ -7,13 +7,17 @@ import ca.uhn.fhir.context.support.ValidationSupportContext;
 import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.common.StarterJpaConfig;
 import ca.uhn.fhir.jpa.starter.common.validation.OnRemoteTerminologyPresent;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport;
 import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.time.Duration;
+
 @Configuration
 @Conditional(OnRemoteTerminologyPresent.class)
 @Import(StarterJpaConfig.class)
@@ -21,48 +25,83 @@ public class TerminologyConfig {
 
 	@Bean(name = "myHybridRemoteValidationSupportChain")
 	public IValidationSupport addRemoteValidation(
-			ValidationSupportChain theValidationSupport, FhirContext theFhirContext, AppProperties theAppProperties) {
-		var values = theAppProperties.getRemoteTerminologyServicesMap().values();
+			ValidationSupportChain theValidationSupport,
+			FhirContext theFhirContext,
+			AppProperties theAppProperties,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		var services = theAppProperties.getRemoteTerminologyServicesMap();
+		var values = services.values();
 
 		// If the remote terminology service is "*" and is the only one then forward all requests to the remote
 		// terminology service
 		if (values.size() == 1 && "*".equalsIgnoreCase(values.iterator().next().getSystem())) {
 			var remoteSystem = values.iterator().next();
+			var remote = new RemoteTerminologyServiceValidationSupport(theFhirContext, remoteSystem.getUrl());
 			theValidationSupport.addValidationSupport(
-					0, new RemoteTerminologyServiceValidationSupport(theFhirContext, remoteSystem.getUrl()));
+					0,
+					cached(
+							remote,
+							services.keySet().iterator().next(),
+							theFhirContext,
+							theAppProperties,
+							theMeterRegistry));
 			return theValidationSupport;
 
 			// If there are multiple remote terminology services, then add each one to the validation chain
 		} else {
-			values.forEach((remoteSystem) -> theValidationSupport.addValidationSupport(
-					0, new RemoteTerminologyServiceValidationSupport(theFhirContext, remoteSystem.getUrl()) {
-						@Override
-						public boolean isCodeSystemSupported(
-								ValidationSupportContext theValidationSupportContext, String theSystem) {
-							return remoteSystem.getSystem().equalsIgnoreCase(theSystem);
-						}
+			services.forEach((name, remoteSystem) -> {
+				var remote = new RemoteTerminologyServiceValidationSupport(theFhirContext, remoteSystem.getUrl()) {
+					@Override
+					public boolean isCodeSystemSupported(
+							ValidationSupportContext theValidationSupportContext, String theSystem) {
+						return remoteSystem.getSystem().equalsIgnoreCase(theSystem);
+					}
 
-						@Override
-						public CodeValidationResult validateCode(
-								ValidationSupportContext theValidationSupportContext,
-								ConceptValidationOptions theOptions,
-								String theCodeSystem,
-								String theCode,
-								String theDisplay,
-								String theValueSetUrl) {
-							if (remoteSystem.getSystem().equalsIgnoreCase(theCodeSystem)) {
-								return super.validateCode(
-										theValidationSupportContext,
-										theOptions,
-										theCodeSystem,
-										theCode,
-										theDisplay,
-										theValueSetUrl);
-							}
-							return null;
+					@Override
+					public CodeValidationResult validateCode(
+							ValidationSupportContext theValidationSupportContext,
+							ConceptValidationOptions theOptions,
+							String theCodeSystem,
+							String theCode,
+							String theDisplay,
+							String theValueSetUrl) {
+						if (remoteSystem.getSystem().equalsIgnoreCase(theCodeSystem)) {
+							return super.validateCode(
+									theValidationSupportContext,
+									theOptions,
+									theCodeSystem,
+									theCode,
+									theDisplay,
+									theValueSetUrl);
 						}
-					}));
+						return null;
+					}
+				};
+				theValidationSupport.addValidationSupport(
+						0, cached(remote, name, theFhirContext, theAppProperties, theMeterRegistry));
+			});
 		}
 		return theValidationSupport;
 	}
+
+	private static IValidationSupport cached(
+			IValidationSupport theRemote,
+			String theName,
+			FhirContext theFhirContext,
+			AppProperties theAppProperties,
+			ObjectProvider<MeterRegistry> theMeterRegistry) {
+		Integer size = theAppProperties.getRemote_terminology_cache_size();
+		if (size == null || size <= 0) {
+			return theRemote;
+		}
+		var cached = new CachingRemoteTerminologyValidationSupport(
+				theFhirContext,
+				theRemote,
+				theName,
+				size,
+				Duration.ofSeconds(theAppProperties.getRemote_terminology_cache_ttl_seconds()),
+				Duration.ofSeconds(theAppProperties.getRemote_terminology_negative_cache_ttl_seconds()));
+		theMeterRegistry.ifAvailable(cached::bindTo);
+		return cached;
+	}
 }
@@ -0,0 +1,233 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutorProperties;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutors;
+import ca.uhn.fhir.jpa.starter.cr.MeasureProperties;
+import ca.uhn.fhir.jpa.starter.cr.R4ShardedMeasureEvaluator;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import com.google.common.collect.Multimap;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchedRetrieveRepositoryTest {
+	private static final Logger ourLog = LoggerFactory.getLogger(BatchedRetrieveRepositoryTest.class);
+
+	private final CqlExecutors executors = new CqlExecutors(new CqlExecutorProperties());
+
+	@AfterEach
+	void close() {
+		executors.close();
+	}
+
+	@Test
+	void testBatchedRetrievesMatchPerSubjectRetrieves() {
+		SlowRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new SlowRepository(FhirContext.forR4Cached(), 0), 25);
+
+		MeasureReport perSubject = evaluate(repository, 0, 0, new SimpleMeterRegistry());
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		MeasureReport batched = evaluate(repository, 10, 4, registry);
+
+		assertEquals(counts(perSubject), counts(batched));
+		assertEquals(Map.of("initial-population", 25, "denominator", 25, "numerator", 9), counts(batched));
+		assertEquals(
+				perSubject.getGroupFirstRep().getMeasureScore().getValue().doubleValue(),
+				batched.getGroupFirstRep().getMeasureScore().getValue().doubleValue(),
+				0.0001);
+		assertEquals(strata(perSubject), strata(batched));
+		assertTrue(registry.get("cql.measure.retrieve.queries").functionCounter().count() > 0);
+	}
+
+	/**
+	 * Benchmark of a 200 subject population with 2 ms per search, standing in for a database round trip: the number of
+	 * searches, and with it the wall time, falls with the block size.
+	 */
+	@Test
+	void testQueriesAndWallTimeFallAsBlockSizeGrows() {
+		SlowRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new SlowRepository(FhirContext.forR4Cached(), 2), 200);
+		// Compiles the library outside of the measured runs
+		evaluate(repository, 0, 200, new SimpleMeterRegistry());
+
+		long previousQueries = Long.MAX_VALUE;
+		StringBuilder table = new StringBuilder("\nblock size | searches | wall time (ms)");
+		for (int blockSize : new int[] {0, 1, 10, 50, 200}) {
+			repository.searches.set(0);
+			long start = System.nanoTime();
+			MeasureReport report = evaluate(repository, 0, blockSize, new SimpleMeterRegistry());
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			long searches = repository.searches.get();
+			table.append(String.format("%n%10d | %8d | %d", blockSize, searches, elapsed));
+
+			assertEquals(Map.of("initial-population", 200, "denominator", 200, "numerator", 67), counts(report));
+			if (blockSize > 1) {
+				assertTrue(searches < previousQueries, "Expected fewer searches with a block size of " + blockSize);
+			}
+			previousQueries = searches;
+		}
+		ourLog.info("Batched retrieve benchmark:{}", table);
+	}
+
+	/**
+	 * Benchmark of a 2000 subject population whose denominator looks at Locations, which are outside the patient
+	 * compartment: with the shared retrieve cache the Location search runs once instead of once per subject.
+	 */
+	@Test
+	void testSubjectIndependentSearchesRunOncePerEvaluation() {
+		SlowRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new SlowRepository(FhirContext.forR4Cached(), 1), 2000);
+		Library library = repository.read(Library.class, new IdType("Library", "Screening"));
+		library.setContent(List.of(new Attachment()
+				.setContentType("text/cql")
+				.setData(("library Screening version '1.0.0'\n"
+								+ "using FHIR version '4.0.1'\n"
+								+ "parameter \"Measurement Period\" Interval<DateTime>\n"
+								+ "context Patient\n"
+								+ "define \"Initial Population\": true\n"
+								+ "define \"Denominator\": exists [Location]\n"
+								+ "define \"Numerator\": exists [Condition]\n"
+								+ "define \"Observed\": exists [Observation]\n")
+						.getBytes(StandardCharsets.UTF_8))));
+		repository.update(library);
+		Location location = new Location();
+		location.setId("Location/clinic");
+		repository.update(location);
+		// Compiles the library outside of the measured runs
+		evaluate(repository, 0, 500, 0, new SimpleMeterRegistry());
+
+		repository.searches.set(0);
+		long start = System.nanoTime();
+		MeasureReport perSubject = evaluate(repository, 0, 500, 0, new SimpleMeterRegistry());
+		long perSubjectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		long perSubjectSearches = repository.searches.get();
+
+		repository.searches.set(0);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		start = System.nanoTime();
+		MeasureReport shared = evaluate(repository, 0, 500, 16, registry);
+		long sharedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		long sharedSearches = repository.searches.get();
+		ourLog.info(
+				"Shared retrieve benchmark: {} searches in {} ms per subject, {} searches in {} ms shared",
+				perSubjectSearches,
+				perSubjectMillis,
+				sharedSearches,
+				sharedMillis);
+
+		assertEquals(counts(perSubject), counts(shared));
+		assertEquals(Map.of("initial-population", 2000, "denominator", 2000, "numerator", 667), counts(shared));
+		assertTrue(perSubjectSearches - sharedSearches >= 1999, perSubjectSearches + " vs " + sharedSearches);
+		assertTrue(registry.get("cql.measure.retrieve.shared.hits").functionCounter().count() >= 1999);
+	}
+
+	private MeasureReport evaluate(
+			InMemoryFhirRepository theRepository, int theShardSize, int theBlockSize, SimpleMeterRegistry theRegistry) {
+		return evaluate(theRepository, theShardSize, theBlockSize, 0, theRegistry);
+	}
+
+	private MeasureReport evaluate(
+			InMemoryFhirRepository theRepository,
+			int theShardSize,
+			int theBlockSize,
+			int theSharedCacheSize,
+			SimpleMeterRegistry theRegistry) {
+		MeasureProperties properties = new MeasureProperties();
+		properties.setShardSize(theShardSize);
+		properties.setRetrieveBlockSize(theBlockSize);
+		properties.setSharedRetrieveCacheSize(theSharedCacheSize);
+		R4ShardedMeasureEvaluator evaluator = new R4ShardedMeasureEvaluator(
+				null,
+				MeasureEvaluationOptions.defaultOptions(),
+				new MeasurePeriodValidator(),
+				properties,
+				executors.get(CqlExecutors.MEASURE));
+		evaluator.bindTo(theRegistry);
+		return evaluator
+				.forRepository(theRepository)
+				.evaluate(
+						Eithers.forMiddle3(new IdType("Measure", "screening")),
+						ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC),
+						ZonedDateTime.of(2024, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC),
+						"population",
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null);
+	}
+
+	private static Map<String, Integer> counts(MeasureReport theReport) {
+		return theReport.getGroupFirstRep().getPopulation().stream()
+				.collect(Collectors.toMap(
+						population -> population.getCode().getCodingFirstRep().getCode(),
+						MeasureReport.MeasureReportGroupPopulationComponent::getCount));
+	}
+
+	private static Map<String, List<Integer>> strata(MeasureReport theReport) {
+		return theReport.getGroupFirstRep().getStratifierFirstRep().getStratum().stream()
+				.collect(Collectors.toMap(
+						stratum -> stratum.getValue().getText(),
+						stratum -> stratum.getPopulation().stream()
+								.map(MeasureReport.StratifierGroupPopulationComponent::getCount)
+								.collect(Collectors.toList())));
+	}
+
+	/**
+	 * Counts searches and makes each take a fixed time.
+	 */
+	static class SlowRepository extends InMemoryFhirRepository {
+		private final long latencyMillis;
+		final AtomicLong searches = new AtomicLong();
+
+		SlowRepository(FhirContext theContext, long theLatencyMillis) {
+			super(theContext);
+			latencyMillis = theLatencyMillis;
+		}
+
+		@Override
+		public <B extends IBaseBundle, T extends IBaseResource> B search(
+				Class<B> theBundleType,
+				Class<T> theResourceType,
+				Multimap<String, List<IQueryParameterType>> theSearchParameters,
+				Map<String, String> theHeaders) {
+			searches.incrementAndGet();
+			try {
+				Thread.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.jpa.starter.terminology.CachingRemoteTerminologyValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validates and looks up codes through the caching decorator against a local stub terminology server that knows the
+ * codes "known-0" to "known-4" and counts the calls it receives.
+ */
+class CachingRemoteTerminologyValidationSupportTest {
+	private static final Logger ourLog = LoggerFactory.getLogger(CachingRemoteTerminologyValidationSupportTest.class);
+
+	private static final String SYSTEM = "http://example.org/codes";
+
+	private final FhirContext ourCtx = FhirContext.forR4();
+	private final Map<String, AtomicInteger> myCallsByOperation = new ConcurrentHashMap<>();
+	private volatile long myLatencyMillis;
+	private HttpServer myStubServer;
+	private String myStubServerBase;
+
+	@BeforeEach
+	void beforeEach() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		myStubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myStubServer.setExecutor(Executors.newCachedThreadPool());
+		myStubServer.createContext("/fhir", this::handleStubRequest);
+		myStubServer.start();
+		myStubServerBase = "http://localhost:" + myStubServer.getAddress().getPort() + "/fhir";
+	}
+
+	@AfterEach
+	void afterEach() {
+		myStubServer.stop(0);
+	}
+
+	@Test
+	void testRepeatedLookupsAreServedFromCache() {
+		CachingRemoteTerminologyValidationSupport support = newSupport(Duration.ofMinutes(10), Duration.ofMinutes(1));
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		support.bindTo(registry);
+
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 5; i++) {
+				assertTrue(validate(support, "known-" + i).isOk());
+				assertFalse(validate(support, "unknown-" + i).isOk());
+			}
+		}
+		assertTrue(support.lookupCode(context(support), new LookupCodeRequest(SYSTEM, "known-0"))
+				.isFound());
+		assertTrue(support.lookupCode(context(support), new LookupCodeRequest(SYSTEM, "known-0"))
+				.isFound());
+
+		// Every distinct code once, including the unknown ones
+		assertEquals(10, calls("validate-code"));
+		assertEquals(1, calls("lookup"));
+		assertEquals(
+				91,
+				registry.get("cache.gets")
+						.tag("server", "stub")
+						.tag("result", "hit")
+						.functionCounter()
+						.count());
+		ourLog.info("Remote terminology cache hit rate over 102 lookups: {}", support.getHitRate());
+		assertEquals(91.0 / 102, support.getHitRate(), 0.0001);
+	}
+
+	@Test
+	void testNegativeResultsExpireSeparately() {
+		CachingRemoteTerminologyValidationSupport support = newSupport(Duration.ofMinutes(10), Duration.ZERO);
+
+		for (int round = 0; round < 5; round++) {
+			assertTrue(validate(support, "known-0").isOk());
+			assertFalse(validate(support, "unknown-0").isOk());
+		}
+
+		// Not caching negative results asks again for the unknown code only
+		assertEquals(1 + 5, calls("validate-code"));
+	}
+
+	@Test
+	void testConcurrentIdenticalLookupsShareOneCall() throws Exception {
+		myLatencyMillis = 300;
+		CachingRemoteTerminologyValidationSupport support = newSupport(Duration.ofMinutes(10), Duration.ofMinutes(1));
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<IValidationSupport.CodeValidationResult>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					return validate(support, "known-1");
+				}));
+			}
+			start.countDown();
+			for (Future<IValidationSupport.CodeValidationResult> result : results) {
+				assertTrue(result.get().isOk());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, calls("validate-code"));
+		ourLog.info("Remote terminology cache hit rate over {} concurrent lookups: {}", threads, support.getHitRate());
+	}
+
+	@Test
+	void testCachedLookupsAreHandedOutAsCopies() {
+		CachingRemoteTerminologyValidationSupport support = newSupport(Duration.ofMinutes(10), Duration.ofMinutes(1));
+
+		support.lookupCode(context(support), new LookupCodeRequest(SYSTEM, "known-0"))
+				.setCodeDisplay("Changed by a caller");
+
+		assertEquals(
+				"Display of known-0",
+				support.lookupCode(context(support), new LookupCodeRequest(SYSTEM, "known-0"))
+						.getCodeDisplay());
+		assertEquals(1, calls("lookup"));
+
+		validate(support, "known-0").setDisplay("Changed by a caller");
+		assertNotEquals("Changed by a caller", validate(support, "known-0").getDisplay());
+		assertEquals(1, calls("validate-code"));
+	}
+
+	@Test
+	void testLookupsFailingWithAnErrorAreNotLeftPending() {
+		IValidationSupport remote = mock(IValidationSupport.class);
+		when(remote.validateCode(any(), any(), any(), any(), any(), any()))
+				.thenThrow(new StackOverflowError("Failed by the remote support"))
+				.thenReturn(new IValidationSupport.CodeValidationResult().setCode("known-0"));
+		CachingRemoteTerminologyValidationSupport support = new CachingRemoteTerminologyValidationSupport(
+				ourCtx, remote, "stub", 1000, Duration.ofMinutes(10), Duration.ofMinutes(1));
+
+		assertThrows(StackOverflowError.class, () -> validate(support, "known-0"));
+		// The failed lookup is dropped from the cache rather than waited for forever
+		assertTimeoutPreemptively(
+				Duration.ofSeconds(10), () -> assertEquals("known-0", validate(support, "known-0").getCode()));
+	}
+
+	private CachingRemoteTerminologyValidationSupport newSupport(Duration theTtl, Duration theNegativeTtl) {
+		return new CachingRemoteTerminologyValidationSupport(
+				ourCtx,
+				new RemoteTerminologyServiceValidationSupport(ourCtx, myStubServerBase),
+				"stub",
+				1000,
+				theTtl,
+				theNegativeTtl);
+	}
+
+	private static IValidationSupport.CodeValidationResult validate(
+			CachingRemoteTerminologyValidationSupport theSupport, String theCode) {
+		return theSupport.validateCode(
+				context(theSupport), new ConceptValidationOptions(), SYSTEM, theCode, null, null);
+	}
+
+	private static ValidationSupportContext context(IValidationSupport theSupport) {
+		return new ValidationSupportContext(theSupport);
+	}
+
+	private int calls(String theOperation) {
+		AtomicInteger calls = myCallsByOperation.get(theOperation);
+		return calls == null ? 0 : calls.get();
+	}
+
+	private void handleStubRequest(HttpExchange theExchange) throws IOException {
+		String path = theExchange.getRequestURI().getPath();
+		String operation = path.substring(path.lastIndexOf('$') + 1);
+		myCallsByOperation
+				.computeIfAbsent(operation, name -> new AtomicInteger())
+				.incrementAndGet();
+		try {
+			Thread.sleep(myLatencyMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		String code = null;
+		if ("POST".equals(theExchange.getRequestMethod())) {
+			String request = new String(theExchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			String contentType = theExchange.getRequestHeaders().getFirst("Content-Type");
+			IParser parser = contentType != null && contentType.contains("xml")
+					? ourCtx.newXmlParser()
+					: ourCtx.newJsonParser();
+			Type value = parser.parseResource(Parameters.class, request).getParameterValue("code");
+			code = value == null ? null : value.primitiveValue();
+		} else if (theExchange.getRequestURI().getQuery() != null) {
+			for (String parameter : theExchange.getRequestURI().getQuery().split("&")) {
+				if (parameter.startsWith("code=")) {
+					code = parameter.substring("code=".length());
+				}
+			}
+		}
+		boolean known = code != null && code.startsWith("known-");
+
+		String body;
+		if (path.endsWith("/metadata")) {
+			body = ourCtx.newJsonParser().encodeResourceToString(new CapabilityStatement());
+		} else if ("lookup".equals(operation)) {
+			Parameters parameters = new Parameters();
+			parameters.addParameter().setName("name").setValue(new StringType("Stub"));
+			parameters.addParameter().setName("display").setValue(new StringType("Display of " + code));
+			body = ourCtx.newJsonParser().encodeResourceToString(parameters);
+		} else {
+			Parameters parameters = new Parameters();
+			parameters.addParameter().setName("result").setValue(new BooleanType(known));
+			if (known) {
+				parameters.addParameter().setName("display").setValue(new StringType("Display of " + code));
+			} else {
+				parameters.addParameter().setName("message").setValue(new StringType("Unknown code " + code));
+			}
+			body = ourCtx.newJsonParser().encodeResourceToString(parameters);
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		theExchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+		theExchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream os = theExchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+}
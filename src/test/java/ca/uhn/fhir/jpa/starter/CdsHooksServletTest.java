@@ -0,0 +1,393 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksRequest;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksServlet;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsServiceEvaluator;
+import ca.uhn.fhir.jpa.starter.cdshooks.ProviderConfiguration;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseCardJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import ca.uhn.hapi.fhir.cdshooks.module.CdsHooksObjectMapperFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Exercises the servlet's discovery and POST handling without a running server, and compares the bytes it allocates per call
+ * against the previous read-to-String / Gson re-format implementation.
+ */
+class CdsHooksServletTest {
+	private static final Logger ourLog = LoggerFactory.getLogger(CdsHooksServletTest.class);
+
+	private final FhirContext ourCtx = FhirContext.forR4Cached();
+	private final ObjectMapper myObjectMapper = new CdsHooksObjectMapperFactory(ourCtx).newMapper();
+	private final CdsHooksProperties myCdsHooksProperties = new CdsHooksProperties();
+	private ICdsServiceRegistry myRegistry;
+	private CdsHooksServlet myServlet;
+	private byte[] myRequestBody;
+	private SimpleMeterRegistry myMeterRegistry;
+	private CdsServiceEvaluator myEvaluator;
+
+	@BeforeEach
+	void beforeEach() {
+		myRegistry = mock(ICdsServiceRegistry.class);
+		when(myRegistry.callService(eq("hello-world"), any())).thenAnswer(invocation -> {
+			CdsServiceResponseJson response = new CdsServiceResponseJson();
+			CdsServiceResponseCardJson card = new CdsServiceResponseCardJson();
+			card.setSummary("Hello World!");
+			response.addCard(card);
+			return response;
+		});
+
+		myServlet = new CdsHooksServlet();
+		ReflectionTestUtils.setField(myServlet, "appProperties", new AppProperties());
+		ReflectionTestUtils.setField(myServlet, "providerConfiguration", new ProviderConfiguration(false, null));
+		ReflectionTestUtils.setField(myServlet, "cdsServiceRegistry", myRegistry);
+		ReflectionTestUtils.setField(myServlet, "objectMapper", myObjectMapper);
+		ReflectionTestUtils.setField(myServlet, "cdsHooksProperties", myCdsHooksProperties);
+		myMeterRegistry = new SimpleMeterRegistry();
+		myEvaluator = new CdsServiceEvaluator(myRegistry, myCdsHooksProperties);
+		myEvaluator.bindTo(myMeterRegistry);
+		ReflectionTestUtils.setField(myServlet, "cdsServiceEvaluator", myEvaluator);
+
+		myRequestBody = newRequestBody(2000);
+	}
+
+	@Test
+	void testResponseIsCompactWhenPrettyPrintIsOff() throws Exception {
+		myCdsHooksProperties.setPrettyPrint(false);
+
+		MockHttpServletResponse response = post();
+
+		assertEquals(200, response.getStatus());
+		String body = response.getContentAsString();
+		assertFalse(body.contains("\n"), body);
+		JsonNode json = myObjectMapper.readTree(body);
+		assertEquals("Hello World!", json.get("cards").get(0).get("summary").asText());
+	}
+
+	@AfterEach
+	void afterEach() {
+		myEvaluator.close();
+	}
+
+	@Test
+	void testSlowServiceIsAnsweredWithWarningAtItsDeadline() throws Exception {
+		myCdsHooksProperties.getEvaluation().getServiceTimeoutMillis().put("hello-world", 200L);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		when(myRegistry.callService(eq("hello-world"), any())).thenAnswer(invocation -> {
+			try {
+				Thread.sleep(10000);
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+			return new CdsServiceResponseJson();
+		});
+
+		MockHttpServletRequest request = newPostRequest();
+		request.setAsyncSupported(true);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		long start = System.currentTimeMillis();
+		myServlet.service(request, response);
+		assertTrue(request.isAsyncStarted());
+		await().atMost(5, TimeUnit.SECONDS).until(() -> !request.isAsyncStarted());
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue(elapsed < 5000, "took " + elapsed + " ms");
+		assertEquals(200, response.getStatus());
+		JsonNode card = myObjectMapper.readTree(response.getContentAsString()).get("cards").get(0);
+		assertEquals("warning", card.get("indicator").asText());
+		assertTrue(card.get("summary").asText().contains("hello-world"));
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(
+				1.0,
+				myMeterRegistry
+						.get("cds.service.timeouts")
+						.tag("service", "hello-world")
+						.counter()
+						.count());
+	}
+
+	@Test
+	void testAsyncResponseWithinDeadline() throws Exception {
+		MockHttpServletRequest request = newPostRequest();
+		request.setAsyncSupported(true);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		myServlet.service(request, response);
+		await().atMost(5, TimeUnit.SECONDS).until(() -> !request.isAsyncStarted());
+
+		JsonNode json = myObjectMapper.readTree(response.getContentAsString());
+		assertEquals("Hello World!", json.get("cards").get(0).get("summary").asText());
+		assertTrue(myMeterRegistry.find("cds.service.timeouts").counters().isEmpty());
+	}
+
+	@Test
+	void testBatchStreamsOneLinePerRequest() throws Exception {
+		myCdsHooksProperties.setPrettyPrint(true);
+		when(myRegistry.callService(eq("hello-world"), any())).thenAnswer(invocation -> {
+			CdsServiceRequestJson request = invocation.getArgument(1);
+			String patientId = request.getContext().getString("patientId");
+			if (patientId.equals("Patient/3")) {
+				throw new ResourceNotFoundException("Unknown patient " + patientId);
+			}
+			CdsServiceResponseJson response = new CdsServiceResponseJson();
+			CdsServiceResponseCardJson card = new CdsServiceResponseCardJson();
+			card.setSummary("Hello " + patientId);
+			response.addCard(card);
+			return response;
+		});
+		String body = IntStream.range(0, 10)
+				.mapToObj(i -> "{\"hookInstance\":\"instance-" + i + "\",\"hook\":\"patient-view\","
+						+ "\"context\":{\"patientId\":\"Patient/" + i + "\"}}")
+				.collect(Collectors.joining(",", "[", "]"));
+
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/hello-world/batch");
+		request.setPathInfo("/hello-world/batch");
+		request.setContentType("application/json");
+		request.setContent(body.getBytes(StandardCharsets.UTF_8));
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		myServlet.service(request, response);
+
+		assertEquals(200, response.getStatus());
+		assertTrue(response.getContentType().startsWith("application/x-ndjson"));
+		List<String> lines = response.getContentAsString().lines().collect(Collectors.toList());
+		assertEquals(10, lines.size());
+		Map<String, JsonNode> byPatient = new HashMap<>();
+		for (String line : lines) {
+			JsonNode json = myObjectMapper.readTree(line);
+			byPatient.put(json.get("patientId").asText(), json);
+		}
+		for (int i = 0; i < 10; i++) {
+			JsonNode json = byPatient.get("Patient/" + i);
+			assertEquals("instance-" + i, json.get("hookInstance").asText());
+			if (i == 3) {
+				assertTrue(json.get("error").asText().contains("Unknown patient"));
+				assertNull(json.get("response"));
+			} else {
+				assertEquals(
+						"Hello Patient/" + i,
+						json.get("response").get("cards").get(0).get("summary").asText());
+			}
+		}
+	}
+
+	@Test
+	void testStageTimersAndErrorCountersAreRecorded() throws Exception {
+		post();
+		for (String stage : new String[] {"parse", "evaluate", "encode"}) {
+			Timer timer = myMeterRegistry
+					.get("cds.service.duration")
+					.tag("service", "hello-world")
+					.tag("stage", stage)
+					.timer();
+			assertEquals(1, timer.count(), stage);
+		}
+		assertTrue(myMeterRegistry.find("cds.service.errors").counters().isEmpty());
+
+		when(myRegistry.callService(eq("hello-world"), any()))
+				.thenThrow(new ResourceNotFoundException("Patient/123 is not known"));
+		MockHttpServletResponse response = post();
+
+		assertEquals(412, response.getStatus());
+		assertEquals(
+				1.0,
+				myMeterRegistry
+						.get("cds.service.errors")
+						.tag("service", "hello-world")
+						.tag("exception", "ResourceNotFoundException")
+						.counter()
+						.count());
+		assertEquals(
+				2,
+				myMeterRegistry
+						.get("cds.service.duration")
+						.tag("stage", "evaluate")
+						.timer()
+						.count());
+	}
+
+	@Test
+	void testResponseIsPrettyPrintedByDefault() throws Exception {
+		String body = post().getContentAsString();
+
+		assertTrue(body.contains("\n"), body);
+		assertEquals(
+				"Hello World!",
+				myObjectMapper.readTree(body).get("cards").get(0).get("summary").asText());
+	}
+
+	@Test
+	void testStreamingAllocatesLessThanStringRoundTrip() throws Exception {
+		com.sun.management.ThreadMXBean threadMXBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		int iterations = 20;
+		for (int i = 0; i < iterations; i++) {
+			post();
+			legacyPost();
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long start = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			post();
+		}
+		long streaming = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+		start = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			legacyPost();
+		}
+		long legacy = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+		ourLog.info(
+				"Allocated per request with a {} byte body: streaming {} bytes, string round trip {} bytes",
+				myRequestBody.length,
+				streaming,
+				legacy);
+		assertTrue(streaming < legacy, "streaming " + streaming + " >= legacy " + legacy);
+	}
+
+	@Test
+	void testDiscoveryIsServedWithETagUntilServicesChange() throws Exception {
+		CdsServicesJson services = new CdsServicesJson();
+		services.addService(newServiceJson("hello-world"));
+		when(myRegistry.getCdsServicesJson()).thenReturn(services);
+
+		MockHttpServletResponse first = get(null);
+		assertEquals(200, first.getStatus());
+		String etag = first.getHeader("ETag");
+		assertNotNull(etag);
+		assertTrue(first.getContentAsString().contains("hello-world"));
+
+		MockHttpServletResponse notModified = get(etag);
+		assertEquals(304, notModified.getStatus());
+		assertEquals(etag, notModified.getHeader("ETag"));
+		assertEquals(0, notModified.getContentAsByteArray().length);
+
+		services.addService(newServiceJson("goodbye-world"));
+		MockHttpServletResponse changed = get(etag);
+		assertEquals(200, changed.getStatus());
+		assertNotEquals(etag, changed.getHeader("ETag"));
+		assertTrue(changed.getContentAsString().contains("goodbye-world"));
+	}
+
+	@Test
+	void testDiscoveryWithoutRegisteredServices() throws Exception {
+		when(myRegistry.getCdsServicesJson()).thenReturn(new CdsServicesJson());
+
+		MockHttpServletResponse response = get(null);
+
+		assertEquals(200, response.getStatus());
+		assertNotNull(response.getHeader("ETag"));
+	}
+
+	private MockHttpServletResponse get(String theIfNoneMatch) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/cds-services");
+		if (theIfNoneMatch != null) {
+			request.addHeader("If-None-Match", theIfNoneMatch);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		myServlet.service(request, response);
+		return response;
+	}
+
+	private CdsServiceJson newServiceJson(String theId) {
+		CdsServiceJson serviceJson = new CdsServiceJson();
+		serviceJson.setId(theId);
+		serviceJson.setHook("patient-view");
+		serviceJson.setDescription(theId);
+		return serviceJson;
+	}
+
+	private MockHttpServletResponse post() throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		myServlet.service(newPostRequest(), response);
+		return response;
+	}
+
+	private MockHttpServletRequest newPostRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/hello-world");
+		request.setPathInfo("/hello-world");
+		request.setContentType("application/json");
+		request.setContent(myRequestBody);
+		return request;
+	}
+
+	/**
+	 * The request handling as it was before it read from and wrote to the streams directly.
+	 */
+	private void legacyPost() throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/hello-world");
+		request.setContent(myRequestBody);
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		String requestJson = request.getReader().lines().collect(Collectors.joining());
+		CdsHooksRequest cdsHooksRequest = myObjectMapper.readValue(requestJson, CdsHooksRequest.class);
+		CdsServiceResponseJson serviceResponseJson = myRegistry.callService("hello-world", cdsHooksRequest);
+		String jsonResponse = new GsonBuilder()
+				.disableHtmlEscaping()
+				.setPrettyPrinting()
+				.create()
+				.toJson(JsonParser.parseString(myObjectMapper.writeValueAsString(serviceResponseJson)));
+		response.getWriter().println(jsonResponse);
+		assertEquals("patient-view", cdsHooksRequest.getHook());
+	}
+
+	private byte[] newRequestBody(int theObservationCount) {
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (int i = 0; i < theObservationCount; i++) {
+			Observation observation = new Observation();
+			observation.setId("obs-" + i);
+			observation.setStatus(Observation.ObservationStatus.FINAL);
+			observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8480-6");
+			observation.getSubject().setReference("Patient/123");
+			bundle.addEntry().setResource(observation);
+		}
+		String json = "{\"hookInstance\":\"12345\",\"hook\":\"patient-view\","
+				+ "\"context\":{\"patientId\":\"Patient/123\"},"
+				+ "\"prefetch\":{\"item1\":" + ourCtx.newJsonParser().encodeResourceToString(bundle) + "}}";
+		return json.getBytes(StandardCharsets.UTF_8);
+	}
+}
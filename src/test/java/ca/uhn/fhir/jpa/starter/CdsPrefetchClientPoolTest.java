@@ -0,0 +1,28 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsPrefetchClientPool;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class CdsPrefetchClientPoolTest {
+
+	@Test
+	void testPooledClientsParseLikeTheApplicationContext() throws Exception {
+		FhirContext context = FhirContext.forR4();
+		context.getParserOptions().setStripVersionsFromReferences(false);
+		context.setParserErrorHandler(new StrictErrorHandler());
+
+		try (CdsPrefetchClientPool pool = new CdsPrefetchClientPool(context, new CdsHooksProperties.Prefetch())) {
+			IGenericClient client = pool.getClient("http://example.org/fhir");
+
+			assertFalse(client.getFhirContext().getParserOptions().isStripVersionsFromReferences());
+			assertInstanceOf(StrictErrorHandler.class, client.getFhirContext().getParserErrorHandler());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.searchparam.config.NicknameServiceConfig;
+import ca.uhn.fhir.jpa.starter.cdshooks.ModuleConfigurationPrefetchSvc;
+import ca.uhn.fhir.jpa.starter.cdshooks.StarterCdsHooksConfig;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchSvc;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.hapi.config.CrCdsHooksConfig;
+import org.opencds.cqf.fhir.cr.hapi.config.RepositoryConfig;
+import org.opencds.cqf.fhir.cr.hapi.config.test.TestCdsHooksConfig;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the module prefetch service is the one cds-hooks uses and that it is configured from
+ * hapi.fhir.cdshooks.prefetch.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+	classes = {
+		Application.class,
+		NicknameServiceConfig.class,
+		RepositoryConfig.class,
+		TestCdsHooksConfig.class,
+		CrCdsHooksConfig.class,
+		StarterCdsHooksConfig.class
+	}, properties = {
+	"spring.profiles.include=storageSettingsTest",
+	"spring.datasource.url=jdbc:h2:mem:dbr4-prefetch",
+	"hapi.fhir.fhir_version=r4",
+	"hapi.fhir.cr.enabled=true",
+	"hapi.fhir.cdshooks.enabled=true",
+	"hapi.fhir.cdshooks.prefetch.timeoutMillis=1234",
+	"hapi.fhir.cdshooks.prefetch.cache.enabled=true",
+	"spring.main.allow-bean-definition-overriding=true"})
+class CdsPrefetchConfigIT {
+
+	@Autowired
+	CdsPrefetchSvc myCdsPrefetchSvc;
+
+	@Autowired
+	MeterRegistry myMeterRegistry;
+
+	@Test
+	void testPrefetchSettingsReachTheModulePrefetchService() {
+		ModuleConfigurationPrefetchSvc prefetchSvc =
+				assertInstanceOf(ModuleConfigurationPrefetchSvc.class, myCdsPrefetchSvc);
+		assertEquals(1234, prefetchSvc.getPrefetchTimeoutMillis());
+		assertTrue(prefetchSvc.isResultCacheEnabled());
+		assertNotNull(myMeterRegistry
+				.find("executor.pool.core")
+				.tag("name", "cds-prefetch")
+				.gauge());
+	}
+}
@@ -0,0 +1,37 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsPrefetchQuerySplitter;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CdsPrefetchQuerySplitterTest {
+
+	private final CdsPrefetchQuerySplitter mySplitter = newSplitter();
+
+	@Test
+	void testTokenListIsSplit() {
+		assertEquals(
+				List.of("Observation?code=a,b&_sort=date,code", "Observation?code=c&_sort=date,code"),
+				mySplitter.split("Observation?code=a,b,c&_sort=date,code", null));
+	}
+
+	@Test
+	void testResultParametersAndModifiedListsAreNotSplit() {
+		String sorted = "Observation?subject=Patient/1&_sort=date,code,status";
+		String excluded = "Observation?code:not=a,b,c";
+		assertEquals(List.of(sorted), mySplitter.split(sorted, null));
+		assertEquals(List.of(excluded), mySplitter.split(excluded, null));
+	}
+
+	private static CdsPrefetchQuerySplitter newSplitter() {
+		CdsHooksProperties.Prefetch properties = new CdsHooksProperties.Prefetch();
+		properties.setMaxUrlLength(Integer.MAX_VALUE);
+		properties.setMaxParamValues(2);
+		return new CdsPrefetchQuerySplitter(FhirContext.forR4Cached(), properties);
+	}
+}
@@ -0,0 +1,94 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsPrefetchResultCache;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CdsPrefetchResultCacheTest {
+
+	private static final CdsPrefetchResultCache.Key KEY =
+			new CdsPrefetchResultCache.Key("p1", "http://example.org/fhir", "Observation?subject=p1", null);
+
+	@Test
+	void testResultLoadedDuringACompartmentWriteIsNotCached() {
+		CdsPrefetchResultCache cache = new CdsPrefetchResultCache(FhirContext.forR4Cached(), properties(64));
+		AtomicInteger loads = new AtomicInteger();
+
+		cache.get(KEY, () -> {
+			loads.incrementAndGet();
+			Observation observation = new Observation();
+			observation.setSubject(new Reference("Patient/p1"));
+			// Stored while the prefetch query runs
+			cache.resourceCreated(observation);
+			return new Bundle();
+		});
+		cache.get(KEY, () -> {
+			loads.incrementAndGet();
+			return new Bundle();
+		});
+		cache.get(KEY, () -> {
+			loads.incrementAndGet();
+			return new Bundle();
+		});
+
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	void testResultLoadedBeforeACompartmentWriteCommitsIsNotServed() {
+		CdsPrefetchResultCache cache = new CdsPrefetchResultCache(FhirContext.forR4Cached(), properties(64));
+		AtomicInteger loads = new AtomicInteger();
+		Observation observation = new Observation();
+		observation.setSubject(new Reference("Patient/p1"));
+
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			cache.resourceCreated(observation);
+			// Loaded after the write was announced but before it committed, so from the old data
+			cache.get(KEY, () -> {
+				loads.incrementAndGet();
+				return new Bundle();
+			});
+			TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		cache.get(KEY, () -> {
+			loads.incrementAndGet();
+			return new Bundle();
+		});
+
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	void testEvictedEntriesLeaveNoPatientIndexBehind() {
+		// Nothing fits, so every entry is evicted as soon as it is stored
+		CdsPrefetchResultCache cache = new CdsPrefetchResultCache(FhirContext.forR4Cached(), properties(0));
+
+		for (int i = 0; i < 100; i++) {
+			cache.get(new CdsPrefetchResultCache.Key("p" + i, "http://example.org/fhir", "Patient/p" + i, null), Bundle::new);
+		}
+
+		assertEquals(0, cache.getEntryCount());
+		assertEquals(0, cache.getIndexedPatientCount());
+	}
+
+	private static CdsHooksProperties.Prefetch.Cache properties(long theMaxSizeMb) {
+		CdsHooksProperties.Prefetch.Cache properties = new CdsHooksProperties.Prefetch.Cache();
+		properties.setEnabled(true);
+		properties.setTtlSeconds(60);
+		properties.setMaxSizeMb(theMaxSizeMb);
+		return properties;
+	}
+}
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsPrefetchTemplate;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that compiled templates render exactly what the String.replace chains produced, and compares the bytes
+ * allocated per render for a large code-list template.
+ */
+class CdsPrefetchTemplateTest {
+	private static final Logger ourLog = LoggerFactory.getLogger(CdsPrefetchTemplateTest.class);
+
+	private static final String LABS = "Observation?subject={{context.patientId}}&category=laboratory&date=ge{{today}}&code="
+			+ IntStream.range(0, 1500).mapToObj(i -> i + "-" + (i % 10)).collect(Collectors.joining(","));
+	private static final Map<String, String> VALUES =
+			Map.of("context.patientId", "Patient/123", "today", "2025-10-18");
+
+	@Test
+	void testRenderMatchesReplace() {
+		assertEquals(replace(LABS), CdsPrefetchTemplate.compile(LABS).render(VALUES));
+		assertEquals("Patient/123", CdsPrefetchTemplate.compile("{{context.patientId}}").render(VALUES));
+		assertEquals("Patient?active=true", CdsPrefetchTemplate.compile("Patient?active=true").render(VALUES));
+		assertEquals(
+				"Encounter?date=ge{{unknown}}&patient=Patient/123",
+				CdsPrefetchTemplate.compile("Encounter?date=ge{{unknown}}&patient={{ context.patientId }}")
+						.render(VALUES));
+	}
+
+	@Test
+	void testRenderAllocatesLessThanReplace() {
+		com.sun.management.ThreadMXBean threadMXBean =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		CdsPrefetchTemplate template = CdsPrefetchTemplate.compile(LABS);
+		int iterations = 1000;
+		for (int i = 0; i < iterations; i++) {
+			template.render(VALUES);
+			replace(LABS);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long start = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			template.render(VALUES);
+		}
+		long compiled = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+		start = threadMXBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < iterations; i++) {
+			replace(LABS);
+		}
+		long replaced = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+
+		ourLog.info(
+				"Allocated per render of a {} char template: compiled {} bytes, replace chain {} bytes",
+				LABS.length(),
+				compiled,
+				replaced);
+		assertTrue(compiled < replaced, "compiled " + compiled + " >= replace " + replaced);
+	}
+
+	private static String replace(String theTemplate) {
+		return theTemplate.replace("{{today}}", "2025-10-18").replace("{{context.patientId}}", "Patient/123");
+	}
+}
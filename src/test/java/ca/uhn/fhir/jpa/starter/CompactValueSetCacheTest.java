@@ -0,0 +1,96 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cr.CompactValueSetCache;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that cached expansions keep the order and lookups the terminology provider relies on, while sharing their
+ * code system strings, and that they can still be invalidated through the Map.
+ */
+class CompactValueSetCacheTest {
+	private static final String VALUE_SET = "http://example.org/fhir/ValueSet/labs";
+	private static final Comparator<Code> BY_CODE = Comparator.comparing(Code::getCode);
+
+	@Test
+	void testExpansionIsCompactedInOrder() {
+		CompactValueSetCache cache = new CompactValueSetCache();
+		List<Code> expansion = newExpansion(20000);
+
+		List<Code> cached = cache.computeIfAbsent(VALUE_SET, url -> expansion);
+
+		assertEquals(expansion, cached);
+		assertTrue(cached instanceof RandomAccess);
+		assertThrows(UnsupportedOperationException.class, () -> cached.add(new Code()));
+		Set<String> systems = Collections.newSetFromMap(new IdentityHashMap<>());
+		cached.forEach(code -> systems.add(code.getSystem()));
+		// One instance per code system instead of one per code
+		assertEquals(2, systems.size());
+		assertSame(cached, cache.get(VALUE_SET));
+		assertEquals(20000, cache.getCodeCount());
+
+		// The provider's membership check: binary search by code, then a system comparison
+		for (int i = 0; i < 20000; i += 97) {
+			Code probe = new Code().withCode(code(i));
+			int index = Collections.binarySearch(cached, probe, BY_CODE);
+			assertTrue(index >= 0, code(i));
+			assertEquals(system(i), cached.get(index).getSystem());
+		}
+		assertTrue(Collections.binarySearch(cached, new Code().withCode("unknown"), BY_CODE) < 0);
+	}
+
+	@Test
+	void testExpansionsCanBeInvalidated() {
+		CompactValueSetCache cache = new CompactValueSetCache();
+		cache.put(VALUE_SET, newExpansion(10));
+		cache.put(VALUE_SET + "-2", newExpansion(10));
+
+		// What CqlCacheInvalidator does when a ValueSet changes, and resetting the cache
+		cache.keySet().removeIf(url -> url.endsWith("-2"));
+		assertNull(cache.get(VALUE_SET + "-2"));
+		cache.remove(VALUE_SET);
+		assertNull(cache.get(VALUE_SET));
+		cache.put(VALUE_SET, newExpansion(10));
+		cache.clear();
+		assertEquals(0, cache.getCodeCount());
+	}
+
+	/**
+	 * An expansion as the terminology provider builds it from a parsed ValueSet: sorted by code, with separate
+	 * system and version strings for every code.
+	 */
+	private static List<Code> newExpansion(int theSize) {
+		List<Code> codes = new ArrayList<>();
+		for (int i = 0; i < theSize; i++) {
+			codes.add(new Code()
+					.withCode(code(i))
+					.withSystem(new String(system(i)))
+					.withVersion(new String("2024-09"))
+					.withDisplay("Display " + i));
+		}
+		codes.sort(BY_CODE);
+		return codes;
+	}
+
+	private static String code(int theIndex) {
+		return String.format("%06d", theIndex);
+	}
+
+	private static String system(int theIndex) {
+		return theIndex % 3 == 0 ? "http://loinc.org" : "http://snomed.info/sct";
+	}
+}
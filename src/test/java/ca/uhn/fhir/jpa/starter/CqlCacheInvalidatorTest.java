@@ -0,0 +1,178 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.cache.ResourceChangeEvent;
+import ca.uhn.fhir.jpa.starter.cr.CqlCacheInvalidator;
+import ca.uhn.fhir.jpa.starter.cr.CqlLibraryCache;
+import ca.uhn.fhir.jpa.starter.cr.CqlRuntimeProperties;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CqlCacheInvalidatorTest {
+
+	@Test
+	void testOnlyTheChangedLibraryAndItsDependentsAreAffected() {
+		CqlLibraryCache cache = new CqlLibraryCache(new CqlRuntimeProperties());
+		Map<VersionedIdentifier, CompiledLibrary> libraries = cache.asMap();
+		libraries.put(identifier("Common", "1.0"), newLibrary("Common", "1.0"));
+		libraries.put(identifier("Common", "2.0"), newLibrary("Common", "2.0"));
+		libraries.put(identifier("Screening", "1.0"), newLibrary("Screening", "1.0", include("Common", "1.0")));
+		libraries.put(identifier("Measure", "1.0"), newLibrary("Measure", "1.0", include("Screening", "1.0")));
+		libraries.put(identifier("Latest", "1.0"), newLibrary("Latest", "1.0", include("Common", null)));
+		libraries.put(identifier("Newer", "1.0"), newLibrary("Newer", "1.0", include("Common", "2.0")));
+		libraries.put(identifier("Unrelated", "1.0"), newLibrary("Unrelated", "1.0"));
+
+		Set<VersionedIdentifier> affected =
+				CqlCacheInvalidator.affectedLibraries(libraries, List.of(identifier("Common", "1.0")));
+
+		// The unversioned include resolves to whatever Common is current, so it is affected as well
+		assertEquals(
+				Set.of(
+						identifier("Common", "1.0"),
+						identifier("Screening", "1.0"),
+						identifier("Measure", "1.0"),
+						identifier("Latest", "1.0")),
+				affected);
+
+		cache.invalidate(affected);
+		assertNull(libraries.get(identifier("Measure", "1.0")));
+		assertNotNull(libraries.get(identifier("Common", "2.0")));
+		assertNotNull(libraries.get(identifier("Newer", "1.0")));
+		assertNotNull(libraries.get(identifier("Unrelated", "1.0")));
+	}
+
+	@Test
+	void testIncludeCyclesTerminate() {
+		Map<VersionedIdentifier, CompiledLibrary> libraries = Map.of(
+				identifier("A", "1"), newLibrary("A", "1", include("B", "1")),
+				identifier("B", "1"), newLibrary("B", "1", include("A", "1")));
+
+		assertEquals(
+				Set.of(identifier("A", "1"), identifier("B", "1")),
+				CqlCacheInvalidator.affectedLibraries(libraries, List.of(identifier("A", "1"))));
+	}
+
+	@Test
+	void testDeletingTheFirstVersionEvictsIt() {
+		CqlLibraryCache cache = new CqlLibraryCache(new CqlRuntimeProperties());
+		Map<VersionedIdentifier, CompiledLibrary> libraries = cache.asMap();
+		libraries.put(identifier("Common", "1.0"), newLibrary("Common", "1.0"));
+		libraries.put(identifier("Screening", "1.0"), newLibrary("Screening", "1.0", include("Common", "1.0")));
+		libraries.put(identifier("Unrelated", "1.0"), newLibrary("Unrelated", "1.0"));
+
+		// Only the version the deletion reports is still readable
+		IFhirResourceDao<org.hl7.fhir.r4.model.Library> libraryDao = mock(IFhirResourceDao.class);
+		when(libraryDao.read(any(IIdType.class), any())).thenAnswer(invocation -> {
+			IIdType id = invocation.getArgument(0);
+			if (!"Library/common/_history/1".equals(id.getValue())) {
+				throw new IllegalArgumentException("Gone: " + id.getValue());
+			}
+			org.hl7.fhir.r4.model.Library library = new org.hl7.fhir.r4.model.Library();
+			library.setUrl("http://example.org/Library/Common");
+			library.setName("Common");
+			library.setVersion("1.0");
+			return library;
+		});
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		when(daoRegistry.getResourceDao("Library")).thenReturn((IFhirResourceDao) libraryDao);
+
+		new CqlCacheInvalidator(cache, Map.of(), daoRegistry, new CqlRuntimeProperties(), recompile -> {})
+				.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+						List.of(), List.of(), List.of(new IdType("Library/common/_history/1"))));
+
+		assertNull(libraries.get(identifier("Common", "1.0")));
+		assertNull(libraries.get(identifier("Screening", "1.0")));
+		assertNotNull(libraries.get(identifier("Unrelated", "1.0")));
+	}
+
+	@Test
+	void testUpdatingALibraryEvictsOnlyItsVersionBeforeAndAfterTheChange() {
+		CqlLibraryCache cache = new CqlLibraryCache(new CqlRuntimeProperties());
+		Map<VersionedIdentifier, CompiledLibrary> libraries = cache.asMap();
+		libraries.put(identifier("Common", "1.0"), newLibrary("Common", "1.0"));
+		libraries.put(identifier("Common", "1.1"), newLibrary("Common", "1.1"));
+		libraries.put(identifier("Common", "2.0"), newLibrary("Common", "2.0"));
+		libraries.put(identifier("Newer", "1.0"), newLibrary("Newer", "1.0", include("Common", "2.0")));
+
+		// Version 1 of the resource is Common 1.0, version 2 is Common 1.1
+		handleUpdate(cache, true);
+
+		assertNull(libraries.get(identifier("Common", "1.0")));
+		assertNull(libraries.get(identifier("Common", "1.1")));
+		assertNotNull(libraries.get(identifier("Common", "2.0")));
+		assertNotNull(libraries.get(identifier("Newer", "1.0")));
+	}
+
+	@Test
+	void testUpdatingALibraryWithoutReadableHistoryEvictsEveryVersionOfItsName() {
+		CqlLibraryCache cache = new CqlLibraryCache(new CqlRuntimeProperties());
+		Map<VersionedIdentifier, CompiledLibrary> libraries = cache.asMap();
+		libraries.put(identifier("Common", "1.0"), newLibrary("Common", "1.0"));
+		libraries.put(identifier("Common", "2.0"), newLibrary("Common", "2.0"));
+		libraries.put(identifier("Unrelated", "1.0"), newLibrary("Unrelated", "1.0"));
+
+		handleUpdate(cache, false);
+
+		assertNull(libraries.get(identifier("Common", "1.0")));
+		assertNull(libraries.get(identifier("Common", "2.0")));
+		assertNotNull(libraries.get(identifier("Unrelated", "1.0")));
+	}
+
+	private static void handleUpdate(CqlLibraryCache theCache, boolean theHistoryReadable) {
+		IFhirResourceDao<org.hl7.fhir.r4.model.Library> libraryDao = mock(IFhirResourceDao.class);
+		when(libraryDao.read(any(IIdType.class), any())).thenAnswer(invocation -> {
+			IIdType id = invocation.getArgument(0);
+			boolean previous = "1".equals(id.getVersionIdPart());
+			if (previous && !theHistoryReadable) {
+				throw new IllegalArgumentException("Gone: " + id.getValue());
+			}
+			org.hl7.fhir.r4.model.Library library = new org.hl7.fhir.r4.model.Library();
+			library.setUrl("http://example.org/Library/Common");
+			library.setName("Common");
+			library.setVersion(previous ? "1.0" : "1.1");
+			return library;
+		});
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		when(daoRegistry.getResourceDao("Library")).thenReturn((IFhirResourceDao) libraryDao);
+
+		new CqlCacheInvalidator(theCache, Map.of(), daoRegistry, new CqlRuntimeProperties(), recompile -> {})
+				.handleChange(ResourceChangeEvent.fromCreatedUpdatedDeletedResourceIds(
+						List.of(), List.of(new IdType("Library/common/_history/2")), List.of()));
+	}
+
+	private static VersionedIdentifier identifier(String theId, String theVersion) {
+		return new VersionedIdentifier().withId(theId).withVersion(theVersion);
+	}
+
+	private static IncludeDef include(String theName, String theVersion) {
+		return new IncludeDef().withLocalIdentifier(theName).withPath(theName).withVersion(theVersion);
+	}
+
+	private static CompiledLibrary newLibrary(String theId, String theVersion, IncludeDef... theIncludes) {
+		CompiledLibrary library = new CompiledLibrary();
+		library.setLibrary(new Library()
+				.withIdentifier(identifier(theId, theVersion))
+				.withIncludes(new Library.Includes().withDef(theIncludes)));
+		return library;
+	}
+}
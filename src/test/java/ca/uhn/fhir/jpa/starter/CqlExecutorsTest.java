@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutorProperties;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutors;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CqlExecutorsTest {
+
+	private CqlExecutors executors;
+
+	@AfterEach
+	void close() {
+		executors.close();
+	}
+
+	@Test
+	void testWorkloadsGetSeparatePoolsWithTheirOwnLimits() throws Exception {
+		CqlExecutorProperties.Pool measure = new CqlExecutorProperties.Pool();
+		measure.setThreads(1);
+		measure.setQueueCapacity(1);
+		CqlExecutorProperties properties = new CqlExecutorProperties();
+		properties.setPools(Map.of(CqlExecutors.MEASURE, measure));
+		executors = new CqlExecutors(properties);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		executors.bindTo(registry);
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		ExecutorService measurePool = executors.get(CqlExecutors.MEASURE);
+		Future<?> running = measurePool.submit(() -> {
+			started.countDown();
+			await(release);
+		});
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		Future<?> queued = measurePool.submit(() -> await(release));
+		assertThrows(RejectedExecutionException.class, () -> measurePool.submit(() -> {}));
+
+		// A saturated measure pool leaves the cds pool free
+		assertEquals("cds", executors.get(CqlExecutors.CDS).submit(() -> "cds").get(5, TimeUnit.SECONDS));
+		assertEquals(1, registry.get("cql.executor.active").tag("pool", "measure").gauge().value());
+		assertEquals(1, registry.get("cql.executor.queued").tag("pool", "measure").gauge().value());
+
+		release.countDown();
+		running.get(5, TimeUnit.SECONDS);
+		queued.get(5, TimeUnit.SECONDS);
+		measurePool.submit(() -> {}).get(5, TimeUnit.SECONDS);
+		assertEquals(
+				3,
+				registry.get("cql.executor.duration")
+						.tag("pool", "measure")
+						.timer()
+						.count());
+		assertEquals(0, registry.get("cql.executor.queued").tag("pool", "measure").gauge().value());
+	}
+
+	@Test
+	void testWorkStealingAndVirtualPoolsRunTasks() throws Exception {
+		CqlExecutorProperties properties = new CqlExecutorProperties();
+		properties.setType(CqlExecutorProperties.Type.WORK_STEALING);
+		CqlExecutorProperties.Pool cds = new CqlExecutorProperties.Pool();
+		// Falls back to work stealing on runtimes without virtual threads
+		cds.setType(CqlExecutorProperties.Type.VIRTUAL);
+		properties.setPools(Map.of(CqlExecutors.CDS, cds));
+		executors = new CqlExecutors(properties);
+
+		assertTrue(executors.get(CqlExecutors.CARE_GAPS).submit(() -> true).get(5, TimeUnit.SECONDS));
+		assertTrue(executors.get(CqlExecutors.CDS).submit(() -> true).get(5, TimeUnit.SECONDS));
+	}
+
+	private static void await(CountDownLatch theLatch) {
+		try {
+			theLatch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cr.CqlExpressionProfiler;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CqlExpressionProfilerTest {
+
+	@Test
+	void testEveryDefineIsProfiledPerSubject() {
+		InMemoryFhirRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		CqlExpressionProfiler profiler = new CqlExpressionProfiler(EvaluationSettings.getDefault(), 3);
+
+		List<CqlExpressionProfiler.ExpressionProfile> profiles = profiler.profile(
+				repository,
+				new VersionedIdentifier().withId("Screening").withVersion("1.0.0"),
+				List.of("Patient/p0", "Patient/p1", "Patient/p2", "Patient/p3"),
+				Map.of("Unknown Parameter", 1));
+
+		Map<String, CqlExpressionProfiler.ExpressionProfile> byName = profiles.stream()
+				.collect(Collectors.toMap(CqlExpressionProfiler.ExpressionProfile::getName, Function.identity()));
+		assertTrue(
+				byName.keySet().containsAll(List.of("Initial Population", "Denominator", "Numerator", "Observed")),
+				byName::toString);
+		for (CqlExpressionProfiler.ExpressionProfile profile : profiles) {
+			// At most the configured number of subjects is evaluated
+			assertEquals(3, profile.getCalls(), profile.getName());
+			assertEquals(0, profile.getFailures(), profile.getName());
+		}
+		// One Condition search per subject
+		assertTrue(byName.get("Numerator").getSearches() >= 3);
+		assertEquals(0, byName.get("Initial Population").getSearches());
+		for (int i = 1; i < profiles.size(); i++) {
+			assertTrue(profiles.get(i - 1).getNanos() >= profiles.get(i).getNanos(), "Expected slowest first");
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cr.CqlLibraryCache;
+import ca.uhn.fhir.jpa.starter.cr.CqlRuntimeProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.Add;
+import org.hl7.elm.r1.ExpressionDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.Literal;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the compiled library cache stays within its configured size, evicts by weight and reports its
+ * statistics, while still honouring the Map operations the ELM cache invalidation relies on.
+ */
+class CqlLibraryCacheTest {
+
+	@Test
+	void testLibrariesAreWeighedByTheirElm() {
+		CqlLibraryCache cache = new CqlLibraryCache(new CqlRuntimeProperties());
+		Map<VersionedIdentifier, CompiledLibrary> libraries = cache.asMap();
+
+		libraries.put(identifier("Small", "1"), newLibrary("Small", 10));
+		long small = cache.getWeightInBytes();
+		libraries.put(identifier("Large", "1"), newLibrary("Large", 100));
+		long large = cache.getWeightInBytes() - small;
+
+		assertTrue(small > 0, "small " + small);
+		assertTrue(large > 5 * small, "large " + large + ", small " + small);
+	}
+
+	@Test
+	void testCacheIsBoundedByWeightAndReportsStatistics() {
+		CqlRuntimeProperties properties = new CqlRuntimeProperties();
+		properties.setLibraryCacheMaxMegabytes(1);
+		CqlLibraryCache cache = new CqlLibraryCache(properties);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		cache.bindTo(registry);
+		Map<VersionedIdentifier, CompiledLibrary> libraries = cache.asMap();
+
+		// Each version weighs roughly 100 KB, so the 1 MB bound holds about ten of them
+		for (int version = 0; version < 40; version++) {
+			libraries.put(identifier("Measure", Integer.toString(version)), newLibrary("Measure", 100));
+		}
+		assertTrue(cache.getWeightInBytes() <= 1024 * 1024, "weight " + cache.getWeightInBytes());
+		assertTrue(libraries.size() < 40, "size " + libraries.size());
+		assertTrue(
+				registry.get("cache.evictions").tag("cache", "cql.library").functionCounter().count() > 0);
+		assertEquals(
+				cache.getWeightInBytes(),
+				registry.get("cql.library.cache.memory").gauge().value());
+
+		VersionedIdentifier cached = libraries.keySet().iterator().next();
+		assertNotNull(libraries.get(cached));
+		assertNull(libraries.get(identifier("Measure", "unknown")));
+		assertEquals(
+				1.0,
+				registry.get("cache.gets")
+						.tag("cache", "cql.library")
+						.tag("result", "hit")
+						.functionCounter()
+						.count());
+		assertEquals(
+				1.0,
+				registry.get("cache.gets")
+						.tag("cache", "cql.library")
+						.tag("result", "miss")
+						.functionCounter()
+						.count());
+
+		// Removing single libraries and resetting the cache through the map view
+		libraries.remove(cached);
+		assertNull(libraries.get(cached));
+		libraries.clear();
+		assertEquals(0, cache.getWeightInBytes());
+	}
+
+	private static VersionedIdentifier identifier(String theId, String theVersion) {
+		return new VersionedIdentifier().withId(theId).withVersion(theVersion);
+	}
+
+	private static CompiledLibrary newLibrary(String theId, int theExpressionCount) {
+		Library.Statements statements = new Library.Statements();
+		for (int i = 0; i < theExpressionCount; i++) {
+			statements
+					.getDef()
+					.add(new ExpressionDef()
+							.withName("Expression " + i)
+							.withExpression(new Add()
+									.withOperand(new Literal().withValue(Integer.toString(i)), new Literal().withValue("1"))));
+		}
+		CompiledLibrary library = new CompiledLibrary();
+		library.setLibrary(new Library().withIdentifier(identifier(theId, "1")).withStatements(statements));
+		return library;
+	}
+}
@@ -0,0 +1,143 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.starter.cr.CqlLibraryWarmUp;
+import ca.uhn.fhir.jpa.starter.cr.CqlRuntimeProperties;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.cqframework.cql.cql2elm.CqlCompilerException;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CqlLibraryWarmUpTest {
+
+	private final Set<String> compiled = ConcurrentHashMap.newKeySet();
+	private final List<ReadinessState> readiness = new CopyOnWriteArrayList<>();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private CqlLibraryWarmUp warmUp;
+	// Receives every availability change, as Spring Boot's bean does
+	private final CqlLibraryWarmUp.ReadinessHoldingAvailability availability =
+			new CqlLibraryWarmUp.ReadinessHoldingAvailability(() -> warmUp);
+
+	@AfterEach
+	void close() {
+		warmUp.close();
+	}
+
+	@Test
+	void testStoredLibrariesAreCompiledBeforeTrafficIsAccepted() throws Exception {
+		CqlRuntimeProperties properties = new CqlRuntimeProperties();
+		properties.setLibraryWarmUpEnabled(true);
+		warmUp = newWarmUp(
+				properties,
+				library("Common", "1.0.0", "text/cql"),
+				library("Report", "2.0.0", "text/cql"),
+				library("Broken", "1.0.0", "text/cql"),
+				library("ElmOnly", "1.0.0", "application/elm+json"));
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		warmUp.bindTo(registry);
+
+		var done = warmUp.warmUpStoredLibraries();
+		// Spring marks the application ready while the warm-up is still running
+		markReady();
+		assertEquals(ReadinessState.REFUSING_TRAFFIC, availability.getReadinessState());
+
+		release.countDown();
+		done.get(10, TimeUnit.SECONDS);
+
+		assertEquals(Set.of("Common|1.0.0", "Report|2.0.0", "Broken|1.0.0"), compiled);
+		assertEquals(List.of(ReadinessState.ACCEPTING_TRAFFIC), readiness);
+		assertEquals(ReadinessState.ACCEPTING_TRAFFIC, availability.getReadinessState());
+		assertEquals(
+				2, registry.get("cql.library.compile").tag("outcome", "success").timer().count());
+		assertEquals(1, registry.get("cql.library.compile").tag("outcome", "error").timer().count());
+		assertEquals(0, registry.get("cql.library.warmup.remaining").gauge().value());
+
+		// Once warmed up, later readiness changes are left alone
+		availability.onApplicationEvent(new AvailabilityChangeEvent<>(this, ReadinessState.REFUSING_TRAFFIC));
+		assertEquals(ReadinessState.REFUSING_TRAFFIC, availability.getReadinessState());
+		markReady();
+		assertEquals(ReadinessState.ACCEPTING_TRAFFIC, availability.getReadinessState());
+		assertEquals(1, readiness.size());
+	}
+
+	@Test
+	void testReadinessIsNotHeldWhenDisabled() throws Exception {
+		CqlRuntimeProperties properties = new CqlRuntimeProperties();
+		properties.setLibraryWarmUpEnabled(true);
+		properties.setLibraryWarmUpHoldsReadiness(false);
+		warmUp = newWarmUp(properties, library("Common", "1.0.0", "text/cql"));
+
+		var done = warmUp.warmUpStoredLibraries();
+		markReady();
+		assertEquals(ReadinessState.ACCEPTING_TRAFFIC, availability.getReadinessState());
+		release.countDown();
+		done.get(10, TimeUnit.SECONDS);
+
+		assertEquals(Set.of("Common|1.0.0"), compiled);
+		assertTrue(readiness.isEmpty());
+		assertEquals(ReadinessState.ACCEPTING_TRAFFIC, availability.getReadinessState());
+	}
+
+	private void markReady() {
+		availability.onApplicationEvent(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC));
+	}
+
+	@SuppressWarnings("unchecked")
+	private CqlLibraryWarmUp newWarmUp(CqlRuntimeProperties theProperties, Library... theLibraries) {
+		IFhirResourceDao<Library> libraryDao = mock(IFhirResourceDao.class);
+		when(libraryDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(theLibraries)));
+		DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		when(daoRegistry.getFhirContext()).thenReturn(FhirContext.forR4Cached());
+		when(daoRegistry.getResourceDao("Library")).thenReturn((IFhirResourceDao) libraryDao);
+
+		return new CqlLibraryWarmUp(theProperties, daoRegistry, this::compile, event -> {
+			if (event instanceof AvailabilityChangeEvent<?> change) {
+				if (change.getState() instanceof ReadinessState state) {
+					readiness.add(state);
+				}
+				availability.onApplicationEvent(change);
+			}
+		});
+	}
+
+	private List<CqlCompilerException> compile(VersionedIdentifier theLibrary) {
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		compiled.add(theLibrary.getId() + "|" + theLibrary.getVersion());
+		return "Broken".equals(theLibrary.getId())
+				? List.of(new CqlCompilerException("Could not resolve identifier"))
+				: List.of();
+	}
+
+	private static Library library(String theName, String theVersion, String theContentType) {
+		Library library = new Library();
+		library.setName(theName);
+		library.setVersion(theVersion);
+		library.addContent(new Attachment().setContentType(theContentType).setData(new byte[] {1}));
+		return library;
+	}
+}
@@ -0,0 +1,213 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutorProperties;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutors;
+import ca.uhn.fhir.jpa.starter.cr.MeasureProperties;
+import ca.uhn.fhir.jpa.starter.cr.MeasureReportCache;
+import ca.uhn.fhir.jpa.starter.cr.R4MeasureReportCacheProvider;
+import ca.uhn.fhir.jpa.starter.cr.R4ShardedMeasureEvaluator;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MeasureReportCacheTest {
+
+	private final CqlExecutors executors = new CqlExecutors(new CqlExecutorProperties());
+
+	@AfterEach
+	void close() {
+		executors.close();
+	}
+
+	@Test
+	void testReportsAreServedUntilTheirDataChanges() {
+		InMemoryFhirRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		MeasureProperties properties = new MeasureProperties();
+		MeasureReportCache cache = new MeasureReportCache(FhirContext.forR4Cached(), properties);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		cache.bindTo(registry);
+		R4ShardedMeasureEvaluator evaluator = new R4ShardedMeasureEvaluator(
+				null,
+				MeasureEvaluationOptions.defaultOptions(),
+				new MeasurePeriodValidator(),
+				properties,
+				executors.get(CqlExecutors.MEASURE),
+				cache);
+
+		MeasureReport first = evaluate(evaluator, repository);
+		assertEquals(4, numerator(first));
+
+		// Stored without going through the server, so the cached report is served as is
+		Condition condition = new Condition();
+		condition.setId("Condition/c1");
+		condition.setSubject(new Reference("Patient/p1"));
+		repository.update(condition);
+		MeasureReport second = evaluate(evaluator, repository);
+		assertNotSame(first, second);
+		assertEquals(4, numerator(second));
+		assertEquals(1, registry.get("cache.gets").tag("result", "hit").functionCounter().count());
+
+		// A type the report was not evaluated from leaves it current
+		cache.resourceCreated(new Practitioner());
+		assertEquals(4, numerator(evaluate(evaluator, repository)));
+
+		cache.resourceCreated(condition);
+		assertEquals(5, numerator(evaluate(evaluator, repository)));
+		assertEquals(1, registry.get("cql.measure.reports.stale").functionCounter().count());
+
+		assertEquals(0, cache.evict("http://example.org/Measure/other"));
+		assertEquals(1, cache.evict("Measure/screening"));
+		assertEquals(0, cache.getEntryCount());
+	}
+
+	@Test
+	void testTerminologyChangesMakeReportsStale() {
+		InMemoryFhirRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		MeasureProperties properties = new MeasureProperties();
+		MeasureReportCache cache = new MeasureReportCache(FhirContext.forR4Cached(), properties);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		cache.bindTo(registry);
+		R4ShardedMeasureEvaluator evaluator = new R4ShardedMeasureEvaluator(
+				null,
+				MeasureEvaluationOptions.defaultOptions(),
+				new MeasurePeriodValidator(),
+				properties,
+				executors.get(CqlExecutors.MEASURE),
+				cache);
+
+		evaluate(evaluator, repository);
+		// The measure reads no ValueSet through the repository, its expansions may come from the CQL caches
+		cache.resourceUpdated(null, new ValueSet());
+		evaluate(evaluator, repository);
+		assertEquals(1, registry.get("cql.measure.reports.stale").functionCounter().count());
+
+		assertEquals(0, cache.evict("other-tenant", null));
+		assertEquals(1, cache.evict(null, null));
+	}
+
+	@Test
+	void testReportsEvaluatedBeforeAWriteCommitsAreStale() {
+		InMemoryFhirRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		MeasureProperties properties = new MeasureProperties();
+		MeasureReportCache cache = new MeasureReportCache(FhirContext.forR4Cached(), properties);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		cache.bindTo(registry);
+		R4ShardedMeasureEvaluator evaluator = new R4ShardedMeasureEvaluator(
+				null,
+				MeasureEvaluationOptions.defaultOptions(),
+				new MeasurePeriodValidator(),
+				properties,
+				executors.get(CqlExecutors.MEASURE),
+				cache);
+
+		Condition condition = new Condition();
+		condition.setId("Condition/c1");
+		condition.setSubject(new Reference("Patient/p1"));
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			cache.resourceCreated(condition);
+			// Evaluated after the write was announced but before it committed, so from the old data
+			assertEquals(4, numerator(evaluate(evaluator, repository)));
+			repository.update(condition);
+			TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+
+		assertEquals(5, numerator(evaluate(evaluator, repository)));
+		assertEquals(1, registry.get("cql.measure.reports.stale").functionCounter().count());
+	}
+
+	@Test
+	void testEvictOperationEvictsTheTenantsReportsWithTheConfiguredToken() {
+		InMemoryFhirRepository repository =
+				R4ShardedMeasureEvaluatorTest.populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		MeasureProperties properties = new MeasureProperties();
+		MeasureReportCache cache = new MeasureReportCache(FhirContext.forR4Cached(), properties);
+		R4ShardedMeasureEvaluator evaluator = new R4ShardedMeasureEvaluator(
+				null,
+				MeasureEvaluationOptions.defaultOptions(),
+				new MeasurePeriodValidator(),
+				properties,
+				executors.get(CqlExecutors.MEASURE),
+				cache);
+		evaluate(evaluator, repository);
+		R4MeasureReportCacheProvider provider = new R4MeasureReportCacheProvider(cache, "secret");
+
+		RequestDetails wrongToken = mock(RequestDetails.class);
+		when(wrongToken.getHeader(Constants.HEADER_AUTHORIZATION)).thenReturn("Bearer guess");
+		assertThrows(AuthenticationException.class, () -> provider.evict(wrongToken, null));
+		assertEquals(1, cache.getEntryCount());
+
+		RequestDetails request = mock(RequestDetails.class);
+		when(request.getHeader(Constants.HEADER_AUTHORIZATION)).thenReturn("Bearer secret");
+		IntegerType evicted =
+				(IntegerType) provider.evict(request, "Measure/screening").getParameter("evicted").getValue();
+		assertEquals(1, evicted.getValue());
+		assertEquals(0, cache.getEntryCount());
+
+		// Without a token, the server's interceptors decide who may call it
+		evaluate(evaluator, repository);
+		IntegerType unguarded = (IntegerType) new R4MeasureReportCacheProvider(cache, null)
+				.evict(mock(RequestDetails.class), null)
+				.getParameter("evicted")
+				.getValue();
+		assertEquals(1, unguarded.getValue());
+	}
+
+	private static MeasureReport evaluate(R4ShardedMeasureEvaluator theEvaluator, InMemoryFhirRepository theRepository) {
+		return theEvaluator
+				.forRepository(theRepository)
+				.evaluate(
+						Eithers.forMiddle3(new IdType("Measure", "screening")),
+						ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC),
+						ZonedDateTime.of(2024, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC),
+						"population",
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null);
+	}
+
+	private static int numerator(MeasureReport theReport) {
+		return theReport.getGroupFirstRep().getPopulation().stream()
+				.filter(population -> "numerator".equals(population.getCode().getCodingFirstRep().getCode()))
+				.findFirst()
+				.orElseThrow()
+				.getCount();
+	}
+}
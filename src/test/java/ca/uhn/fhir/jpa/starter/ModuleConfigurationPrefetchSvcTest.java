@@ -0,0 +1,524 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.HookParams;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.interceptor.executor.InterceptorService;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksProperties;
+import ca.uhn.fhir.jpa.starter.cdshooks.ModuleConfigurationPrefetchSvc;
+import ca.uhn.fhir.jpa.starter.cdshooks.StarterCdsHooksConfig;
+import ca.uhn.fhir.model.api.IModelJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestAuthorizationJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestContextJson;
+import ca.uhn.fhir.rest.api.server.cdshooks.CdsServiceRequestJson;
+import ca.uhn.fhir.rest.api.InterceptorInvocationTimingEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.storage.TransactionDetails;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceMethod;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the module prefetch against a local stub FHIR server that delays every resource type by a configurable
+ * amount, to check that the hook waits for the slowest query rather than the sum of all of them.
+ */
+class ModuleConfigurationPrefetchSvcTest {
+
+	private static final String[] PREFETCH_ITEMS = {"item1", "item2", "item3", "item4", "item5", "item6"};
+
+	private final FhirContext ourCtx = FhirContext.forR4();
+	private final Map<String, Long> myLatencyByResourceType = new HashMap<>();
+	private final List<String> myAuthorizationHeaders = new CopyOnWriteArrayList<>();
+	private final AtomicInteger myRequestCount = new AtomicInteger();
+	private final AtomicInteger myObservationRequestCount = new AtomicInteger();
+	private final Map<String, Integer> myPagedResourceTypes = new HashMap<>();
+	private HttpServer myStubServer;
+	private String myStubServerBase;
+
+	@BeforeEach
+	void beforeEach() throws IOException {
+		ourCtx.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+		myStubServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		myStubServer.setExecutor(Executors.newCachedThreadPool());
+		myStubServer.createContext("/fhir", this::handleStubRequest);
+		myStubServer.start();
+		myStubServerBase = "http://localhost:" + myStubServer.getAddress().getPort() + "/fhir";
+
+		// Warm up the parser and HTTP client so that the timings below only measure the prefetch itself
+		newPrefetchSvc(10000).augmentRequest(newRequest(), newServiceMethod());
+	}
+
+	@AfterEach
+	void afterEach() {
+		myStubServer.stop(0);
+	}
+
+	@Test
+	void testPrefetchLatencyTracksSlowestQuery() {
+		myLatencyByResourceType.put("Patient", 400L);
+		myLatencyByResourceType.put("MedicationRequest", 400L);
+		myLatencyByResourceType.put("Condition", 400L);
+		myLatencyByResourceType.put("Encounter", 400L);
+		myLatencyByResourceType.put("ServiceRequest", 400L);
+		myLatencyByResourceType.put("Observation", 800L);
+		CdsServiceRequestJson request = newRequest();
+		ModuleConfigurationPrefetchSvc prefetchSvc = newPrefetchSvc(10000);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		prefetchSvc.bindTo(registry);
+
+		long start = System.currentTimeMillis();
+		prefetchSvc.augmentRequest(request, newServiceMethod());
+		long elapsed = System.currentTimeMillis() - start;
+
+		for (String item : PREFETCH_ITEMS) {
+			assertNotNull(request.getPrefetch(item), item);
+		}
+		// Sequential execution would take at least 2800 ms
+		assertTrue(elapsed >= 800, "elapsed " + elapsed);
+		assertTrue(elapsed < 2000, "elapsed " + elapsed);
+
+		double labsMillis = registry.get("cds.prefetch.duration")
+				.tag("service", "module")
+				.tag("item", "item6")
+				.timer()
+				.totalTime(TimeUnit.MILLISECONDS);
+		double patientMillis = registry.get("cds.prefetch.duration")
+				.tag("service", "module")
+				.tag("item", "item1")
+				.timer()
+				.totalTime(TimeUnit.MILLISECONDS);
+		assertTrue(labsMillis >= 800, "item6 " + labsMillis);
+		assertTrue(patientMillis >= 400 && patientMillis < labsMillis, "item1 " + patientMillis);
+	}
+
+	@Test
+	void testPrefetchKeepsCompletedItemsWhenDeadlineExpires() {
+		myLatencyByResourceType.put("Observation", 3000L);
+		CdsServiceRequestJson request = newRequest();
+
+		long start = System.currentTimeMillis();
+		newPrefetchSvc(1000).augmentRequest(request, newServiceMethod());
+		long elapsed = System.currentTimeMillis() - start;
+
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(request.getPrefetch(PREFETCH_ITEMS[i]), PREFETCH_ITEMS[i]);
+		}
+		assertNull(request.getPrefetch("item6"));
+		assertTrue(elapsed < 2500, "elapsed " + elapsed);
+	}
+
+	@Test
+	void testPooledClientSendsTokenPerRequest() {
+		ModuleConfigurationPrefetchSvc prefetchSvc = newPrefetchSvc(10000);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		prefetchSvc.bindTo(registry);
+
+		for (String token : List.of("token-a", "token-b")) {
+			CdsServiceRequestJson request = newRequest();
+			request.setServiceRequestAuthorizationJson(
+					new CdsServiceRequestAuthorizationJson().setAccessToken(token));
+			myAuthorizationHeaders.clear();
+			prefetchSvc.augmentRequest(request, newServiceMethod());
+			assertEquals(Set.of("Bearer " + token), new HashSet<>(myAuthorizationHeaders));
+		}
+
+		assertEquals(1, registry.get("cds.prefetch.clients").gauge().value());
+		assertEquals(
+				1,
+				registry.get("cds.prefetch.clients.requests")
+						.tag("result", "miss")
+						.functionCounter()
+						.count());
+		assertEquals(
+				1,
+				registry.get("cds.prefetch.clients.requests")
+						.tag("result", "hit")
+						.functionCounter()
+						.count());
+		// Connections are kept alive in the pool rather than in the context's default client
+		assertTrue(registry.get("cds.prefetch.connections")
+						.tag("state", "available")
+						.gauge()
+						.value()
+				> 0);
+	}
+
+	@Test
+	void testLocalFhirServerIsResolvedInProcess() {
+		CdsPrefetchDaoSvc prefetchDaoSvc = mock(CdsPrefetchDaoSvc.class);
+		when(prefetchDaoSvc.getFhirContext()).thenReturn(ourCtx);
+		when(prefetchDaoSvc.resourceFromUrl(anyString())).thenAnswer(invocation -> {
+			String url = invocation.getArgument(0);
+			return url.startsWith("Patient/") ? new Patient().setId("123") : new Bundle();
+		});
+		AppProperties appProperties = new AppProperties();
+		appProperties.getLocal_base_urls().add(myStubServerBase + "/");
+		myRequestCount.set(0);
+
+		CdsServiceRequestJson request = newRequest();
+		new ModuleConfigurationPrefetchSvc(
+						new CdsResolutionStrategySvc(null),
+						prefetchDaoSvc,
+						new CdsPrefetchFhirClientSvc(ourCtx),
+						new StarterCdsHooksConfig.CdsHooksDaoAuthorizationSvc(),
+						null,
+						newUnsplitProperties(),
+						appProperties)
+				.augmentRequest(request, newServiceMethod());
+
+		for (String item : PREFETCH_ITEMS) {
+			assertNotNull(request.getPrefetch(item), item);
+		}
+		assertEquals(0, myRequestCount.get());
+		verify(prefetchDaoSvc, times(PREFETCH_ITEMS.length)).resourceFromUrl(anyString());
+	}
+
+	@Test
+	void testPrefetchResultsAreCachedUntilPatientCompartmentChanges() {
+		CdsHooksProperties properties = newUnsplitProperties();
+		properties.getPrefetch().getCache().setEnabled(true);
+		InterceptorService interceptorService = new InterceptorService();
+		ModuleConfigurationPrefetchSvc prefetchSvc = new ModuleConfigurationPrefetchSvc(
+				new CdsResolutionStrategySvc(null),
+				new CdsPrefetchDaoSvc(null, null, ourCtx),
+				new CdsPrefetchFhirClientSvc(ourCtx),
+				new StarterCdsHooksConfig.CdsHooksDaoAuthorizationSvc(),
+				interceptorService,
+				properties);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		prefetchSvc.bindTo(registry);
+		myRequestCount.set(0);
+
+		prefetchSvc.augmentRequest(newRequest(), newServiceMethod());
+		assertEquals(PREFETCH_ITEMS.length, myRequestCount.get());
+
+		CdsServiceRequestJson request = newRequest();
+		prefetchSvc.augmentRequest(request, newServiceMethod());
+		for (String item : PREFETCH_ITEMS) {
+			assertNotNull(request.getPrefetch(item), item);
+		}
+		assertEquals(PREFETCH_ITEMS.length, myRequestCount.get());
+		assertEquals(PREFETCH_ITEMS.length, registry.get("cache.size").tag("cache", "cds.prefetch.results").gauge().value());
+
+		// A different caller must not see results fetched with someone else's token
+		request = newRequest();
+		request.setServiceRequestAuthorizationJson(new CdsServiceRequestAuthorizationJson().setSubject("other"));
+		prefetchSvc.augmentRequest(request, newServiceMethod());
+		assertEquals(2 * PREFETCH_ITEMS.length, myRequestCount.get());
+
+		Observation observation = new Observation();
+		observation.setSubject(new Reference("Patient/123"));
+		HookParams params = new HookParams()
+				.add(IBaseResource.class, observation)
+				.add(RequestDetails.class, null)
+				.add(ServletRequestDetails.class, null)
+				.add(TransactionDetails.class, new TransactionDetails())
+				.add(InterceptorInvocationTimingEnum.class, InterceptorInvocationTimingEnum.ACTIVE);
+		interceptorService.callHooks(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED, params);
+		assertEquals(0, registry.get("cache.size").tag("cache", "cds.prefetch.results").gauge().value());
+
+		prefetchSvc.augmentRequest(newRequest(), newServiceMethod());
+		assertEquals(3 * PREFETCH_ITEMS.length, myRequestCount.get());
+	}
+
+	@Test
+	void testLargeCodeListIsSplitAndMerged() {
+		CdsServiceRequestJson unsplitRequest = newRequest();
+		myObservationRequestCount.set(0);
+		newPrefetchSvc(newUnsplitProperties()).augmentRequest(unsplitRequest, newServiceMethod());
+		assertEquals(1, myObservationRequestCount.get());
+
+		CdsServiceRequestJson splitRequest = newRequest();
+		myObservationRequestCount.set(0);
+		newPrefetchSvc(new CdsHooksProperties()).augmentRequest(splitRequest, newServiceMethod());
+		assertTrue(myObservationRequestCount.get() > 1, "requests " + myObservationRequestCount.get());
+
+		Bundle unsplit = (Bundle) unsplitRequest.getPrefetch("item6");
+		Bundle split = (Bundle) splitRequest.getPrefetch("item6");
+		assertEquals(List.of("lab-58397-1", "lab-93474-5", "lab-shared"), entryIds(unsplit));
+		assertEquals(entryIds(unsplit), entryIds(split));
+		assertEquals(unsplit.getTotal(), split.getTotal());
+	}
+
+	@Test
+	void testAllSearchPagesAreFetched() {
+		ModuleConfigurationPrefetchSvc prefetchSvc = newPrefetchSvc(10000);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		prefetchSvc.bindTo(registry);
+		myPagedResourceTypes.put("Encounter", 25);
+		myPagedResourceTypes.put("Condition", 12);
+
+		CdsServiceRequestJson request = newRequest();
+		prefetchSvc.augmentRequest(request, newServiceMethod());
+
+		// Encounter pages are addressed by offset, Condition pages only through their next links
+		Bundle encounters = (Bundle) request.getPrefetch("item4");
+		assertEquals(25, encounters.getEntry().size());
+		assertEquals(25, new HashSet<>(entryIds(encounters)).size());
+		assertNull(encounters.getLink("next"));
+		Bundle conditions = (Bundle) request.getPrefetch("item3");
+		assertEquals(12, conditions.getEntry().size());
+		assertNull(conditions.getLink("next"));
+
+		assertEquals(
+				3, registry.get("cds.prefetch.pages").tag("item", "item4").counter().count());
+		assertEquals(
+				2, registry.get("cds.prefetch.pages").tag("item", "item3").counter().count());
+		assertTrue(registry.get("cds.prefetch.bytes").tag("item", "item4").counter().count() > 0);
+	}
+
+	@Test
+	void testPagingStopsAtEntryCap() {
+		CdsHooksProperties properties = newUnsplitProperties();
+		properties.getPrefetch().getPaging().setMaxEntries(15);
+		myPagedResourceTypes.put("Encounter", 25);
+		myPagedResourceTypes.put("Condition", 25);
+
+		CdsServiceRequestJson request = newRequest();
+		newPrefetchSvc(properties).augmentRequest(request, newServiceMethod());
+
+		assertEquals(15, ((Bundle) request.getPrefetch("item4")).getEntry().size());
+		assertEquals(15, ((Bundle) request.getPrefetch("item3")).getEntry().size());
+	}
+
+	@Test
+	void testOnlyDeclaredKeysAreFilledAndOthersUseTheServiceTemplates() {
+		Map<String, String> prefetch = new HashMap<>();
+		prefetch.put("item1", "{{context.patientId}}");
+		prefetch.put("patient", "{{context.patientId}}");
+		CdsServiceRequestJson request = newRequest();
+		myRequestCount.set(0);
+
+		newPrefetchSvc(10000).augmentRequest(request, newServiceMethod(prefetch, true));
+
+		assertNotNull(request.getPrefetch("item1"));
+		assertNotNull(request.getPrefetch("patient"));
+		for (int i = 1; i < PREFETCH_ITEMS.length; i++) {
+			assertNull(request.getPrefetch(PREFETCH_ITEMS[i]), PREFETCH_ITEMS[i]);
+		}
+		assertEquals(2, myRequestCount.get());
+	}
+
+	private static List<String> entryIds(Bundle theBundle) {
+		return theBundle.getEntry().stream()
+				.map(entry -> entry.getResource().getIdElement().getIdPart())
+				.sorted()
+				.collect(Collectors.toList());
+	}
+
+	private ModuleConfigurationPrefetchSvc newPrefetchSvc(long theTimeoutMillis) {
+		CdsHooksProperties properties = newUnsplitProperties();
+		properties.getPrefetch().setTimeoutMillis(theTimeoutMillis);
+		return newPrefetchSvc(properties);
+	}
+
+	/**
+	 * Properties that keep every prefetch item to exactly one query.
+	 */
+	private static CdsHooksProperties newUnsplitProperties() {
+		CdsHooksProperties properties = new CdsHooksProperties();
+		properties.getPrefetch().setMaxUrlLength(Integer.MAX_VALUE);
+		properties.getPrefetch().setMaxParamValues(Integer.MAX_VALUE);
+		return properties;
+	}
+
+	private ModuleConfigurationPrefetchSvc newPrefetchSvc(CdsHooksProperties properties) {
+		return new ModuleConfigurationPrefetchSvc(
+				new CdsResolutionStrategySvc(null),
+				new CdsPrefetchDaoSvc(null, null, ourCtx),
+				new CdsPrefetchFhirClientSvc(ourCtx),
+				new StarterCdsHooksConfig.CdsHooksDaoAuthorizationSvc(),
+				null,
+				properties);
+	}
+
+	private CdsServiceRequestJson newRequest() {
+		CdsServiceRequestContextJson context = new CdsServiceRequestContextJson();
+		context.put("patientId", "Patient/123");
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setHook("patient-view");
+		request.setFhirServer(myStubServerBase);
+		request.setContext(context);
+		return request;
+	}
+
+	private ICdsServiceMethod newServiceMethod() {
+		Map<String, String> prefetch = new HashMap<>();
+		for (String item : PREFETCH_ITEMS) {
+			prefetch.put(item, "{{context.patientId}}");
+		}
+		return newServiceMethod(prefetch, false);
+	}
+
+	private ICdsServiceMethod newServiceMethod(Map<String, String> thePrefetch, boolean theAllowAutoFhirClientPrefetch) {
+		CdsServiceJson serviceJson = new CdsServiceJson();
+		serviceJson.setId("module");
+		thePrefetch.forEach(serviceJson::addPrefetch);
+		return new ICdsServiceMethod() {
+			@Override
+			public CdsServiceJson getCdsServiceJson() {
+				return serviceJson;
+			}
+
+			@Override
+			public boolean isAllowAutoFhirClientPrefetch() {
+				return theAllowAutoFhirClientPrefetch;
+			}
+
+			@Override
+			public Object invoke(ObjectMapper theObjectMapper, IModelJson theJson, String theServiceId) {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Serves pages of ten resources. Encounter pages link to the next one by offset as HAPI does, other types
+	 * through an opaque page number.
+	 */
+	private Bundle newPage(HttpExchange theExchange, String theResourceType) {
+		int total = myPagedResourceTypes.get(theResourceType);
+		String query = StringUtils.defaultString(theExchange.getRequestURI().getQuery());
+		int offset = 0;
+		for (String param : query.split("&")) {
+			if (param.startsWith("_getpagesoffset=") || param.startsWith("page=")) {
+				offset = Integer.parseInt(param.substring(param.indexOf('=') + 1));
+			}
+		}
+		if (query.contains("page=")) {
+			offset *= 10;
+		}
+
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (int i = offset; i < Math.min(offset + 10, total); i++) {
+			bundle.addEntry().setResource(new Encounter().setId(theResourceType.toLowerCase() + "-" + i));
+		}
+		if (offset + 10 < total) {
+			String next = "Encounter".equals(theResourceType)
+					? "/Encounter?_getpagesoffset=" + (offset + 10) + "&_count=10"
+					: "/" + theResourceType + "?page=" + (offset / 10 + 1);
+			bundle.addLink().setRelation("next").setUrl(myStubServerBase + next);
+		}
+		if ("Encounter".equals(theResourceType)) {
+			bundle.setTotal(total);
+		}
+		return bundle;
+	}
+
+	/**
+	 * Answers lab searches as if the patient had results for two of the requested codes, plus one result that
+	 * every search returns so that merging has duplicates to remove.
+	 */
+	private Bundle newLabBundle(HttpExchange theExchange) throws IOException {
+		// The client switches to POST _search once the url gets too long
+		String query = "POST".equals(theExchange.getRequestMethod())
+				? new String(theExchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+				: theExchange.getRequestURI().getRawQuery();
+		Set<String> codes = new HashSet<>();
+		for (String param : query.split("&")) {
+			if (param.startsWith("code=")) {
+				String values = URLDecoder.decode(param.substring("code=".length()), StandardCharsets.UTF_8);
+				codes.addAll(List.of(values.split(",")));
+			}
+		}
+		Bundle bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.SEARCHSET);
+		for (String code : List.of("58397-1", "93474-5", "shared")) {
+			if (codes.contains(code) || "shared".equals(code)) {
+				Observation observation = new Observation();
+				observation.setId("lab-" + code);
+				observation.setSubject(new Reference("Patient/123"));
+				bundle.addEntry()
+						.setFullUrl(myStubServerBase + "/Observation/lab-" + code)
+						.setResource(observation)
+						.getSearch()
+						.setMode(Bundle.SearchEntryMode.MATCH);
+			}
+		}
+		bundle.setTotal(bundle.getEntry().size());
+		return bundle;
+	}
+
+	private void handleStubRequest(HttpExchange theExchange) throws IOException {
+		String path = theExchange.getRequestURI().getPath().substring("/fhir/".length());
+		String resourceType = path.split("/")[0];
+		myRequestCount.incrementAndGet();
+		String authorization = theExchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization != null) {
+			myAuthorizationHeaders.add(authorization);
+		}
+		try {
+			Thread.sleep(myLatencyByResourceType.getOrDefault(resourceType, 0L));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		String body;
+		if ("Patient".equals(resourceType)) {
+			Patient patient = new Patient();
+			patient.setId("123");
+			body = ourCtx.newJsonParser().encodeResourceToString(patient);
+		} else if (myPagedResourceTypes.containsKey(resourceType)) {
+			body = ourCtx.newJsonParser().encodeResourceToString(newPage(theExchange, resourceType));
+		} else if ("Observation".equals(resourceType)) {
+			myObservationRequestCount.incrementAndGet();
+			body = ourCtx.newJsonParser().encodeResourceToString(newLabBundle(theExchange));
+		} else {
+			Bundle bundle = new Bundle();
+			bundle.setType(Bundle.BundleType.SEARCHSET);
+			bundle.setTotal(0);
+			body = ourCtx.newJsonParser().encodeResourceToString(bundle);
+		}
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		theExchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+		theExchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream os = theExchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.jpa.starter.cr.CqlLibraryCache;
+import ca.uhn.fhir.jpa.starter.cr.CqlRuntimeProperties;
+import ca.uhn.fhir.jpa.starter.cr.PersistentElmCache;
+import org.cqframework.cql.cql2elm.CqlCompilerException;
+import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks that compiled ELM is written to disk, read back after a restart without compiling the CQL again, usable for
+ * compiling the libraries that include it, and recompiled once the library's CQL, or that of a library it includes, no
+ * longer matches the cached entry. Also checks that content is looked up once per library and hashed before the
+ * library is compiled.
+ */
+class PersistentElmCacheTest {
+
+	private static final VersionedIdentifier COMMON = new VersionedIdentifier().withId("Common").withVersion("1.0.0");
+	private static final VersionedIdentifier REPORT = new VersionedIdentifier().withId("Report").withVersion("1.0.0");
+
+	private static final String REPORT_CQL = "library Report version '1.0.0'\n"
+			+ "using FHIR version '4.0.1'\n"
+			+ "include Common version '1.0.0' called Common\n"
+			+ "context Patient\n"
+			+ "define \"Count\": Count(Common.\"Conditions\")\n"
+			+ "define \"Doubled\": Common.\"Double\"(Common.\"Answer\")\n"
+			+ "define \"Window\": Common.\"Window\"\n";
+
+	@TempDir
+	Path directory;
+
+	private String commonCql = "library Common version '1.0.0'\n"
+			+ "using FHIR version '4.0.1'\n"
+			+ "context Patient\n"
+			+ "define \"Conditions\": [Condition]\n"
+			+ "define \"Answer\": 40 + 2\n"
+			+ "define \"Window\": Interval[1, 10]\n"
+			+ "define \"Pairs\": { Tuple { name: 'a', value: 1 } }\n"
+			+ "define function \"Double\"(value Integer): value * 2\n";
+	private final AtomicInteger commonCompilations = new AtomicInteger();
+	private final AtomicInteger reportCompilations = new AtomicInteger();
+	private final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+	private boolean persistReport;
+	private boolean changeCommonWhileCompiling;
+
+	@Test
+	void testElmIsReusedAcrossRestartsUntilTheCqlChanges() throws IOException {
+		CompiledLibrary compiled = resolve(COMMON);
+		assertNotNull(compiled.resolveExpressionRef("Answer"));
+		assertEquals(1, commonCompilations.get());
+		assertEquals(1, entries().size());
+
+		// A restarted server starts with an empty library cache and reads the ELM from disk, also when an including
+		// library is compiled against it
+		CompiledLibrary report = resolve(REPORT);
+		assertNotNull(report.resolveExpressionRef("Doubled"));
+		assertEquals(1, commonCompilations.get());
+
+		// Changed CQL under the same name and version must not be served from the stale entry
+		commonCql = commonCql + "define \"Other\": 1\n";
+		CompiledLibrary recompiled = resolve(COMMON);
+		assertNotNull(recompiled.resolveExpressionRef("Other"));
+		assertEquals(2, commonCompilations.get());
+		assertEquals(1, entries().size());
+	}
+
+	@Test
+	void testElmIsCompiledAgainWhenAnIncludedLibraryChanges() throws IOException {
+		persistReport = true;
+		resolve(REPORT);
+		resolve(REPORT);
+		assertEquals(1, reportCompilations.get());
+		assertEquals(2, entries().size());
+
+		// The Report's own CQL is unchanged, but its ELM carries what it resolved from the old Common
+		commonCql = commonCql + "define \"Other\": 1\n";
+		CompiledLibrary report = resolve(REPORT);
+		assertNotNull(report.resolveExpressionRef("Doubled"));
+		assertEquals(2, reportCompilations.get());
+		assertEquals(2, entries().size());
+	}
+
+	@Test
+	void testContentIsLookedUpOncePerLibrary() {
+		persistReport = true;
+		resolve(REPORT);
+		assertEquals(1, reportCompilations.get());
+		// Found missing, compiled and stored with the content looked up before the compilation
+		assertEquals(1, lookups.get(REPORT.getId()).get());
+	}
+
+	@Test
+	void testElmIsStoredUnderTheContentItWasCompiledFrom() {
+		// CQL updated while the old CQL is compiled must not be served from the ELM of the old CQL
+		changeCommonWhileCompiling = true;
+		CompiledLibrary compiled = resolve(COMMON);
+		assertNotNull(compiled.resolveExpressionRef("Answer"));
+		assertEquals(1, commonCompilations.get());
+
+		changeCommonWhileCompiling = false;
+		CompiledLibrary recompiled = resolve(COMMON);
+		assertNotNull(recompiled.resolveExpressionRef("Other"));
+		assertEquals(2, commonCompilations.get());
+	}
+
+	private CompiledLibrary resolve(VersionedIdentifier theLibrary) {
+		CqlCompilerOptions options = CqlCompilerOptions.defaultOptions();
+		options.setOptions(CqlCompilerOptions.Options.EnableResultTypes);
+		ModelManager modelManager = new ModelManager();
+		CqlLibraryCache libraryCache = new CqlLibraryCache(new CqlRuntimeProperties());
+		// Only Common is persisted unless persistReport is set, as only it is hashed here
+		libraryCache.setPersistentElmCache(new PersistentElmCache(directory, options, modelManager, identifier -> {
+			lookups.computeIfAbsent(identifier.getId(), id -> new AtomicInteger()).incrementAndGet();
+			if (COMMON.getId().equals(identifier.getId())) {
+				return new PersistentElmCache.LibraryContent(null, PersistentElmCache.sha256(commonCql));
+			}
+			if (persistReport && REPORT.getId().equals(identifier.getId())) {
+				return new PersistentElmCache.LibraryContent(null, PersistentElmCache.sha256(REPORT_CQL));
+			}
+			return null;
+		}));
+
+		LibraryManager libraryManager = new LibraryManager(modelManager, options, libraryCache.asMap());
+		libraryManager.getLibrarySourceLoader().registerProvider(new CountingSourceProvider());
+
+		List<CqlCompilerException> errors = new ArrayList<>();
+		CompiledLibrary library = libraryManager.resolveLibrary(theLibrary, errors);
+		assertFalse(CqlCompilerException.hasErrors(errors), errors.toString());
+		return library;
+	}
+
+	private List<Path> entries() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files.filter(Files::isRegularFile).toList();
+		}
+	}
+
+	private class CountingSourceProvider implements LibrarySourceProvider {
+		@Override
+		public InputStream getLibrarySource(VersionedIdentifier theIdentifier) {
+			String cql;
+			if (COMMON.getId().equals(theIdentifier.getId())) {
+				commonCompilations.incrementAndGet();
+				cql = commonCql;
+				if (changeCommonWhileCompiling) {
+					commonCql = commonCql + "define \"Other\": 1\n";
+				}
+			} else if (REPORT.getId().equals(theIdentifier.getId())) {
+				reportCompilations.incrementAndGet();
+				cql = REPORT_CQL;
+			} else {
+				return null;
+			}
+			return new ByteArrayInputStream(cql.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutorProperties;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutors;
+import ca.uhn.fhir.jpa.starter.cr.R4CareGapsStreamer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.cr.measure.r4.R4CareGapsService;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class R4CareGapsStreamerTest {
+
+	private static final ZonedDateTime PERIOD_START = ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+	private static final ZonedDateTime PERIOD_END = ZonedDateTime.of(2024, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC);
+	private static final List<String> STATUS = List.of("open-gap", "closed-gap");
+
+	private final CqlExecutors executors = new CqlExecutors(new CqlExecutorProperties());
+
+	@AfterEach
+	void close() {
+		executors.close();
+	}
+
+	@Test
+	void testStreamedBundlesMatchCareGapsReport() throws Exception {
+		InMemoryFhirRepository repository = newRepository();
+		CareGapsProperties properties = careGapsProperties();
+
+		Parameters report = new R4CareGapsService(
+						properties,
+						repository,
+						MeasureEvaluationOptions.defaultOptions(),
+						"http://localhost/fhir",
+						new MeasurePeriodValidator())
+				.getCareGapsReport(
+						PERIOD_START,
+						PERIOD_END,
+						null,
+						STATUS,
+						List.of(new IdType("Measure", "screening")),
+						null,
+						null,
+						false);
+
+		R4CareGapsStreamer.Run run = new R4CareGapsStreamer(
+						properties,
+						MeasureEvaluationOptions.defaultOptions(),
+						new MeasurePeriodValidator(),
+						executors.get(CqlExecutors.CARE_GAPS),
+						3)
+				.prepare(
+						repository,
+						"http://localhost/fhir",
+						PERIOD_START,
+						PERIOD_END,
+						null,
+						STATUS,
+						List.of(new IdType("Measure", "screening")),
+						null,
+						null,
+						false);
+		List<Bundle> streamed = new ArrayList<>();
+		List<String> failed = new ArrayList<>();
+		int count = run.evaluate(streamed::add, (subject, e) -> failed.add(subject));
+
+		assertTrue(failed.isEmpty(), failed::toString);
+		assertEquals(10, run.getSubjects().size());
+		// Every patient is in the denominator, so every patient has an open or closed gap
+		assertEquals(10, count);
+		assertEquals(report.getParameter().size(), count);
+		assertEquals(count, streamed.size());
+		assertEquals(
+				report.getParameter().stream()
+						.map(parameter -> subjectOf((Bundle) parameter.getResource()))
+						.collect(Collectors.toSet()),
+				streamed.stream().map(R4CareGapsStreamerTest::subjectOf).collect(Collectors.toSet()));
+	}
+
+	@Test
+	void testConsumerFailureStopsTheRun() throws Exception {
+		R4CareGapsStreamer.Run run = new R4CareGapsStreamer(
+						careGapsProperties(),
+						MeasureEvaluationOptions.defaultOptions(),
+						new MeasurePeriodValidator(),
+						executors.get(CqlExecutors.CARE_GAPS),
+						1)
+				.prepare(
+						newRepository(),
+						"http://localhost/fhir",
+						PERIOD_START,
+						PERIOD_END,
+						null,
+						STATUS,
+						List.of(new IdType("Measure", "screening")),
+						null,
+						null,
+						false);
+		List<Bundle> streamed = new ArrayList<>();
+		IllegalStateException gone = new IllegalStateException("client went away");
+		try {
+			run.evaluate(
+					bundle -> {
+						streamed.add(bundle);
+						throw gone;
+					},
+					(subject, e) -> {});
+		} catch (IllegalStateException e) {
+			assertEquals(gone, e);
+		}
+		// One patient at a time, so at most the patient in flight when the consumer failed follows it
+		assertTrue(streamed.size() <= 2, () -> streamed.size() + " bundles");
+	}
+
+	private static String subjectOf(Bundle theBundle) {
+		return theBundle.getEntry().stream()
+				.map(Bundle.BundleEntryComponent::getResource)
+				.filter(Composition.class::isInstance)
+				.map(resource -> ((Composition) resource).getSubject().getReference())
+				.findFirst()
+				.orElseThrow();
+	}
+
+	private static CareGapsProperties careGapsProperties() {
+		CareGapsProperties properties = new CareGapsProperties();
+		properties.setCareGapsReporter("reporter");
+		properties.setCareGapsCompositionSectionAuthor("author");
+		return properties;
+	}
+
+	private static InMemoryFhirRepository newRepository() {
+		InMemoryFhirRepository repository = R4ShardedMeasureEvaluatorTest.populate(
+				new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		Measure measure = repository.read(Measure.class, new IdType("Measure", "screening"));
+		measure.setImprovementNotation(new CodeableConcept(new Coding(
+				"http://terminology.hl7.org/CodeSystem/measure-improvement-notation", "increase", null)));
+		repository.update(measure);
+		for (String id : Set.of("reporter", "author")) {
+			Organization organization = new Organization();
+			organization.setId("Organization/" + id);
+			repository.update(organization);
+		}
+		return repository;
+	}
+}
@@ -0,0 +1,251 @@
+package ca.uhn.fhir.jpa.starter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutorProperties;
+import ca.uhn.fhir.jpa.starter.cr.CqlExecutors;
+import ca.uhn.fhir.jpa.starter.cr.MeasureProperties;
+import ca.uhn.fhir.jpa.starter.cr.R4ShardedMeasureEvaluator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.common.MeasurePeriodValidator;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+import org.opencds.cqf.fhir.utility.repository.InMemoryFhirRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class R4ShardedMeasureEvaluatorTest {
+
+	private static final String CQL = "library Screening version '1.0.0'\n"
+			+ "using FHIR version '4.0.1'\n"
+			+ "parameter \"Measurement Period\" Interval<DateTime>\n"
+			+ "context Patient\n"
+			+ "define \"Initial Population\": true\n"
+			+ "define \"Denominator\": true\n"
+			+ "define \"Numerator\": exists [Condition]\n"
+			+ "define \"Observed\": exists [Observation]\n";
+
+	private final CqlExecutors executors = new CqlExecutors(new CqlExecutorProperties());
+
+	@AfterEach
+	void close() {
+		executors.close();
+	}
+
+	@Test
+	void testShardedPopulationReportMatchesSinglePass() {
+		InMemoryFhirRepository repository = populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+
+		MeasureReport singlePass = evaluate(repository, 0, new SimpleMeterRegistry());
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		MeasureReport sharded = evaluate(repository, 3, registry);
+
+		assertEquals(4, registry.get("cql.measure.shard.duration").timer().count());
+		assertEquals(0, registry.get("cql.measure.subjects.remaining").gauge().value());
+
+		MeasureReport.MeasureReportGroupComponent expected = singlePass.getGroupFirstRep();
+		MeasureReport.MeasureReportGroupComponent actual = sharded.getGroupFirstRep();
+		assertEquals(counts(expected), counts(actual));
+		assertEquals(Map.of("initial-population", 10, "denominator", 10, "numerator", 4), counts(actual));
+		assertEquals(0.4, actual.getMeasureScore().getValue().doubleValue(), 0.0001);
+		assertEquals(
+				expected.getMeasureScore().getValue().doubleValue(),
+				actual.getMeasureScore().getValue().doubleValue(),
+				0.0001);
+
+		Map<String, MeasureReport.StratifierGroupComponent> expectedStrata = strata(expected);
+		Map<String, MeasureReport.StratifierGroupComponent> actualStrata = strata(actual);
+		assertEquals(expectedStrata.keySet(), actualStrata.keySet());
+		for (String stratum : expectedStrata.keySet()) {
+			assertEquals(
+					expectedStrata.get(stratum).getMeasureScore().getValue().doubleValue(),
+					actualStrata.get(stratum).getMeasureScore().getValue().doubleValue(),
+					0.0001);
+		}
+		assertEquals(
+				expected.getStratifierFirstRep().getStratum().stream()
+						.mapToInt(stratum -> stratum.getPopulationFirstRep().getCount())
+						.sum(),
+				actual.getStratifierFirstRep().getStratum().stream()
+						.mapToInt(stratum -> stratum.getPopulationFirstRep().getCount())
+						.sum());
+	}
+
+	@Test
+	void testShardsRejectedByAFullQueueRunOnTheCallingThread() {
+		InMemoryFhirRepository repository = populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 10);
+		CqlExecutorProperties executorProperties = new CqlExecutorProperties();
+		executorProperties.setThreads(1);
+		executorProperties.setQueueCapacity(1);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+		MeasureReport sharded;
+		try (CqlExecutors bounded = new CqlExecutors(executorProperties)) {
+			sharded = evaluate(repository, 1, registry, bounded.get(CqlExecutors.MEASURE));
+		}
+
+		assertEquals(10, registry.get("cql.measure.shard.duration").timer().count());
+		assertEquals(0, registry.get("cql.measure.subjects.remaining").gauge().value());
+		assertEquals(
+				Map.of("initial-population", 10, "denominator", 10, "numerator", 4),
+				counts(sharded.getGroupFirstRep()));
+	}
+
+	@Test
+	void testPopulationWithoutSubjectsIsEvaluatedUnsharded() {
+		InMemoryFhirRepository repository = populate(new InMemoryFhirRepository(FhirContext.forR4Cached()), 0);
+		MeasureProperties properties = new MeasureProperties();
+		properties.setRetrieveBlockSize(50);
+		properties.setSharedRetrieveCacheSize(100);
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+		MeasureReport report = evaluate(repository, properties, registry, executors.get(CqlExecutors.MEASURE));
+
+		assertEquals(0, registry.get("cql.measure.shard.duration").timer().count());
+		assertEquals(0, registry.get("cql.measure.subjects.remaining").gauge().value());
+		assertEquals(
+				Map.of("initial-population", 0, "denominator", 0, "numerator", 0), counts(report.getGroupFirstRep()));
+	}
+
+	private MeasureReport evaluate(InMemoryFhirRepository theRepository, int theShardSize, SimpleMeterRegistry theRegistry) {
+		return evaluate(theRepository, theShardSize, theRegistry, executors.get(CqlExecutors.MEASURE));
+	}
+
+	private MeasureReport evaluate(
+			InMemoryFhirRepository theRepository,
+			int theShardSize,
+			SimpleMeterRegistry theRegistry,
+			ExecutorService theExecutor) {
+		MeasureProperties properties = new MeasureProperties();
+		properties.setShardSize(theShardSize);
+		return evaluate(theRepository, properties, theRegistry, theExecutor);
+	}
+
+	private MeasureReport evaluate(
+			InMemoryFhirRepository theRepository,
+			MeasureProperties theProperties,
+			SimpleMeterRegistry theRegistry,
+			ExecutorService theExecutor) {
+		R4ShardedMeasureEvaluator evaluator = new R4ShardedMeasureEvaluator(
+				null,
+				MeasureEvaluationOptions.defaultOptions(),
+				new MeasurePeriodValidator(),
+				theProperties,
+				theExecutor);
+		evaluator.bindTo(theRegistry);
+		return evaluator
+				.forRepository(theRepository)
+				.evaluate(
+						Eithers.forMiddle3(new IdType("Measure", "screening")),
+						ZonedDateTime.of(2024, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC),
+						ZonedDateTime.of(2024, 12, 31, 23, 59, 59, 0, ZoneOffset.UTC),
+						"population",
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null,
+						null);
+	}
+
+	private static Map<String, Integer> counts(MeasureReport.MeasureReportGroupComponent theGroup) {
+		return theGroup.getPopulation().stream()
+				.collect(Collectors.toMap(
+						population -> population.getCode().getCodingFirstRep().getCode(),
+						MeasureReport.MeasureReportGroupPopulationComponent::getCount));
+	}
+
+	private static Map<String, MeasureReport.StratifierGroupComponent> strata(
+			MeasureReport.MeasureReportGroupComponent theGroup) {
+		return theGroup.getStratifierFirstRep().getStratum().stream()
+				.collect(Collectors.toMap(stratum -> stratum.getValue().getText(), Function.identity()));
+	}
+
+	/**
+	 * Adds a proportion measure over the given number of patients: every third has a Condition (numerator) and every
+	 * other one an Observation (stratifier).
+	 */
+	static <R extends InMemoryFhirRepository> R populate(R repository, int thePatients) {
+		Library library = new Library();
+		library.setId("Library/Screening");
+		library.setUrl("http://example.org/Library/Screening");
+		library.setName("Screening");
+		library.setVersion("1.0.0");
+		library.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		library.addContent(new Attachment().setContentType("text/cql").setData(CQL.getBytes(StandardCharsets.UTF_8)));
+		repository.update(library);
+
+		Measure measure = new Measure();
+		measure.setId("Measure/screening");
+		measure.setUrl("http://example.org/Measure/screening");
+		measure.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		measure.addLibrary("http://example.org/Library/Screening");
+		measure.setScoring(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/measure-scoring", "proportion", null)));
+		Measure.MeasureGroupComponent group = measure.addGroup();
+		group.setId("group-1");
+		for (String population : new String[] {"initial-population", "denominator", "numerator"}) {
+			Measure.MeasureGroupPopulationComponent groupPopulation = group.addPopulation();
+			groupPopulation.setId(population);
+			groupPopulation
+					.setCode(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/measure-population", population, null)))
+					.setCriteria(new Expression()
+							.setLanguage("text/cql-identifier")
+							.setExpression(
+									switch (population) {
+										case "initial-population" -> "Initial Population";
+										case "denominator" -> "Denominator";
+										default -> "Numerator";
+									}));
+		}
+		Measure.MeasureGroupStratifierComponent stratifier = group.addStratifier();
+		stratifier.setId("stratifier-observed");
+		stratifier
+				.setCode(new CodeableConcept().setText("Observed"))
+				.setCriteria(new Expression().setLanguage("text/cql-identifier").setExpression("Observed"));
+		repository.update(measure);
+
+		for (int i = 0; i < thePatients; i++) {
+			Patient patient = new Patient();
+			patient.setId("Patient/p" + i);
+			repository.update(patient);
+			if (i % 3 == 0) {
+				Condition condition = new Condition();
+				condition.setId("Condition/c" + i);
+				condition.setSubject(new Reference("Patient/p" + i));
+				repository.update(condition);
+			}
+			if (i % 2 == 1) {
+				Observation observation = new Observation();
+				observation.setId("Observation/o" + i);
+				observation.setSubject(new Reference("Patient/p" + i));
+				repository.update(observation);
+			}
+		}
+		return repository;
+	}
+}